@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+/*
+ * Event counter with the same operations as RedBlackTree, but with a
+ * primitive backed node store on the heap.
+ *
+ * Instead of one TreeNode object per event (object header, three references,
+ * three ints and a boolean), a node is an index into parallel int arrays:
+ * key, count, subtreeCount, leftChild, rightChild and parent, with the color
+ * packed into one bit per node in redBits. That is 28 bytes and one bit per
+ * event with no per-event object, and a findNode descent only touches the
+ * key and child arrays. The tree algorithms are in IndexedRedBlackTree.
+ */
+public class ArrayRedBlackTree extends IndexedRedBlackTree {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	// Node store, indexed by node.
+	int[] key; // the ID.
+	int[] count; // number of active events with the given ID.
+	long[] subtreeCount; // count of the node + subtreeCounts of its children.
+	int[] leftChild, rightChild, parent;
+	long[] redBits; // color bit of each node, set when the node is RED.
+
+	public ArrayRedBlackTree() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ArrayRedBlackTree(int initialCapacity) {
+		grow(Math.max(initialCapacity, 1) + 1);
+	}
+
+	/*
+	 * Initialize the Event Counter from the ascending sorted IDs and their
+	 * counts in O(n) time.
+	 */
+	ArrayRedBlackTree(int sortedIDs[], int sortedCounts[], int totalNumberOfEvents) {
+		grow(totalNumberOfEvents + 1);
+		buildFromSortedArrays(sortedIDs, sortedCounts, totalNumberOfEvents);
+	}
+
+	final int getKey(int node) {
+		return key[node];
+	}
+
+	final void setKey(int node, int key) {
+		this.key[node] = key;
+	}
+
+	final int getCount(int node) {
+		return count[node];
+	}
+
+	final void setCount(int node, int count) {
+		this.count[node] = count;
+	}
+
+	final long getSubtreeCount(int node) {
+		return subtreeCount[node];
+	}
+
+	final void setSubtreeCount(int node, long subtreeCount) {
+		this.subtreeCount[node] = subtreeCount;
+	}
+
+	final int getLeftChild(int node) {
+		return leftChild[node];
+	}
+
+	final void setLeftChild(int node, int leftChild) {
+		this.leftChild[node] = leftChild;
+	}
+
+	final int getRightChild(int node) {
+		return rightChild[node];
+	}
+
+	final void setRightChild(int node, int rightChild) {
+		this.rightChild[node] = rightChild;
+	}
+
+	final int getParent(int node) {
+		return parent[node];
+	}
+
+	final void setParent(int node, int parent) {
+		this.parent[node] = parent;
+	}
+
+	final boolean isRed(int node) {
+		return (redBits[node >>> 6] & (1L << node)) != 0;
+	}
+
+	final void setRed(int node, boolean red) {
+		if (red) {
+			redBits[node >>> 6] |= 1L << node;
+		} else {
+			redBits[node >>> 6] &= ~(1L << node);
+		}
+	}
+
+	final int capacity() {
+		return key.length;
+	}
+
+	/*
+	 * (Re)size the node store to hold the given number of slots, NIL included.
+	 */
+	final void grow(int minimumCapacity) {
+		if (key == null) {
+			key = new int[minimumCapacity];
+			count = new int[minimumCapacity];
+			subtreeCount = new long[minimumCapacity];
+			leftChild = new int[minimumCapacity];
+			rightChild = new int[minimumCapacity];
+			parent = new int[minimumCapacity];
+			redBits = new long[(minimumCapacity + 63) >>> 6];
+		} else if (minimumCapacity > key.length) {
+			key = Arrays.copyOf(key, minimumCapacity);
+			count = Arrays.copyOf(count, minimumCapacity);
+			subtreeCount = Arrays.copyOf(subtreeCount, minimumCapacity);
+			leftChild = Arrays.copyOf(leftChild, minimumCapacity);
+			rightChild = Arrays.copyOf(rightChild, minimumCapacity);
+			parent = Arrays.copyOf(parent, minimumCapacity);
+			redBits = Arrays.copyOf(redBits, (minimumCapacity + 63) >>> 6);
+		}
+	}
+}
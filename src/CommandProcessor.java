@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Streaming processor for the Event Counter commands (“increase 3 5”,
+ * “inrange 3 5”, “next 3”, ... one per line, until “quit”).
+ *
+ * The input stream is read into a reusable byte buffer and each line is
+ * tokenized in place: the command name is matched against the known
+ * commands byte by byte and the arguments are decoded straight from their
+ * ASCII digits, so unlike Scanner/readLine() + String.split() +
+ * Integer.parseInt() nothing is allocated per command. The results go to an
+ * OutputBuffer, which is written out whenever reading more input would
+ * block, and at “quit” or the end of the input. An increase which would
+ * overflow the count prints an error line, and processing continues.
+ */
+public class CommandProcessor {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// Opcodes, the index of the command name in COMMANDS.
+	private static final int INCREASE = 0;
+	private static final int REDUCE = 1;
+	private static final int COUNT = 2;
+	private static final int INRANGE = 3;
+	private static final int NEXT = 4;
+	private static final int PREVIOUS = 5;
+	private static final int QUIT = 6;
+	private static final int INVALID = -1;
+
+	private static final byte[][] COMMANDS = { "increase".getBytes(), "reduce".getBytes(), "count".getBytes(),
+			"inrange".getBytes(), "next".getBytes(), "previous".getBytes(), "quit".getBytes() };
+
+	private final EventCounter tree;
+	private final InputStream in;
+	private final OutputBuffer out;
+
+	// Input buffer; bytes [position, limit) haven't been processed yet.
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int position, limit;
+	private boolean endOfInput;
+
+	// The line being processed is [position, lineEnd), and the one after it
+	// starts at nextLineStart.
+	private int lineEnd, nextLineStart;
+
+	// Set by nextArgument() when the line has no (further) valid number.
+	private boolean argumentInvalid;
+
+	// Number of commands dispatched to the tree so far.
+	long commandsProcessed;
+
+	public CommandProcessor(EventCounter tree, InputStream in, OutputBuffer out) {
+		this.tree = tree;
+		this.in = in;
+		this.out = out;
+	}
+
+	/*
+	 * Process the commands until “quit” or the end of the input, then write
+	 * out any buffered results (also if processing fails).
+	 */
+	void run() throws IOException {
+		try {
+			while (nextLine()) {
+				int lineStart = position;
+				int opcode = nextCommand();
+				if (opcode == QUIT) {
+					break;
+				}
+				if (!dispatch(opcode)) {
+					printInvalidCommand(lineStart);
+				}
+				position = nextLineStart;
+			}
+		} finally {
+			out.flush();
+		}
+	}
+
+	/*
+	 * Call the Event Counter function for the command and buffer its result.
+	 * Returns false if the command or its arguments are not valid.
+	 */
+	private boolean dispatch(int opcode) throws IOException {
+		argumentInvalid = false;
+		switch (opcode) {
+		case INCREASE: {
+			int theID = nextArgument(), m = nextArgument();
+			if (argumentInvalid) {
+				return false;
+			}
+			try {
+				out.printLine(tree.increase(theID, m));
+			} catch (ArithmeticException e) {
+				printOverflow(theID);
+			}
+			break;
+		}
+		case REDUCE: {
+			int theID = nextArgument(), m = nextArgument();
+			if (argumentInvalid) {
+				return false;
+			}
+			try {
+				out.printLine(tree.reduce(theID, m));
+			} catch (ArithmeticException e) {
+				printOverflow(theID);
+			}
+			break;
+		}
+		case COUNT: {
+			int theID = nextArgument();
+			if (argumentInvalid) {
+				return false;
+			}
+			out.printLine(tree.count(theID));
+			break;
+		}
+		case INRANGE: {
+			int ID1 = nextArgument(), ID2 = nextArgument();
+			if (argumentInvalid) {
+				return false;
+			}
+			out.printLine(tree.inRange(ID1, ID2));
+			break;
+		}
+		case NEXT: {
+			int theID = nextArgument();
+			if (argumentInvalid) {
+				return false;
+			}
+			out.printEvent(tree.next(theID));
+			break;
+		}
+		case PREVIOUS: {
+			int theID = nextArgument();
+			if (argumentInvalid) {
+				return false;
+			}
+			out.printEvent(tree.previous(theID));
+			break;
+		}
+		default:
+			return false;
+		}
+		commandsProcessed++;
+		return true;
+	}
+
+	/*
+	 * An increase which would overflow the count of the event leaves it
+	 * unchanged, and only its error line is printed.
+	 */
+	private void printOverflow(int theID) throws IOException {
+		out.printLine("\nCount of event " + theID + " would overflow, left unchanged ! ");
+	}
+
+	/*
+	 * Only invalid commands pay for a String.
+	 */
+	private void printInvalidCommand(int lineStart) throws IOException {
+		int commandEnd = lineStart;
+		while (commandEnd < lineEnd && buffer[commandEnd] != ' ') {
+			commandEnd++;
+		}
+		String command = new String(buffer, lineStart, commandEnd - lineStart);
+		out.printLine("\nInvalid command: '" + command + "' ! Enter 'quit' to exit. ");
+	}
+
+	/*
+	 * Decode the command name at the start of the line into its opcode.
+	 */
+	private int nextCommand() {
+		int start = position;
+		while (position < lineEnd && buffer[position] != ' ') {
+			position++;
+		}
+		int length = position - start;
+		for (int opcode = 0; opcode < COMMANDS.length; opcode++) {
+			byte[] name = COMMANDS[opcode];
+			if (name.length == length && name[0] == buffer[start]) {
+				int i = 1;
+				while (i < length && name[i] == buffer[start + i]) {
+					i++;
+				}
+				if (i == length) {
+					return opcode;
+				}
+			}
+		}
+		return INVALID;
+	}
+
+	/*
+	 * Decode the next space separated integer argument of the line from its
+	 * ASCII digits. As with Integer.parseInt(), it may start with a '-', and
+	 * it must fit in an int and end at a space or the end of the line;
+	 * otherwise argumentInvalid is set.
+	 */
+	private int nextArgument() {
+		while (position < lineEnd && buffer[position] == ' ') {
+			position++;
+		}
+		boolean negative = position < lineEnd && buffer[position] == '-';
+		if (negative) {
+			position++;
+		}
+		int start = position;
+		long value = 0;
+		while (position < lineEnd) {
+			int digit = buffer[position] - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			value = value * 10 + digit;
+			// Integer.MIN_VALUE's magnitude is the largest that fits.
+			if (value > 1L << 31) {
+				argumentInvalid = true;
+				return 0;
+			}
+			position++;
+		}
+		if (position == start || (position < lineEnd && buffer[position] != ' ')
+				|| (!negative && value > Integer.MAX_VALUE)) {
+			argumentInvalid = true;
+		}
+		return (int) (negative ? -value : value);
+	}
+
+	/*
+	 * Make sure the next whole line is in the buffer, starting at position,
+	 * and set lineEnd to its EOL (a trailing '\r' is left out) and
+	 * nextLineStart past it. Returns false at the end of the input.
+	 */
+	private boolean nextLine() throws IOException {
+		int scan = position;
+		while (true) {
+			while (scan < limit && buffer[scan] != '\n') {
+				scan++;
+			}
+			if (scan < limit) {
+				break;
+			}
+			if (endOfInput) {
+				if (position == limit) {
+					return false;
+				}
+				// The last line has no EOL.
+				lineEnd = nextLineStart = limit;
+				return true;
+			}
+			scan -= position;
+			fill();
+			scan += position;
+		}
+		lineEnd = scan;
+		nextLineStart = scan + 1;
+		if (lineEnd > position && buffer[lineEnd - 1] == '\r') {
+			lineEnd--;
+		}
+		return true;
+	}
+
+	/*
+	 * Move the unprocessed bytes to the front of the buffer (growing it if a
+	 * single line fills it) and read more input. Before blocking on the
+	 * input, write out the buffered results.
+	 */
+	private void fill() throws IOException {
+		int remaining = limit - position;
+		if (remaining == buffer.length) {
+			byte[] grown = new byte[buffer.length * 2];
+			System.arraycopy(buffer, position, grown, 0, remaining);
+			buffer = grown;
+		} else {
+			System.arraycopy(buffer, position, buffer, 0, remaining);
+		}
+		position = 0;
+		limit = remaining;
+		if (in.available() == 0) {
+			out.flush();
+		}
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read < 0) {
+			endOfInput = true;
+		} else {
+			limit += read;
+		}
+	}
+}
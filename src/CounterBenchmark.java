@@ -0,0 +1,903 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.LongStream;
+
+/*
+ * Micro benchmarks for the RedBlackTree Event Counter.
+ *
+ * The counters are built over a sparse ID space (IDs are multiples of
+ * ID_STRIDE, so every ID in between is absent). The benchmarks are:
+ *
+ * probes: times queries whose probe IDs are not present in the tree, at
+ * increasing distances from the tree's minimum and maximum. With the single
+ * descent ceiling/floor search the latency should stay flat (O(log n)) no
+ * matter how far the probe is from either end.
+ *
+ * memory: compares the heap used per event, and the findNode descent time
+ * for random lookups, of RedBlackTree and the primitive backed
+ * ArrayRedBlackTree.
+ *
+ * build: times the sequential and the fork-join parallel construction of a
+ * RedBlackTree from sorted IDs and counts.
+ *
+ * loader: times reading an initial sorted events file with EventFileLoader
+ * against the BufferedReader/String.split() loop bbst used before it, and
+ * reports the heap allocated by each.
+ *
+ * snapshot: loads an events file with EventFileLoader, writes a binary
+ * EventSnapshot of the tree built from it, and restores the tree from the
+ * snapshot, reporting the time of each and the size of both files.
+ *
+ * commands: replays a commands file (in the bbst standard input format)
+ * against a RedBlackTree built from an events file, with the in place
+ * CommandProcessor and with the BufferedReader/String.split() loop bbst used
+ * before it, and reports the throughput in ops/sec and the heap allocated.
+ * The output is discarded, and the input is read from memory, so only the
+ * command processing and the tree are measured.
+ *
+ * striped: times writer threads calling increase and reduce on random IDs,
+ * for 1, 2, 4, ... threads (up to twice the available cores), on a
+ * RedBlackTree behind one global lock, on the lock-striped
+ * StripedEventCounter, and on a SingleWriterEventCounter (one owner thread
+ * applying every update), and reports the total write throughput.
+ *
+ * optimistic: same for a read-heavy mix (95% count, inRange and next, 5%
+ * increase and reduce), on a RedBlackTree behind one global lock and on the
+ * optimistic read OptimisticEventCounter.
+ *
+ * batch: times micro-batches of BATCH_SIZE random updates applied with one
+ * increase() or reduce() call each, and with RedBlackTree.applyUpdates().
+ *
+ * delete: times reducing every event of the tree to zero, in random order,
+ * and reports the time and the heap allocated per delete.
+ *
+ * scan: times exporting every event in ranges of SCAN_LENGTH events by
+ * repeated next() calls, and with a RangeCursor one event at a time, in
+ * batches and as a LongStream, and reports the heap allocated by each.
+ *
+ * aggregate: times analytics over the whole tree (sum of squared counts, a
+ * count weighted histogram of the IDs, and the number of distinct IDs with
+ * a count of at least 2) as sequential and as parallel streams of
+ * RedBlackTree.events().
+ *
+ * The command line is as follows:
+ *
+ * $java CounterBenchmark [probes|memory|build|striped|optimistic|batch|delete|scan|aggregate] [number-of-events]
+ * $java CounterBenchmark loader file-name
+ * $java CounterBenchmark snapshot file-name
+ * $java CounterBenchmark commands file-name commands-file-name
+ *
+ * The benchmark defaults to probes and the number of events to 1000000.
+ */
+public class CounterBenchmark {
+
+	// Distance between consecutive event IDs in the benchmark tree.
+	private static final int ID_STRIDE = 10;
+
+	private static final int WARMUP_ITERATIONS = 200000;
+	private static final int MEASURED_ITERATIONS = 1000000;
+
+	// Updates per micro-batch in the batch benchmark.
+	private static final int BATCH_SIZE = 10000;
+
+	// Events per range, and ranges scanned, in the scan benchmark.
+	private static final int SCAN_LENGTH = 10000;
+	private static final int SCAN_RANGES = 200;
+
+	// Buckets of the aggregate benchmark's histogram.
+	private static final int HISTOGRAM_BUCKETS = 64;
+
+	// Share of reads in the optimistic benchmark's operation mix.
+	private static final int READ_PERCENTAGE = 95;
+
+	// Accumulates query results so the JIT can't eliminate the measured calls.
+	private static long sink;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String benchmark = "probes";
+		int nodesCount = 1000000;
+		if (0 < args.length) {
+			benchmark = args[0];
+		}
+		if (1 < args.length && !"loader".equals(benchmark) && !"snapshot".equals(benchmark)
+				&& !"commands".equals(benchmark)) {
+			nodesCount = Integer.parseInt(args[1]);
+		}
+		switch (benchmark) {
+		case "probes":
+			System.out.println("Events in tree: " + nodesCount + ", ID stride: " + ID_STRIDE);
+			benchmarkAbsentProbes(buildSparseTree(nodesCount), nodesCount);
+			break;
+		case "memory":
+			System.out.println("Events in tree: " + nodesCount + ", ID stride: " + ID_STRIDE);
+			benchmarkMemory(nodesCount);
+			break;
+		case "build":
+			System.out.println("Events in tree: " + nodesCount + ", ID stride: " + ID_STRIDE);
+			benchmarkBuild(nodesCount);
+			break;
+		case "striped":
+			System.out.println("Events in tree: " + nodesCount + ", ID stride: " + ID_STRIDE);
+			benchmarkStriped(nodesCount);
+			break;
+		case "optimistic":
+			System.out.println("Events in tree: " + nodesCount + ", ID stride: " + ID_STRIDE);
+			benchmarkOptimistic(nodesCount);
+			break;
+		case "batch":
+			System.out.println("Events in tree: " + nodesCount + ", ID stride: " + ID_STRIDE);
+			benchmarkBatch(nodesCount);
+			break;
+		case "delete":
+			System.out.println("Events in tree: " + nodesCount + ", ID stride: " + ID_STRIDE);
+			benchmarkDelete(nodesCount);
+			break;
+		case "scan":
+			System.out.println("Events in tree: " + nodesCount + ", ID stride: " + ID_STRIDE);
+			benchmarkScan(nodesCount);
+			break;
+		case "aggregate":
+			System.out.println("Events in tree: " + nodesCount + ", ID stride: " + ID_STRIDE + ", cores: "
+					+ Runtime.getRuntime().availableProcessors());
+			benchmarkAggregate(nodesCount);
+			break;
+		case "loader":
+			if (args.length < 2) {
+				System.out.println("\n Enter an input file name with the nodes in sorted order. \n");
+			} else {
+				benchmarkLoader(new File(args[1]));
+			}
+			break;
+		case "snapshot":
+			if (args.length < 2) {
+				System.out.println("\n Enter an input file name with the nodes in sorted order. \n");
+			} else {
+				benchmarkSnapshot(new File(args[1]));
+			}
+			break;
+		case "commands":
+			if (args.length < 3) {
+				System.out.println("\n Enter an input file name with the nodes in sorted order and a commands file name. \n");
+			} else {
+				benchmarkCommands(new File(args[1]), new File(args[2]));
+			}
+			break;
+		default:
+			System.out.println("\nInvalid benchmark: '" + benchmark
+					+ "' ! Use probes, memory, build, striped, optimistic, batch, delete, scan, aggregate, loader, snapshot or commands. ");
+			break;
+		}
+		System.out.println("(sink " + sink + ")");
+	}
+
+	/*
+	 * Build a tree whose event IDs are ID_STRIDE, 2*ID_STRIDE, ... each with
+	 * count 1, using the O(n) sorted array constructor.
+	 */
+	static RedBlackTree buildSparseTree(int nodesCount) {
+		RedBlackTree treeObjectForTreeNode = new RedBlackTree();
+		RedBlackTree.TreeNode[] sortedNodesArray = new RedBlackTree.TreeNode[nodesCount];
+		for (int i = 0; i < nodesCount; i++) {
+			RedBlackTree.TreeNode node = treeObjectForTreeNode.new TreeNode((i + 1) * ID_STRIDE, 1);
+			node.isRed = false;
+			sortedNodesArray[i] = node;
+		}
+		return new RedBlackTree(sortedNodesArray, nodesCount);
+	}
+
+	/*
+	 * Build the same sparse tree as buildSparseTree() with the primitive
+	 * backed engine.
+	 */
+	static ArrayRedBlackTree buildSparseArrayTree(int nodesCount) {
+		int[] sortedIDs = new int[nodesCount];
+		int[] sortedCounts = new int[nodesCount];
+		for (int i = 0; i < nodesCount; i++) {
+			sortedIDs[i] = (i + 1) * ID_STRIDE;
+			sortedCounts[i] = 1;
+		}
+		return new ArrayRedBlackTree(sortedIDs, sortedCounts, nodesCount);
+	}
+
+	/*
+	 * Measure the retained heap of each engine (after dropping the input
+	 * arrays), then time findNode for a fixed sequence of random present IDs.
+	 */
+	static void benchmarkMemory(int nodesCount) {
+		long baseline = usedHeap();
+		RedBlackTree tree = buildSparseTree(nodesCount);
+		long treeBytes = usedHeap() - baseline;
+		double treeLookup = timeRandomLookups(tree, null, nodesCount);
+		tree = null;
+
+		baseline = usedHeap();
+		ArrayRedBlackTree arrayTree = buildSparseArrayTree(nodesCount);
+		long arrayTreeBytes = usedHeap() - baseline;
+		double arrayTreeLookup = timeRandomLookups(null, arrayTree, nodesCount);
+
+		System.out.printf("%18s %16s %16s%n", "engine", "bytes/event", "findNode ns/op");
+		System.out.printf("%18s %16.1f %16.1f%n", "RedBlackTree", treeBytes / (double) nodesCount, treeLookup);
+		System.out.printf("%18s %16.1f %16.1f%n", "ArrayRedBlackTree", arrayTreeBytes / (double) nodesCount,
+				arrayTreeLookup);
+		sink += arrayTree.numberOfEvents;
+	}
+
+	/*
+	 * Time findNode on whichever of the two trees is given, for the same
+	 * pseudo random sequence of present IDs.
+	 */
+	static double timeRandomLookups(RedBlackTree tree, ArrayRedBlackTree arrayTree, int nodesCount) {
+		int iterations = WARMUP_ITERATIONS + MEASURED_ITERATIONS;
+		int[] probes = new int[iterations];
+		Random random = new Random(42);
+		for (int i = 0; i < iterations; i++) {
+			probes[i] = (random.nextInt(nodesCount) + 1) * ID_STRIDE;
+		}
+		long start = 0;
+		for (int i = 0; i < iterations; i++) {
+			if (i == WARMUP_ITERATIONS) {
+				start = System.nanoTime();
+			}
+			if (tree != null) {
+				sink += tree.findNode(probes[i]).count;
+			} else {
+				sink += arrayTree.getCount(arrayTree.findNode(probes[i]));
+			}
+		}
+		return (System.nanoTime() - start) / (double) MEASURED_ITERATIONS;
+	}
+
+	/*
+	 * Build the sparse tree a few times sequentially and in parallel, reporting
+	 * the time of the last round.
+	 */
+	static void benchmarkBuild(int nodesCount) {
+		int[] sortedIDs = new int[nodesCount];
+		int[] sortedCounts = new int[nodesCount];
+		for (int i = 0; i < nodesCount; i++) {
+			sortedIDs[i] = (i + 1) * ID_STRIDE;
+			sortedCounts[i] = 1;
+		}
+		System.out.printf("%18s %16s%n", "build", "ms");
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			sink += new RedBlackTree(sortedIDs, sortedCounts, nodesCount, false).root.subtreeCount;
+			long sequentialTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += new RedBlackTree(sortedIDs, sortedCounts, nodesCount, true).root.subtreeCount;
+			long parallelTime = System.nanoTime() - start;
+
+			if (round == 4) {
+				System.out.printf("%18s %16d%n", "sequential", sequentialTime / 1000000);
+				System.out.printf("%18s %16d%n", "parallel (" + Runtime.getRuntime().availableProcessors() + ")",
+						parallelTime / 1000000);
+			}
+		}
+	}
+
+	/*
+	 * Report the write throughput of the globally locked, the lock-striped
+	 * and the single writer counter for an increasing number of writer
+	 * threads.
+	 */
+	static void benchmarkStriped(int nodesCount) throws InterruptedException {
+		int[] sortedIDs = new int[nodesCount];
+		int[] sortedCounts = new int[nodesCount];
+		for (int i = 0; i < nodesCount; i++) {
+			sortedIDs[i] = (i + 1) * ID_STRIDE;
+			sortedCounts[i] = 1;
+		}
+		int maxThreads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+		System.out.printf("%12s %18s %18s %18s%n", "threads", "global lock ops/s", "striped ops/s",
+				"single writer ops/s");
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			RedBlackTree tree = new RedBlackTree(sortedIDs, sortedCounts, nodesCount);
+			double globalThroughput = timeWriters(globallyLocked(tree), threads, nodesCount);
+			double stripedThroughput = timeWriters(new StripedEventCounter(sortedIDs, sortedCounts, nodesCount),
+					threads, nodesCount);
+			SingleWriterEventCounter singleWriter = new SingleWriterEventCounter(
+					new RedBlackTree(sortedIDs, sortedCounts, nodesCount));
+			double singleWriterThroughput = timeWriters(singleWriter, threads, nodesCount);
+			singleWriter.close();
+			System.out.printf("%12d %18.0f %18.0f %18.0f%n", threads, globalThroughput, stripedThroughput,
+					singleWriterThroughput);
+		}
+	}
+
+	/*
+	 * The RedBlackTree behind one global lock.
+	 */
+	static EventCounter globallyLocked(RedBlackTree tree) {
+		return new EventCounter() {
+			public synchronized int increase(int theIDofEvent, int countIncreaseBy) {
+				return tree.increase(theIDofEvent, countIncreaseBy);
+			}
+
+			public synchronized int reduce(int theIDofEvent, int decreaseCountBy) {
+				return tree.reduce(theIDofEvent, decreaseCountBy);
+			}
+
+			public synchronized int count(int theIDofEvent) {
+				return tree.count(theIDofEvent);
+			}
+
+			public synchronized long inRange(int ID1, int ID2) {
+				return tree.inRange(ID1, ID2);
+			}
+
+			public synchronized long next(int theIDofEvent) {
+				return tree.next(theIDofEvent);
+			}
+
+			public synchronized long previous(int theIDofEvent) {
+				return tree.previous(theIDofEvent);
+			}
+		};
+	}
+
+	/*
+	 * Report the throughput of a read-heavy mix (READ_PERCENTAGE of count,
+	 * inRange and next, the rest increase and reduce) on the globally locked
+	 * and the optimistic read counter, for an increasing number of threads.
+	 */
+	static void benchmarkOptimistic(int nodesCount) throws InterruptedException {
+		int[] sortedIDs = new int[nodesCount];
+		int[] sortedCounts = new int[nodesCount];
+		for (int i = 0; i < nodesCount; i++) {
+			sortedIDs[i] = (i + 1) * ID_STRIDE;
+			sortedCounts[i] = 1;
+		}
+		int maxThreads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+		System.out.printf("%12s %18s %18s%n", "threads", "global lock ops/s", "optimistic ops/s");
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			double globalThroughput = timeReaders(
+					globallyLocked(new RedBlackTree(sortedIDs, sortedCounts, nodesCount)), threads, nodesCount);
+			double optimisticThroughput = timeReaders(
+					new OptimisticEventCounter(new RedBlackTree(sortedIDs, sortedCounts, nodesCount)), threads,
+					nodesCount);
+			System.out.printf("%12d %18.0f %18.0f%n", threads, globalThroughput, optimisticThroughput);
+		}
+	}
+
+	/*
+	 * Run the threads, each doing MEASURED_ITERATIONS operations of the read
+	 * heavy mix on random present IDs (after WARMUP_ITERATIONS), and return
+	 * the total operations per second. Writes come in increase + reduce
+	 * pairs, so the counts don't drift.
+	 */
+	static double timeReaders(EventCounter counter, int threads, int nodesCount) throws InterruptedException {
+		return timeThreads(threads, (random, iterations) -> {
+			long sum = 0;
+			for (int i = 0; i < iterations; i++) {
+				int ID = (random.nextInt(nodesCount) + 1) * ID_STRIDE;
+				int operation = random.nextInt(100);
+				if (operation >= READ_PERCENTAGE) {
+					sum += counter.increase(ID, 1);
+					sum += counter.reduce(ID, 1);
+					i++;
+				} else if (operation % 3 == 0) {
+					sum += counter.count(ID);
+				} else if (operation % 3 == 1) {
+					sum += counter.inRange(ID, ID + 100 * ID_STRIDE);
+				} else {
+					sum += counter.next(ID);
+				}
+			}
+			return sum;
+		});
+	}
+
+	/*
+	 * Run the writer threads, each doing increase + reduce pairs on random
+	 * present IDs, and return the total operations per second.
+	 */
+	static double timeWriters(EventCounter counter, int threads, int nodesCount) throws InterruptedException {
+		return timeThreads(threads, (random, iterations) -> {
+			long sum = 0;
+			for (int i = 0; i < iterations; i += 2) {
+				int ID = (random.nextInt(nodesCount) + 1) * ID_STRIDE;
+				sum += counter.increase(ID, 1);
+				sum += counter.reduce(ID, 1);
+			}
+			return sum;
+		});
+	}
+
+	/*
+	 * The operations of one benchmark thread, returning a result sum for the
+	 * sink.
+	 */
+	interface ThreadWorkload {
+		long run(Random random, int iterations);
+	}
+
+	/*
+	 * Start the threads, let each run WARMUP_ITERATIONS operations, then time
+	 * MEASURED_ITERATIONS more on all of them at once, and return the total
+	 * operations per second.
+	 */
+	static double timeThreads(int threads, ThreadWorkload workload) throws InterruptedException {
+		CountDownLatch warmedUp = new CountDownLatch(threads);
+		CountDownLatch startMeasuring = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			Random random = new Random(t);
+			new Thread(() -> {
+				long sum = workload.run(random, WARMUP_ITERATIONS);
+				warmedUp.countDown();
+				try {
+					startMeasuring.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				sum += workload.run(random, MEASURED_ITERATIONS);
+				synchronized (CounterBenchmark.class) {
+					sink += sum;
+				}
+				done.countDown();
+			}).start();
+		}
+		warmedUp.await();
+		long start = System.nanoTime();
+		startMeasuring.countDown();
+		done.await();
+		long time = System.nanoTime() - start;
+		return (double) threads * MEASURED_ITERATIONS * 1e9 / time;
+	}
+
+	/*
+	 * Apply the same micro-batches of random updates to two copies of the
+	 * sparse tree, one update at a time and with applyUpdates(), and report
+	 * the time per update. The updates are increases of present IDs, the
+	 * part applyUpdates() merges in one pass.
+	 */
+	static void benchmarkBatch(int nodesCount) {
+		int batches = (WARMUP_ITERATIONS + MEASURED_ITERATIONS) / BATCH_SIZE;
+		int warmupBatches = WARMUP_ITERATIONS / BATCH_SIZE;
+		int[][] IDs = new int[batches][BATCH_SIZE];
+		int[][] deltas = new int[batches][BATCH_SIZE];
+		Random random = new Random(42);
+		for (int b = 0; b < batches; b++) {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				IDs[b][i] = (random.nextInt(nodesCount) + 1) * ID_STRIDE;
+				deltas[b][i] = 1 + random.nextInt(5);
+			}
+		}
+
+		RedBlackTree tree = buildSparseTree(nodesCount);
+		long start = 0;
+		for (int b = 0; b < batches; b++) {
+			if (b == warmupBatches) {
+				start = System.nanoTime();
+			}
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				sink += tree.increase(IDs[b][i], deltas[b][i]);
+			}
+		}
+		double singleTime = (double) (System.nanoTime() - start) / (batches - warmupBatches) / BATCH_SIZE;
+		sink += tree.inRange(0, Integer.MAX_VALUE);
+
+		tree = buildSparseTree(nodesCount);
+		for (int b = 0; b < batches; b++) {
+			if (b == warmupBatches) {
+				start = System.nanoTime();
+			}
+			tree.applyUpdates(IDs[b], deltas[b], BATCH_SIZE);
+		}
+		double batchTime = (double) (System.nanoTime() - start) / (batches - warmupBatches) / BATCH_SIZE;
+		sink += tree.inRange(0, Integer.MAX_VALUE);
+
+		System.out.printf("%18s %16s%n", "updates", "ns/update");
+		System.out.printf("%18s %16.1f%n", "one at a time", singleTime);
+		System.out.printf("%18s %16.1f%n", "applyUpdates", batchTime);
+	}
+
+	/*
+	 * Reduce every event of the sparse tree to zero in random order (a
+	 * warm-up round on one tree, then a measured one on another), and report
+	 * the time and the heap allocated per delete.
+	 */
+	static void benchmarkDelete(int nodesCount) {
+		int[] IDs = new int[nodesCount];
+		for (int i = 0; i < nodesCount; i++) {
+			IDs[i] = (i + 1) * ID_STRIDE;
+		}
+		Random random = new Random(42);
+		for (int i = nodesCount - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1), ID = IDs[i];
+			IDs[i] = IDs[j];
+			IDs[j] = ID;
+		}
+		double time = 0;
+		long allocated = 0;
+		for (int round = 0; round < 2; round++) {
+			RedBlackTree tree = buildSparseTree(nodesCount);
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			for (int ID : IDs) {
+				sink += tree.reduce(ID, Integer.MAX_VALUE);
+			}
+			time = (double) (System.nanoTime() - start) / nodesCount;
+			allocated = allocatedBytes() - allocatedBefore;
+			sink += tree.inRange(0, Integer.MAX_VALUE);
+		}
+		System.out.printf("%18s %16s%n", "ns/delete", "bytes/delete");
+		System.out.printf("%18.1f %16.2f%n", time, (double) allocated / nodesCount);
+	}
+
+	/*
+	 * Scan the same random ranges of SCAN_LENGTH events each way (a warm-up
+	 * round, then a measured one), and report the time per event and the
+	 * heap allocated by the measured round.
+	 */
+	static void benchmarkScan(int nodesCount) {
+		RedBlackTree tree = buildSparseTree(nodesCount);
+		int length = Math.min(SCAN_LENGTH, nodesCount);
+		int[] firstIDs = new int[SCAN_RANGES];
+		Random random = new Random(42);
+		for (int i = 0; i < SCAN_RANGES; i++) {
+			firstIDs[i] = (random.nextInt(nodesCount - length + 1) + 1) * ID_STRIDE;
+		}
+		int[] IDs = new int[256], counts = new int[256];
+		String[] scans = { "next()", "cursor", "cursor batches", "cursor stream" };
+		System.out.printf("%18s %16s %16s%n", "scan", "ns/event", "bytes allocated");
+		for (String scan : scans) {
+			double time = 0;
+			long allocated = 0;
+			for (int round = 0; round < 2; round++) {
+				long allocatedBefore = allocatedBytes();
+				long start = System.nanoTime();
+				for (int firstID : firstIDs) {
+					int lastID = firstID + (length - 1) * ID_STRIDE;
+					sink += scanRange(tree, scan, firstID, lastID, IDs, counts);
+				}
+				time = (double) (System.nanoTime() - start) / SCAN_RANGES / length;
+				allocated = allocatedBytes() - allocatedBefore;
+			}
+			System.out.printf("%18s %16.1f %16d%n", scan, time, allocated);
+		}
+	}
+
+	/*
+	 * Sum the IDs and counts of the events between firstID and lastID (both
+	 * present) the given way.
+	 */
+	static long scanRange(RedBlackTree tree, String scan, int firstID, int lastID, int[] IDs, int[] counts) {
+		long sum = 0;
+		switch (scan) {
+		case "next()":
+			sum += firstID + tree.count(firstID);
+			for (long event = tree.next(firstID); event != EventCounter.NO_EVENT
+					&& EventCounter.eventID(event) <= lastID; event = tree.next(EventCounter.eventID(event))) {
+				sum += EventCounter.eventID(event) + EventCounter.eventCount(event);
+			}
+			break;
+		case "cursor": {
+			RangeCursor cursor = tree.rangeScan(firstID, lastID);
+			while (cursor.advance()) {
+				sum += cursor.ID() + cursor.count();
+			}
+			break;
+		}
+		case "cursor batches": {
+			RangeCursor cursor = tree.rangeScan(firstID, lastID);
+			for (int n = cursor.nextBatch(IDs, counts); n > 0; n = cursor.nextBatch(IDs, counts)) {
+				for (int i = 0; i < n; i++) {
+					sum += IDs[i] + counts[i];
+				}
+			}
+			break;
+		}
+		case "cursor stream":
+			sum += tree.rangeScan(firstID, lastID).events()
+					.map(event -> EventCounter.eventID(event) + EventCounter.eventCount(event)).sum();
+			break;
+		}
+		return sum;
+	}
+
+	/*
+	 * Run each aggregation a few times sequentially and in parallel, and
+	 * report the best time of each.
+	 */
+	static void benchmarkAggregate(int nodesCount) {
+		RedBlackTree tree = buildSparseTree(nodesCount);
+		// Vary the counts, so the aggregates aren't trivial.
+		Random random = new Random(42);
+		for (int i = 0; i < nodesCount / 2; i++) {
+			tree.increase((random.nextInt(nodesCount) + 1) * ID_STRIDE, 1 + random.nextInt(10));
+		}
+		int bucketWidth = (int) Math.max(1, (long) nodesCount * ID_STRIDE / HISTOGRAM_BUCKETS + 1);
+		String[] aggregates = { "sum of squares", "histogram", "distinct >= 2" };
+		System.out.printf("%18s %16s %16s%n", "aggregate", "sequential ms", "parallel ms");
+		for (String aggregate : aggregates) {
+			double[] times = new double[2];
+			for (int parallel = 0; parallel < 2; parallel++) {
+				times[parallel] = Double.MAX_VALUE;
+				for (int round = 0; round < 5; round++) {
+					long start = System.nanoTime();
+					sink += aggregate(tree.events(0, Integer.MAX_VALUE, parallel == 1), aggregate, bucketWidth);
+					times[parallel] = Math.min(times[parallel], (System.nanoTime() - start) / 1e6);
+				}
+			}
+			System.out.printf("%18s %16.1f %16.1f%n", aggregate, times[0], times[1]);
+		}
+	}
+
+	static long aggregate(LongStream events, String aggregate, int bucketWidth) {
+		switch (aggregate) {
+		case "sum of squares":
+			return events.map(event -> (long) EventCounter.eventCount(event) * EventCounter.eventCount(event)).sum();
+		case "histogram":
+			long[] histogram = events.collect(() -> new long[HISTOGRAM_BUCKETS],
+					(buckets, event) -> buckets[EventCounter.eventID(event) / bucketWidth] += EventCounter
+							.eventCount(event),
+					(buckets, other) -> {
+						for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+							buckets[i] += other[i];
+						}
+					});
+			return histogram[HISTOGRAM_BUCKETS / 2];
+		default:
+			return events.filter(event -> EventCounter.eventCount(event) >= 2).count();
+		}
+	}
+
+	/*
+	 * Load the events file, then snapshot and restore its tree a few times,
+	 * reporting the best time of each step.
+	 */
+	static void benchmarkSnapshot(File eventsFile) throws IOException {
+		File snapshotFile = File.createTempFile("events", ".snapshot");
+		double loadTime = Double.MAX_VALUE, writeTime = Double.MAX_VALUE, restoreTime = Double.MAX_VALUE;
+		try {
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				EventFileLoader events = EventFileLoader.load(eventsFile);
+				RedBlackTree tree = new RedBlackTree(events.sortedIDs, events.sortedCounts, events.numberOfEvents,
+						Runtime.getRuntime().availableProcessors() > 1);
+				loadTime = Math.min(loadTime, (System.nanoTime() - start) / 1e6);
+				events = null;
+
+				start = System.nanoTime();
+				EventSnapshot.write(tree, snapshotFile, 0);
+				writeTime = Math.min(writeTime, (System.nanoTime() - start) / 1e6);
+				tree = null;
+
+				start = System.nanoTime();
+				tree = EventSnapshot.restore(snapshotFile);
+				restoreTime = Math.min(restoreTime, (System.nanoTime() - start) / 1e6);
+				sink += tree.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			}
+			System.out.printf("%24s %16s %16s%n", "", "ms", "MB");
+			System.out.printf("%24s %16.1f %16.1f%n", "text load + build", loadTime, eventsFile.length() / 1e6);
+			System.out.printf("%24s %16.1f %16.1f%n", "snapshot write", writeTime, snapshotFile.length() / 1e6);
+			System.out.printf("%24s %16.1f %16s%n", "snapshot restore", restoreTime, "");
+		} finally {
+			snapshotFile.delete();
+		}
+	}
+
+	/*
+	 * Load the file a few times with each loader, reporting the time and the
+	 * heap allocated (garbage included) by the last round.
+	 */
+	static void benchmarkLoader(File eventsFile) throws IOException {
+		System.out.printf("%18s %16s %16s%n", "loader", "ms", "MB allocated");
+		for (int round = 0; round < 3; round++) {
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			sink += loadWithBufferedReader(eventsFile).length;
+			long readerTime = System.nanoTime() - start;
+			long readerAllocated = allocatedBytes() - allocatedBefore;
+
+			allocatedBefore = allocatedBytes();
+			start = System.nanoTime();
+			sink += EventFileLoader.load(eventsFile).numberOfEvents;
+			long loaderTime = System.nanoTime() - start;
+			long loaderAllocated = allocatedBytes() - allocatedBefore;
+
+			if (round == 2) {
+				System.out.printf("%18s %16d %16.1f%n", "BufferedReader", readerTime / 1000000,
+						readerAllocated / 1048576.0);
+				System.out.printf("%18s %16d %16.1f%n", "EventFileLoader", loaderTime / 1000000,
+						loaderAllocated / 1048576.0);
+			}
+		}
+	}
+
+	/*
+	 * The loader bbst used before EventFileLoader, kept as the baseline.
+	 */
+	static RedBlackTree.TreeNode[] loadWithBufferedReader(File eventsFile) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(eventsFile));
+		int nodesCount = Integer.parseInt(in.readLine());
+		RedBlackTree.TreeNode[] sortedNodesArray = new RedBlackTree.TreeNode[nodesCount];
+		RedBlackTree treeObjectForTreeNode = new RedBlackTree();
+		for (int i = 0; i < nodesCount; i++) {
+			String nums[] = in.readLine().split(" ");
+			sortedNodesArray[i] = treeObjectForTreeNode.new TreeNode(Integer.parseInt(nums[0]),
+					Integer.parseInt(nums[1]));
+		}
+		in.close();
+		return sortedNodesArray;
+	}
+
+	/*
+	 * Replay the commands a few times with each command loop, each time on a
+	 * freshly built tree, reporting the throughput and the heap allocated.
+	 */
+	static void benchmarkCommands(File eventsFile, File commandsFile) throws IOException {
+		EventFileLoader events = EventFileLoader.load(eventsFile);
+		byte[] commands = Files.readAllBytes(commandsFile.toPath());
+		System.out.printf("%18s %16s %16s %16s%n", "command loop", "ops", "ops/sec", "MB allocated");
+		for (int round = 0; round < 3; round++) {
+			RedBlackTree tree = new RedBlackTree(events.sortedIDs, events.sortedCounts, events.numberOfEvents);
+			OutputBuffer out = new OutputBuffer(OutputStream.nullOutputStream());
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			long readerOps = processCommandsWithBufferedReader(tree, new ByteArrayInputStream(commands), out);
+			long readerTime = System.nanoTime() - start;
+			long readerAllocated = allocatedBytes() - allocatedBefore;
+
+			tree = new RedBlackTree(events.sortedIDs, events.sortedCounts, events.numberOfEvents);
+			out = new OutputBuffer(OutputStream.nullOutputStream());
+			CommandProcessor processor = new CommandProcessor(tree, new ByteArrayInputStream(commands), out);
+			allocatedBefore = allocatedBytes();
+			start = System.nanoTime();
+			processor.run();
+			long processorTime = System.nanoTime() - start;
+			long processorAllocated = allocatedBytes() - allocatedBefore;
+
+			if (round == 2) {
+				System.out.printf("%18s %16d %16.0f %16.1f%n", "BufferedReader", readerOps,
+						readerOps * 1e9 / readerTime, readerAllocated / 1048576.0);
+				System.out.printf("%18s %16d %16.0f %16.1f%n", "CommandProcessor", processor.commandsProcessed,
+						processor.commandsProcessed * 1e9 / processorTime, processorAllocated / 1048576.0);
+			}
+		}
+	}
+
+	/*
+	 * The command loop bbst used before CommandProcessor, kept as the
+	 * baseline. Returns the number of commands processed.
+	 */
+	static long processCommandsWithBufferedReader(EventCounter tree, InputStream input, OutputBuffer out)
+			throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(input));
+		long commandsProcessed = 0;
+		String s = in.readLine();
+		while (s != null && !"quit".equals(s)) {
+			String commands[] = s.split(" ");
+			switch (commands[0]) {
+			case "increase":
+				out.printLine(tree.increase(Integer.parseInt(commands[1]), Integer.parseInt(commands[2])));
+				break;
+			case "reduce":
+				out.printLine(tree.reduce(Integer.parseInt(commands[1]), Integer.parseInt(commands[2])));
+				break;
+			case "count":
+				out.printLine(tree.count(Integer.parseInt(commands[1])));
+				break;
+			case "inrange":
+				out.printLine(tree.inRange(Integer.parseInt(commands[1]), Integer.parseInt(commands[2])));
+				break;
+			case "next":
+				out.printEvent(tree.next(Integer.parseInt(commands[1])));
+				break;
+			case "previous":
+				out.printEvent(tree.previous(Integer.parseInt(commands[1])));
+				break;
+			default:
+				out.printLine("\nInvalid command: '" + commands[0] + "' ! Enter 'quit' to exit. ");
+				break;
+			}
+			commandsProcessed++;
+			s = in.readLine();
+		}
+		out.flush();
+		return commandsProcessed;
+	}
+
+	/*
+	 * Bytes allocated so far by the current thread, where the JVM supports
+	 * measuring it, otherwise -1.
+	 */
+	static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+		}
+		return -1;
+	}
+
+	/*
+	 * Heap in use after asking the JVM to collect garbage a few times.
+	 */
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/*
+	 * Time next, previous and the inRange end point lookups for absent IDs
+	 * which are 1, 10, 100, ... events away from the tree's minimum (and the
+	 * mirrored distance from its maximum).
+	 */
+	static void benchmarkAbsentProbes(RedBlackTree tree, int nodesCount) {
+		System.out.printf("%12s %16s %16s %16s %16s%n", "distance", "next ns/op", "previous ns/op", "rangeLeft ns/op",
+				"rangeRight ns/op");
+		for (int distance = 1; distance < nodesCount; distance *= 10) {
+			// Absent IDs just after the distance-th event from the minimum, and
+			// just before the distance-th event from the maximum.
+			int fromMinimum = distance * ID_STRIDE + 1;
+			int fromMaximum = (nodesCount - distance) * ID_STRIDE + 1;
+
+			double nextTime = timeNext(tree, fromMinimum);
+			double previousTime = timePrevious(tree, fromMaximum);
+			double rangeLeftTime = timeRangeLeft(tree, fromMinimum);
+			double rangeRightTime = timeRangeRight(tree, fromMaximum);
+			System.out.printf("%12d %16.1f %16.1f %16.1f %16.1f%n", distance, nextTime, previousTime, rangeLeftTime,
+					rangeRightTime);
+		}
+	}
+
+	static double timeNext(RedBlackTree tree, int ID) {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			sink += EventCounter.eventID(tree.next(ID));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+			sink += EventCounter.eventID(tree.next(ID));
+		}
+		return (System.nanoTime() - start) / (double) MEASURED_ITERATIONS;
+	}
+
+	static double timePrevious(RedBlackTree tree, int ID) {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			sink += EventCounter.eventID(tree.previous(ID));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+			sink += EventCounter.eventID(tree.previous(ID));
+		}
+		return (System.nanoTime() - start) / (double) MEASURED_ITERATIONS;
+	}
+
+	static double timeRangeLeft(RedBlackTree tree, int ID) {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			sink += tree.getRangeLeftNode(ID).key;
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+			sink += tree.getRangeLeftNode(ID).key;
+		}
+		return (System.nanoTime() - start) / (double) MEASURED_ITERATIONS;
+	}
+
+	static double timeRangeRight(RedBlackTree tree, int ID) {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			sink += tree.getRangeRightNode(ID).key;
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+			sink += tree.getRangeRightNode(ID).key;
+		}
+		return (System.nanoTime() - start) / (double) MEASURED_ITERATIONS;
+	}
+}
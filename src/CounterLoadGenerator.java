@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/*
+ * Load generator for the CounterServer, reporting its throughput and the
+ * latency percentiles of the requests.
+ *
+ * Each connection runs on its own thread and sends batches of
+ * pipeline-depth requests (a mix of 40% increase, 10% reduce, 25% count,
+ * 10% inrange, 10% next and 5% previous, on random IDs up to max-ID), and
+ * reads their responses while it's still sending, so the batch never
+ * deadlocks on full socket buffers. A request's latency is the time from the
+ * start of sending its batch to the arrival of its response, recorded in a
+ * histogram of whole microseconds (up to MAX_LATENCY_MICROS, above which
+ * latencies are counted as that). The first WARMUP_SECONDS of the run are
+ * not measured.
+ *
+ * The command line is as follows:
+ *
+ * $java CounterLoadGenerator host port [connections] [pipeline-depth] [seconds] [max-ID]
+ * $java CounterLoadGenerator local|local-threaded number-of-events [connections] [pipeline-depth] [seconds]
+ *
+ * With "local" a CounterServer is started in this process on a free port
+ * (with "local-threaded" a ThreadedCounterServer), over a RedBlackTree of
+ * the given number of events with the IDs 2, 4, ... so half of the IDs up to
+ * max-ID are absent. The defaults are 4 connections, a
+ * pipeline depth of 1000, 10 seconds, and a max-ID of 2000000.
+ */
+public class CounterLoadGenerator {
+
+	private static final int DEFAULT_CONNECTIONS = 4;
+	private static final int DEFAULT_PIPELINE_DEPTH = 1000;
+	private static final int DEFAULT_SECONDS = 10;
+	private static final int DEFAULT_MAX_ID = 2000000;
+
+	private static final int WARMUP_SECONDS = 1;
+	private static final int MAX_LATENCY_MICROS = 1000000;
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p99.9" };
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("\n Enter the server host and port, or local (or local-threaded) and a number of events. \n");
+			return;
+		}
+		int connections = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CONNECTIONS;
+		int pipelineDepth = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_PIPELINE_DEPTH;
+		int seconds = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_SECONDS;
+		String host = args[0];
+		int port, maxID;
+		CounterServer server = null;
+		ThreadedCounterServer threadedServer = null;
+		if ("local".equals(host) || "local-threaded".equals(host)) {
+			int numberOfEvents = Integer.parseInt(args[1]);
+			int[] sortedIDs = new int[numberOfEvents], sortedCounts = new int[numberOfEvents];
+			for (int i = 0; i < numberOfEvents; i++) {
+				sortedIDs[i] = 2 * (i + 1);
+				sortedCounts[i] = 1 + i % 100;
+			}
+			RedBlackTree tree = numberOfEvents == 0 ? new RedBlackTree()
+					: new RedBlackTree(sortedIDs, sortedCounts, numberOfEvents);
+			if ("local".equals(host)) {
+				server = new CounterServer(tree, 0);
+				port = server.port();
+				new Thread(server, "counter-server").start();
+			} else {
+				threadedServer = new ThreadedCounterServer(new SingleWriterEventCounter(tree), 0);
+				port = threadedServer.port();
+				Thread acceptor = new Thread(threadedServer, "counter-server");
+				acceptor.setDaemon(true);
+				acceptor.start();
+			}
+			host = "localhost";
+			maxID = 2 * numberOfEvents;
+		} else {
+			port = Integer.parseInt(args[1]);
+			maxID = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_MAX_ID;
+		}
+
+		Connection[] clients = new Connection[connections];
+		Thread[] threads = new Thread[connections];
+		long start = System.nanoTime();
+		long warmupEnd = start + WARMUP_SECONDS * 1000000000L, end = warmupEnd + seconds * 1000000000L;
+		for (int c = 0; c < connections; c++) {
+			clients[c] = new Connection(host, port, pipelineDepth, Math.max(maxID, 1), c);
+			Connection client = clients[c];
+			threads[c] = new Thread(() -> client.run(warmupEnd, end));
+			threads[c].start();
+		}
+		long[] histogram = new long[MAX_LATENCY_MICROS + 1];
+		long requests = 0, errors = 0;
+		for (int c = 0; c < connections; c++) {
+			threads[c].join();
+			if (clients[c].failure != null) {
+				throw clients[c].failure;
+			}
+			for (int micros = 0; micros <= MAX_LATENCY_MICROS; micros++) {
+				histogram[micros] += clients[c].histogram[micros];
+			}
+			requests += clients[c].requests;
+			errors += clients[c].errors;
+		}
+		if (server != null) {
+			server.close();
+		}
+		if (threadedServer != null) {
+			threadedServer.close();
+		}
+
+		System.out.printf("%d connections, pipeline depth %d, %d s: %d requests, %.0f requests/s, %d errors%n",
+				connections, pipelineDepth, seconds, requests, requests / (double) seconds, errors);
+		StringBuilder latencies = new StringBuilder("latency (us):");
+		for (int p = 0; p < PERCENTILES.length; p++) {
+			latencies.append(' ').append(PERCENTILE_NAMES[p]).append(' ')
+					.append(percentile(histogram, requests, PERCENTILES[p]));
+		}
+		latencies.append(" max ").append(percentile(histogram, requests, 100));
+		System.out.println(latencies);
+	}
+
+	/*
+	 * The latency in microseconds that the given percentage of the requests
+	 * didn't exceed.
+	 */
+	private static int percentile(long[] histogram, long requests, double percentile) {
+		long rank = (long) Math.ceil(requests * percentile / 100);
+		long seen = 0;
+		for (int micros = 0; micros <= MAX_LATENCY_MICROS; micros++) {
+			seen += histogram[micros];
+			if (seen >= Math.max(rank, 1)) {
+				return micros;
+			}
+		}
+		return MAX_LATENCY_MICROS;
+	}
+
+	/*
+	 * One client connection, sending the batches from its own thread.
+	 */
+	private static class Connection {
+		final SocketChannel channel;
+		final Selector selector;
+		final int pipelineDepth, maxID;
+		final Random random;
+		final ByteBuffer requestBuffer, responseBuffer;
+
+		final long[] histogram = new long[MAX_LATENCY_MICROS + 1];
+		long requests, errors;
+		Exception failure;
+
+		Connection(String host, int port, int pipelineDepth, int maxID, int seed) throws IOException {
+			channel = SocketChannel.open(new InetSocketAddress(host, port));
+			channel.socket().setTcpNoDelay(true);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			this.pipelineDepth = pipelineDepth;
+			this.maxID = maxID;
+			random = new Random(seed);
+			requestBuffer = ByteBuffer.allocateDirect(pipelineDepth * CounterServer.REQUEST_BYTES);
+			responseBuffer = ByteBuffer.allocateDirect(pipelineDepth * CounterServer.RESPONSE_BYTES);
+		}
+
+		void run(long warmupEnd, long end) {
+			try {
+				SelectionKey key = channel.register(selector, 0);
+				long now;
+				while ((now = System.nanoTime()) < end) {
+					boolean measured = now >= warmupEnd;
+					fillBatch();
+					long sent = System.nanoTime();
+					responseBuffer.clear();
+					int received = 0;
+					while (received < pipelineDepth) {
+						int progress = requestBuffer.hasRemaining() ? channel.write(requestBuffer) : 0;
+						int read = channel.read(responseBuffer);
+						if (read < 0) {
+							throw new IOException("Counter server closed the connection");
+						}
+						progress += read;
+						if (read > 0) {
+							long latencyMicros = Math.min((System.nanoTime() - sent) / 1000, MAX_LATENCY_MICROS);
+							for (int whole = responseBuffer.position()
+									/ CounterServer.RESPONSE_BYTES; received < whole; received++) {
+								if (responseBuffer.get(received * CounterServer.RESPONSE_BYTES) != CounterServer.OK) {
+									errors++;
+								}
+								if (measured) {
+									histogram[(int) latencyMicros]++;
+								}
+							}
+						}
+						if (progress == 0) {
+							key.interestOps(requestBuffer.hasRemaining()
+									? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+									: SelectionKey.OP_READ);
+							selector.select();
+							selector.selectedKeys().clear();
+						}
+					}
+					if (measured) {
+						requests += pipelineDepth;
+					}
+				}
+				channel.close();
+				selector.close();
+			} catch (Exception e) {
+				failure = e;
+			}
+		}
+
+		/*
+		 * Write the next batch of random requests into the request buffer.
+		 */
+		private void fillBatch() {
+			requestBuffer.clear();
+			for (int i = 0; i < pipelineDepth; i++) {
+				int ID = 1 + random.nextInt(maxID), operation = random.nextInt(100);
+				if (operation < 40) {
+					requestBuffer.put(CounterServer.INCREASE).putInt(ID).putInt(1 + random.nextInt(10));
+				} else if (operation < 50) {
+					requestBuffer.put(CounterServer.REDUCE).putInt(ID).putInt(1 + random.nextInt(10));
+				} else if (operation < 75) {
+					requestBuffer.put(CounterServer.COUNT).putInt(ID).putInt(0);
+				} else if (operation < 85) {
+					requestBuffer.put(CounterServer.INRANGE).putInt(ID).putInt(ID + random.nextInt(1000));
+				} else if (operation < 95) {
+					requestBuffer.put(CounterServer.NEXT).putInt(ID).putInt(0);
+				} else {
+					requestBuffer.put(CounterServer.PREVIOUS).putInt(ID).putInt(0);
+				}
+			}
+			requestBuffer.flip();
+		}
+	}
+}
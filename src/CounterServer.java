@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/*
+ * TCP server exposing an Event Counter over a compact binary protocol.
+ *
+ * Every request is a REQUEST_BYTES frame: the opcode byte (INCREASE, REDUCE,
+ * COUNT, INRANGE, NEXT or PREVIOUS) and two big-endian ints, the ID (or ID1)
+ * and the amount (or ID2, unused by count, next and previous). Every
+ * response is a RESPONSE_BYTES frame: a status byte (OK, OVERFLOW if an
+ * increase would overflow the count, or INVALID for an unknown opcode) and
+ * the result as a big-endian long (a count, a total, or an event packed by
+ * EventCounter.event()). Responses come back in the order of the requests,
+ * so a client can pipeline: send thousands of requests before reading any
+ * response.
+ *
+ * The server is one non-blocking selector thread, which also owns the
+ * counter, so the counter needs no locking. On each readable connection it
+ * reads whatever has arrived into the connection's input buffer, executes
+ * every whole request in it while the output buffer has room for the
+ * response, and writes the responses back in as few writes as the socket
+ * takes, the same batching CommandProcessor and OutputBuffer do for the
+ * standard streams. A connection whose responses the socket won't take yet
+ * stops being read until they're written, so a client that doesn't read its
+ * responses can't make the server buffer without bound.
+ *
+ * CounterLoadGenerator measures the server's throughput and latency, and
+ * RemoteEventCounter is a (one request per round trip) client.
+ */
+public class CounterServer implements Runnable {
+
+	static final byte INCREASE = 0;
+	static final byte REDUCE = 1;
+	static final byte COUNT = 2;
+	static final byte INRANGE = 3;
+	static final byte NEXT = 4;
+	static final byte PREVIOUS = 5;
+
+	static final byte OK = 0;
+	static final byte OVERFLOW = 1;
+	static final byte INVALID = 2;
+
+	static final int REQUEST_BYTES = 9;
+	static final int RESPONSE_BYTES = 9;
+
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	private final EventCounter tree;
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private volatile boolean closed;
+
+	/*
+	 * Per connection buffers. The input buffer is kept in write mode (the
+	 * received bytes are [0, position)), the output buffer too (the pending
+	 * responses are [0, position)).
+	 */
+	private static class Connection {
+		final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		boolean endOfInput;
+	}
+
+	/*
+	 * Listen on the port (0 for any free one) for clients of the counter.
+	 */
+	public CounterServer(EventCounter tree, int port) throws IOException {
+		this.tree = tree;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	int port() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/*
+	 * Serve the clients until close() is called.
+	 */
+	public void run() {
+		try {
+			while (!closed) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						try {
+							service(key);
+						} catch (IOException e) {
+							// The client went away.
+							key.channel().close();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				for (SelectionKey key : selector.keys()) {
+					key.channel().close();
+				}
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.register(selector, SelectionKey.OP_READ, new Connection());
+	}
+
+	/*
+	 * Read what has arrived (at most one buffer full), execute the whole
+	 * requests received so far and write their responses, until the socket
+	 * won't take more responses. Anything more to read waits for the next
+	 * select, so a client that keeps sending can't starve the others.
+	 */
+	private void service(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+		if (!connection.endOfInput && connection.in.hasRemaining() && channel.read(connection.in) < 0) {
+			connection.endOfInput = true;
+		}
+		while (true) {
+			boolean executed = execute(connection);
+			connection.out.flip();
+			channel.write(connection.out);
+			boolean written = !connection.out.hasRemaining();
+			connection.out.compact();
+			if (!written) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if (!executed) {
+				break;
+			}
+		}
+		if (connection.endOfInput) {
+			channel.close();
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/*
+	 * Execute the whole requests in the input buffer while there is room for
+	 * their responses. Returns false if there was none.
+	 */
+	private boolean execute(Connection connection) {
+		ByteBuffer in = connection.in, out = connection.out;
+		in.flip();
+		boolean executed = false;
+		while (in.remaining() >= REQUEST_BYTES && out.remaining() >= RESPONSE_BYTES) {
+			byte opcode = in.get();
+			int ID = in.getInt(), amount = in.getInt();
+			byte status = OK;
+			long result = 0;
+			try {
+				result = apply(tree, opcode, ID, amount);
+			} catch (ArithmeticException e) {
+				status = OVERFLOW;
+			} catch (IllegalArgumentException e) {
+				status = INVALID;
+			}
+			out.put(status).putLong(result);
+			executed = true;
+		}
+		in.compact();
+		return executed;
+	}
+
+	/*
+	 * Call the Event Counter function of the request and return its result.
+	 * Throws ArithmeticException if an increase would overflow the count, and
+	 * IllegalArgumentException for an unknown opcode.
+	 */
+	static long apply(EventCounter tree, byte opcode, int ID, int amount) {
+		switch (opcode) {
+		case INCREASE:
+			return tree.increase(ID, amount);
+		case REDUCE:
+			return tree.reduce(ID, amount);
+		case COUNT:
+			return tree.count(ID);
+		case INRANGE:
+			return tree.inRange(ID, amount);
+		case NEXT:
+			return tree.next(ID);
+		case PREVIOUS:
+			return tree.previous(ID);
+		default:
+			throw new IllegalArgumentException("Unknown opcode " + opcode);
+		}
+	}
+
+	/*
+	 * Stop serving, closing the listening socket and every connection.
+	 */
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+		serverChannel.close();
+	}
+}
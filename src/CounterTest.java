@@ -0,0 +1,1658 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Self-checking tests of the Event Counters, run by 'make test'.
+ *
+ * Most checks are randomized (from fixed seeds, so a failure reproduces)
+ * and compare against a TreeMap model of the counts. The RedBlackTree is
+ * also checked structurally after every update: the binary search order,
+ * the parent links, the red-black properties, numberOfEvents, and the
+ * subtreeCount and subtreeMaxCount augmentations, which catch a broken
+ * rebalance or a missed subtree sum update as soon as it happens.
+ *
+ * Each check prints its name when it passes; the first failure throws an
+ * AssertionError (and the process exits non-zero). Temporary files go to a
+ * fresh directory under java.io.tmpdir.
+ */
+public class CounterTest {
+
+	private static File directory;
+
+	public static void main(String[] args) throws Exception {
+		directory = Files.createTempDirectory("counter-test").toFile();
+		try {
+			modelCheckRedBlackTree();
+			parallelBuild();
+			inRangeTotals();
+			rangeScans();
+			spliteratorSplits();
+			snapshotRoundTrip();
+			snapshotAndLogRoundTrip();
+			logForcedWithinInterval();
+			overflowLeavesCountersIntact();
+			applyUpdatesMatchesSingleUpdates();
+			sentinelFreeDeletes();
+			modelCheck("ArrayRedBlackTree", (IDs, counts, n) -> new ArrayRedBlackTree(IDs, counts, n));
+			modelCheck("MappedRedBlackTree", (IDs, counts, n) -> MappedRedBlackTree
+					.create(new File(directory, "model.counter"), IDs, counts, n));
+			mappedCounterRecovery();
+			modelCheck("StripedEventCounter",
+					(IDs, counts, n) -> new StripedEventCounter(IDs, counts, n, 1 + Math.floorMod(n, 6)));
+			concurrentUpdates("StripedEventCounter", new StripedEventCounter(new int[0], new int[0], 0, 4));
+			modelCheck("OptimisticEventCounter",
+					(IDs, counts, n) -> new OptimisticEventCounter(new RedBlackTree(IDs, counts, n)));
+			concurrentUpdates("OptimisticEventCounter", new OptimisticEventCounter(new RedBlackTree()));
+			modelCheck("PersistentRedBlackTree", (IDs, counts, n) -> new PersistentRedBlackTree(IDs, counts, n));
+			persistentBuild();
+			persistentVersionIsolation();
+			concurrentUpdates("PersistentRedBlackTree", new PersistentRedBlackTree());
+			modelCheck("PartitionedEventCounter", (IDs, counts, n) -> PartitionedEventCounter.inProcess(IDs, counts,
+					n, 1 + Math.floorMod(n, 5)));
+			partitionGrowth();
+			remotePartitions();
+			serverFrames();
+			singleWriterProducers();
+			threadedServer();
+			eventsFileParsing();
+			commandArgumentParsing();
+			outputBuffer();
+			commandStream();
+			sampleCommands();
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+		System.out.println("All tests passed.");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	private static void passed(String name) {
+		System.out.println(name + " OK");
+	}
+
+	/*
+	 * Model of an Event Counter: the counts of the present IDs, with the
+	 * expected results of each operation.
+	 */
+	private static class Model {
+		final TreeMap<Integer, Integer> counts = new TreeMap<>();
+
+		int increase(int ID, int m) {
+			int count = counts.getOrDefault(ID, 0) + m;
+			counts.put(ID, count);
+			return count;
+		}
+
+		int reduce(int ID, int m) {
+			Integer count = counts.get(ID);
+			if (count == null) {
+				return 0;
+			} else if (count <= m) {
+				counts.remove(ID);
+				return 0;
+			}
+			counts.put(ID, count - m);
+			return count - m;
+		}
+
+		long inRange(int ID1, int ID2) {
+			long total = 0;
+			if (ID1 <= ID2) {
+				for (int count : counts.subMap(ID1, true, ID2, true).values()) {
+					total += count;
+				}
+			}
+			return total;
+		}
+
+		static long event(Map.Entry<Integer, Integer> entry) {
+			return entry == null ? EventCounter.NO_EVENT : EventCounter.event(entry.getKey(), entry.getValue());
+		}
+
+		List<Long> events(int ID1, int ID2) {
+			List<Long> events = new ArrayList<>();
+			if (ID1 <= ID2) {
+				for (Map.Entry<Integer, Integer> entry : counts.subMap(ID1, true, ID2, true).entrySet()) {
+					events.add(event(entry));
+				}
+			}
+			return events;
+		}
+
+		int[] sortedIDs() {
+			return counts.keySet().stream().mapToInt(Integer::intValue).toArray();
+		}
+
+		int[] sortedCounts() {
+			return counts.values().stream().mapToInt(Integer::intValue).toArray();
+		}
+	}
+
+	/*
+	 * A random initial model of up to maxEvents events with IDs below maxID
+	 * (a few of them negative).
+	 */
+	private static Model randomModel(Random random, int maxEvents, int maxID) {
+		Model model = new Model();
+		int n = random.nextInt(maxEvents + 1);
+		for (int i = 0; i < n; i++) {
+			model.counts.put(random.nextInt(maxID + 10) - 10, 1 + random.nextInt(10));
+		}
+		return model;
+	}
+
+	private static RedBlackTree buildTree(Model model) {
+		return new RedBlackTree(model.sortedIDs(), model.sortedCounts(), model.counts.size());
+	}
+
+	/*
+	 * Apply a random increase or reduce to both and compare the results.
+	 */
+	private static void randomUpdate(Random random, EventCounter counter, Model model, int maxID, String name) {
+		int ID = random.nextInt(maxID + 10) - 10, m = 1 + random.nextInt(12);
+		if (random.nextBoolean()) {
+			int expected = model.increase(ID, m);
+			check(counter.increase(ID, m) == expected, name + ": increase " + ID + " " + m);
+		} else {
+			int expected = model.reduce(ID, m);
+			check(counter.reduce(ID, m) == expected, name + ": reduce " + ID + " " + m);
+		}
+	}
+
+	/*
+	 * Check the count of every event of the model.
+	 */
+	private static void checkCounts(EventCounter counter, Model model, String name) {
+		for (Map.Entry<Integer, Integer> entry : model.counts.entrySet()) {
+			check(counter.count(entry.getKey()) == entry.getValue(), name + ": count " + entry.getKey());
+		}
+	}
+
+	/*
+	 * Compare count, next, previous and inRange on random IDs, present and
+	 * missing, and at the extremes of the ID space.
+	 */
+	private static void compareQueries(Random random, EventCounter counter, Model model, int maxID, String name) {
+		for (int q = 0; q < 20; q++) {
+			int ID = q == 0 ? Integer.MIN_VALUE : q == 1 ? Integer.MAX_VALUE : random.nextInt(maxID + 14) - 12;
+			check(counter.count(ID) == model.counts.getOrDefault(ID, 0), name + ": count " + ID);
+			check(counter.next(ID) == Model.event(model.counts.higherEntry(ID)), name + ": next " + ID);
+			check(counter.previous(ID) == Model.event(model.counts.lowerEntry(ID)), name + ": previous " + ID);
+			int ID1 = random.nextInt(maxID + 14) - 12, ID2 = random.nextInt(maxID + 14) - 12;
+			check(counter.inRange(ID1, ID2) == model.inRange(ID1, ID2), name + ": inRange " + ID1 + " " + ID2);
+		}
+		check(counter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE) == model.inRange(Integer.MIN_VALUE,
+				Integer.MAX_VALUE), name + ": inRange of everything");
+	}
+
+	/*
+	 * Check the structure of the RedBlackTree, and that it holds as many
+	 * events as the model.
+	 */
+	private static void checkTree(RedBlackTree tree, Model model, String name) {
+		check(tree.root == null || (tree.root.parent == null && !tree.root.isRed), name + ": root must be black");
+		checkSubtree(tree.root, null, Long.MIN_VALUE, Long.MAX_VALUE, name);
+		check(tree.numberOfEvents == model.counts.size(),
+				name + ": numberOfEvents " + tree.numberOfEvents + " instead of " + model.counts.size());
+	}
+
+	/*
+	 * Check the subtree, whose keys must be in (low, high), and return its
+	 * black height.
+	 */
+	private static int checkSubtree(RedBlackTree.TreeNode node, RedBlackTree.TreeNode parent, long low, long high,
+			String name) {
+		if (node == null) {
+			return 1;
+		}
+		check(node.parent == parent, name + ": parent link of " + node.key);
+		check(node.key > low && node.key < high, name + ": search order at " + node.key);
+		if (node.isRed) {
+			check(node.leftChild == null || !node.leftChild.isRed, name + ": red child of red " + node.key);
+			check(node.rightChild == null || !node.rightChild.isRed, name + ": red child of red " + node.key);
+		}
+		int leftHeight = checkSubtree(node.leftChild, node, low, node.key, name);
+		int rightHeight = checkSubtree(node.rightChild, node, node.key, high, name);
+		check(leftHeight == rightHeight, name + ": black height at " + node.key);
+		long subtreeCount = node.count;
+		int subtreeMaxCount = node.count;
+		for (RedBlackTree.TreeNode child : new RedBlackTree.TreeNode[] { node.leftChild, node.rightChild }) {
+			if (child != null) {
+				subtreeCount += child.subtreeCount;
+				subtreeMaxCount = Math.max(subtreeMaxCount, child.subtreeMaxCount);
+			}
+		}
+		check(node.subtreeCount == subtreeCount, name + ": subtreeCount at " + node.key);
+		// A missing child counts as 0 towards subtreeMaxCount, so it's only
+		// exact for subtrees with a positive count.
+		check(Math.max(node.subtreeMaxCount, 0) == Math.max(subtreeMaxCount, 0),
+				name + ": subtreeMaxCount at " + node.key);
+		return leftHeight + (node.isRed ? 0 : 1);
+	}
+
+	/*
+	 * RedBlackTree against the model, checking its structure after every
+	 * update (this is what caught the subtreeCount bugs in reduce() and
+	 * deleteNode() fixed along with applyUpdates()), and the queries every
+	 * so often.
+	 */
+	private static void modelCheckRedBlackTree() {
+		Random random = new Random(1);
+		for (int round = 0; round < 250; round++) {
+			int maxID = round < 100 ? 30 : 2000;
+			Model model = randomModel(random, 200, maxID);
+			RedBlackTree tree = buildTree(model);
+			checkTree(tree, model, "RedBlackTree");
+			for (int operation = 0; operation < 300; operation++) {
+				randomUpdate(random, tree, model, maxID, "RedBlackTree");
+				checkTree(tree, model, "RedBlackTree");
+				if (operation % 25 == 0) {
+					checkCounts(tree, model, "RedBlackTree");
+					compareQueries(random, tree, model, maxID, "RedBlackTree");
+					checkOrderStatistics(random, tree, model, maxID);
+					checkTopK(random, tree, model, maxID);
+				}
+			}
+		}
+		passed("RedBlackTree model check");
+	}
+
+	/*
+	 * Compare rank, select and percentile, weighted by count, with the
+	 * model's.
+	 */
+	private static void checkOrderStatistics(Random random, RedBlackTree tree, Model model, int maxID) {
+		long total = model.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		for (int q = 0; q < 10; q++) {
+			int ID = random.nextInt(maxID + 14) - 12;
+			check(tree.rank(ID) == model.inRange(Integer.MIN_VALUE, ID - 1), "rank " + ID);
+			if (model.counts.containsKey(ID)) {
+				check(tree.select(tree.rank(ID)) == EventCounter.event(ID, model.counts.get(ID)),
+						"select(rank " + ID + ")");
+			}
+			long k = (long) (random.nextDouble() * (total + 2)) - 1;
+			long expected = EventCounter.NO_EVENT, seen = 0;
+			for (Map.Entry<Integer, Integer> entry : model.counts.entrySet()) {
+				if (k >= seen && k < seen + entry.getValue()) {
+					expected = Model.event(entry);
+				}
+				seen += entry.getValue();
+			}
+			check(tree.select(k) == expected, "select " + k);
+		}
+		if (total > 0) {
+			double percentile = 100 * random.nextDouble();
+			long nearestRank = Math.max((long) Math.ceil(percentile / 100 * total), 1);
+			check(tree.percentile(percentile) == tree.select(nearestRank - 1), "percentile " + percentile);
+			check(tree.percentile(100) == Model.event(model.counts.lastEntry()), "percentile 100");
+		}
+	}
+
+	/*
+	 * Check topK and topKInRange: the K highest counts of the range, highest
+	 * first, each event once (ties in any order).
+	 */
+	private static void checkTopK(Random random, RedBlackTree tree, Model model, int maxID) {
+		int K = random.nextInt(12);
+		checkTopK(tree.topK(K), model, Integer.MIN_VALUE, Integer.MAX_VALUE, K, "topK");
+		int ID1 = random.nextInt(maxID + 14) - 12, ID2 = ID1 + random.nextInt(maxID / 2 + 1) - 2;
+		checkTopK(tree.topKInRange(ID1, ID2, K), model, ID1, ID2, K, "topKInRange");
+	}
+
+	private static void checkTopK(long[] events, Model model, int ID1, int ID2, int K, String name) {
+		List<Integer> counts = new ArrayList<>(), expected = new ArrayList<>();
+		for (long event : events) {
+			int ID = EventCounter.eventID(event);
+			check(ID >= ID1 && ID <= ID2 && model.counts.getOrDefault(ID, 0) == EventCounter.eventCount(event),
+					name + ": event " + ID);
+			counts.add(EventCounter.eventCount(event));
+		}
+		check(Arrays.stream(events).distinct().count() == events.length, name + ": repeated event");
+		if (ID1 <= ID2) {
+			expected.addAll(model.counts.subMap(ID1, true, ID2, true).values());
+		}
+		expected.sort(Collections.reverseOrder());
+		check(counts.equals(expected.subList(0, Math.min(K, expected.size()))), name + ": counts " + counts);
+	}
+
+	/*
+	 * The parallel bulk build yields exactly the same tree as the sequential
+	 * one, for no events, a few, and enough to be split between workers.
+	 */
+	private static void parallelBuild() {
+		Random random = new Random(10);
+		for (int n : new int[] { 0, 1, 2, 3, 7, 8, 1000, 100000, 250000 }) {
+			Model model = new Model();
+			while (model.counts.size() < n) {
+				model.counts.put(random.nextInt(), 1 + random.nextInt(1000));
+			}
+			RedBlackTree sequential = new RedBlackTree(model.sortedIDs(), model.sortedCounts(), n, false);
+			RedBlackTree parallel = new RedBlackTree(model.sortedIDs(), model.sortedCounts(), n, true);
+			checkTree(parallel, model, "parallel build");
+			checkCounts(parallel, model, "parallel build");
+			check(sameTree(sequential.root, parallel.root), "parallel build differs from the sequential one");
+		}
+		passed("Parallel build");
+	}
+
+	private static boolean sameTree(RedBlackTree.TreeNode a, RedBlackTree.TreeNode b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return a.key == b.key && a.count == b.count && a.isRed == b.isRed && sameTree(a.leftChild, b.leftChild)
+				&& sameTree(a.rightChild, b.rightChild);
+	}
+
+	/*
+	 * inRange totals beyond the int range, with the range ends present,
+	 * missing, and at the extremes of the ID space.
+	 */
+	private static void inRangeTotals() {
+		Random random = new Random(13);
+		Model model = new Model();
+		model.counts.put(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		model.counts.put(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		while (model.counts.size() < 5000) {
+			model.counts.put(random.nextInt(), Integer.MAX_VALUE - random.nextInt(1000));
+		}
+		RedBlackTree tree = buildTree(model);
+		int[] IDs = model.sortedIDs();
+		for (int q = 0; q < 2000; q++) {
+			int ID1 = random.nextBoolean() ? IDs[random.nextInt(IDs.length)] : random.nextInt();
+			int ID2 = random.nextBoolean() ? IDs[random.nextInt(IDs.length)] : random.nextInt();
+			check(tree.inRange(ID1, ID2) == model.inRange(ID1, ID2), "inRange " + ID1 + " " + ID2);
+		}
+		for (int ID : new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE + 1, 0, Integer.MAX_VALUE - 1,
+				Integer.MAX_VALUE }) {
+			check(tree.inRange(Integer.MIN_VALUE, ID) == model.inRange(Integer.MIN_VALUE, ID), "inRange to " + ID);
+			check(tree.inRange(ID, Integer.MAX_VALUE) == model.inRange(ID, Integer.MAX_VALUE), "inRange from " + ID);
+		}
+		passed("inRange totals");
+	}
+
+	/*
+	 * A RangeCursor yields exactly the events of the range in ID order,
+	 * whether they're consumed one at a time, in batches or as a stream.
+	 */
+	private static void rangeScans() {
+		Random random = new Random(14);
+		for (int round = 0; round < 300; round++) {
+			Model model = randomModel(random, 300, 500);
+			RedBlackTree tree = buildTree(model);
+			for (int i = 0; i < 100; i++) {
+				randomUpdate(random, tree, model, 500, "RedBlackTree");
+			}
+			for (int q = 0; q < 10; q++) {
+				int ID1 = random.nextInt(5) == 0 ? Integer.MIN_VALUE : random.nextInt(520) - 12;
+				int ID2 = random.nextInt(5) == 0 ? Integer.MAX_VALUE : ID1 + random.nextInt(400) - 20;
+				List<Long> expected = model.events(ID1, ID2), scanned = new ArrayList<>();
+				RangeCursor cursor = tree.rangeScan(ID1, ID2);
+				while (cursor.advance()) {
+					scanned.add(EventCounter.event(cursor.ID(), cursor.count()));
+				}
+				check(!cursor.advance() && scanned.equals(expected), "rangeScan " + ID1 + " " + ID2);
+
+				scanned.clear();
+				cursor = tree.rangeScan(ID1, ID2);
+				int[] IDs = new int[1 + random.nextInt(40)], counts = new int[IDs.length];
+				for (int n; (n = cursor.nextBatch(IDs, counts)) > 0;) {
+					for (int i = 0; i < n; i++) {
+						scanned.add(EventCounter.event(IDs[i], counts[i]));
+					}
+				}
+				check(scanned.equals(expected), "rangeScan batches " + ID1 + " " + ID2);
+				check(tree.rangeScan(ID1, ID2).events().boxed().toList().equals(expected),
+						"rangeScan events " + ID1 + " " + ID2);
+			}
+		}
+		passed("RangeCursor scans");
+	}
+
+	/*
+	 * Split the spliterator at random, depth first, and check that the parts
+	 * together traverse exactly the range, in order, and that a parallel
+	 * stream over it adds up to inRange.
+	 */
+	private static void spliteratorSplits() {
+		Random random = new Random(8);
+		for (int round = 0; round < 1000; round++) {
+			Model model = randomModel(random, 300, 500);
+			RedBlackTree tree = buildTree(model);
+			for (int i = 0; i < 50; i++) {
+				randomUpdate(random, tree, model, 500, "RedBlackTree");
+			}
+			for (int q = 0; q < 10; q++) {
+				int ID1 = random.nextInt(5) == 0 ? Integer.MIN_VALUE : random.nextInt(520) - 12;
+				int ID2 = random.nextInt(5) == 0 ? Integer.MAX_VALUE : ID1 + random.nextInt(400) - 20;
+				List<Long> traversed = new ArrayList<>();
+				traverse(random, tree.spliterator(ID1, ID2), traversed, 0);
+				check(traversed.equals(model.events(ID1, ID2)), "spliterator " + ID1 + " " + ID2);
+				check(tree.events(ID1, ID2, true).map(EventCounter::eventCount).sum() == model.inRange(ID1, ID2),
+						"parallel events " + ID1 + " " + ID2);
+			}
+		}
+		passed("EventSpliterator splits");
+	}
+
+	private static void traverse(Random random, Spliterator.OfLong spliterator, List<Long> traversed, int depth) {
+		if (depth < 12 && random.nextInt(4) != 0) {
+			Spliterator.OfLong prefix = spliterator.trySplit();
+			if (prefix != null) {
+				check(prefix.estimateSize() >= 0 && spliterator.estimateSize() >= 0, "size estimate");
+				traverse(random, prefix, traversed, depth + 1);
+			}
+		}
+		if (random.nextBoolean()) {
+			while (spliterator.tryAdvance((long event) -> traversed.add(event))) {
+			}
+		} else {
+			spliterator.forEachRemaining((long event) -> traversed.add(event));
+		}
+	}
+
+	/*
+	 * A snapshot loads back exactly the events it was written from, whatever
+	 * their IDs and counts (0 and negative ones, as increase(ID, 0) and the
+	 * events file can give, included), and a damaged one fails to load.
+	 */
+	private static void snapshotRoundTrip() throws IOException {
+		File snapshotFile = new File(directory, "round-trip.snapshot");
+		Random random = new Random(15);
+		for (int round = 0; round < 200; round++) {
+			Model model = round % 2 == 0 ? randomModel(random, 1000, 5000) : new Model();
+			if (round % 2 == 1) {
+				int n = random.nextInt(1000);
+				for (int i = 0; i < n; i++) {
+					int count = random.nextInt(3) == 0 ? random.nextInt(3) - 1 : random.nextInt();
+					model.counts.put(random.nextInt(), count);
+				}
+			}
+			if (round % 10 == 1) {
+				model.counts.put(Integer.MIN_VALUE, Integer.MIN_VALUE);
+				model.counts.put(Integer.MAX_VALUE, Integer.MAX_VALUE);
+			}
+			RedBlackTree tree = buildTree(model);
+			int ID = random.nextInt(100);
+			check(tree.increase(ID, 0) == model.increase(ID, 0), "increase " + ID + " 0");
+			long logSequenceNumber = random.nextLong() >>> 1;
+			EventSnapshot.write(tree, snapshotFile, logSequenceNumber);
+			EventSnapshot snapshot = EventSnapshot.load(snapshotFile);
+			check(snapshot.logSequenceNumber == logSequenceNumber, "snapshot logSequenceNumber");
+			check(snapshot.numberOfEvents == model.counts.size()
+					&& Arrays.equals(snapshot.sortedIDs, model.sortedIDs())
+					&& Arrays.equals(snapshot.sortedCounts, model.sortedCounts()), "snapshot events");
+			RedBlackTree restored = EventSnapshot.restore(snapshotFile);
+			checkTree(restored, model, "restored snapshot");
+			checkCounts(restored, model, "restored snapshot");
+
+			byte[] bytes = Files.readAllBytes(snapshotFile.toPath());
+			bytes[random.nextInt(bytes.length)] ^= 1 << random.nextInt(8);
+			Files.write(snapshotFile.toPath(), bytes);
+			try {
+				EventSnapshot.load(snapshotFile);
+				check(false, "loaded a damaged snapshot");
+			} catch (IOException e) {
+				// Expected.
+			}
+		}
+		passed("Snapshot round trip");
+	}
+
+	/*
+	 * Sessions of random updates through the write-ahead log, each ending in
+	 * a snapshot (with or without the log reset after it), a torn group at
+	 * the end of the log, just a commit, or the log lost behind the
+	 * snapshot; every session must start from the model's events.
+	 */
+	private static void snapshotAndLogRoundTrip() throws IOException {
+		File snapshotFile = new File(directory, "counter.snapshot");
+		File logFile = new File(directory, "counter.snapshot.wal");
+		for (int round = 0; round < 60; round++) {
+			Random random = new Random(5 + round);
+			snapshotFile.delete();
+			logFile.delete();
+			Model model = new Model();
+			for (int session = 0; session < 6; session++) {
+				RedBlackTree tree = new RedBlackTree();
+				long logSequenceNumber = 0;
+				if (snapshotFile.exists()) {
+					EventSnapshot snapshot = EventSnapshot.load(snapshotFile);
+					tree = snapshot.buildTree();
+					logSequenceNumber = snapshot.logSequenceNumber;
+				}
+				WriteAheadLog log = WriteAheadLog.open(logFile, random.nextInt(3) == 0 ? 1000 : 0, logSequenceNumber);
+				log.replay(tree, logSequenceNumber);
+				checkTree(tree, model, "recovered tree");
+				check(tree.events(Integer.MIN_VALUE, Integer.MAX_VALUE, false).boxed().toList()
+						.equals(model.events(Integer.MIN_VALUE, Integer.MAX_VALUE)), "recovered events");
+
+				EventCounter counter = new LoggedEventCounter(tree, log);
+				int operations = random.nextInt(5000);
+				for (int i = 0; i < operations; i++) {
+					randomUpdate(random, counter, model, 300, "LoggedEventCounter");
+					if (random.nextInt(500) == 0) {
+						log.commit();
+					}
+				}
+				switch (random.nextInt(5)) {
+				case 0:
+					log.sync();
+					EventSnapshot.write(tree, snapshotFile, log.nextSequenceNumber());
+					log.reset(log.nextSequenceNumber());
+					log.close();
+					break;
+				case 1:
+					log.sync();
+					EventSnapshot.write(tree, snapshotFile, log.nextSequenceNumber());
+					log.close();
+					break;
+				case 2:
+					log.close();
+					try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+						byte[] tornGroup = new byte[4 + random.nextInt(40)];
+						random.nextBytes(tornGroup);
+						tornGroup[0] = tornGroup[1] = tornGroup[2] = 0;
+						tornGroup[3] = (byte) (1 + random.nextInt(3));
+						out.write(tornGroup);
+					}
+					break;
+				case 3:
+					log.close();
+					break;
+				default:
+					log.sync();
+					EventSnapshot.write(tree, snapshotFile, log.nextSequenceNumber());
+					log.close();
+					// Lose everything after the log's header.
+					try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+						file.setLength(16);
+					}
+					break;
+				}
+			}
+		}
+		passed("Snapshot and write-ahead log");
+	}
+
+	/*
+	 * A committed group is forced within the fsync interval even if nothing
+	 * is committed after it, and a log closed before its scheduled force is
+	 * left alone by it.
+	 */
+	private static void logForcedWithinInterval() throws Exception {
+		long intervalMillis = 200;
+		for (int round = 0; round < 3; round++) {
+			File logFile = new File(directory, "timed.wal");
+			logFile.delete();
+			WriteAheadLog log = WriteAheadLog.open(logFile, intervalMillis, 0);
+			log.append(WriteAheadLog.INCREASE, round, 1);
+			long committed = System.nanoTime();
+			log.commit();
+			check(!log.isForced(), "log forced before the interval is up");
+			while (!log.isForced() && System.nanoTime() - committed < 5000 * 1000000L) {
+				Thread.sleep(5);
+			}
+			long forcedAfterMillis = (System.nanoTime() - committed) / 1000000;
+			check(log.isForced(), "log not forced " + forcedAfterMillis + " ms after the commit");
+			// The timer thread may be late, but not by another interval.
+			check(forcedAfterMillis < 2 * intervalMillis, "log forced only after " + forcedAfterMillis + " ms");
+
+			log.append(WriteAheadLog.REDUCE, round, 1);
+			log.commit();
+			log.close();
+			Thread.sleep(intervalMillis + 50);
+			log = WriteAheadLog.open(logFile, intervalMillis, 0);
+			RedBlackTree tree = new RedBlackTree();
+			check(log.replay(tree, 0) == 2 && tree.numberOfEvents == 0, "timed log replay");
+			log.close();
+		}
+		passed("Write-ahead log force interval");
+	}
+
+	/*
+	 * An increase which would overflow a count throws ArithmeticException and
+	 * changes nothing, in every counter and in a batch, and a command which
+	 * would is reported while the following ones still run.
+	 */
+	private static void overflowLeavesCountersIntact() throws IOException {
+		int[] IDs = { 1, 2, 3, 4, 5 }, counts = { 1, 2, Integer.MAX_VALUE - 7, 3, 4 };
+		Model model = new Model();
+		for (int i = 0; i < IDs.length; i++) {
+			model.counts.put(IDs[i], counts[i]);
+		}
+		EventCounter[] counters = { new RedBlackTree(IDs, counts, 5), new ArrayRedBlackTree(IDs, counts, 5),
+				MappedRedBlackTree.create(new File(directory, "overflow.counter"), IDs, counts, 5),
+				new StripedEventCounter(IDs, counts, 5, 2),
+				new OptimisticEventCounter(new RedBlackTree(IDs, counts, 5)),
+				new PersistentRedBlackTree(IDs, counts, 5) };
+		for (EventCounter counter : counters) {
+			String name = counter.getClass().getSimpleName();
+			try {
+				counter.increase(3, 8);
+				check(false, name + ": overflowing increase didn't throw");
+			} catch (ArithmeticException e) {
+				// Expected.
+			}
+			checkCounts(counter, model, name + " after overflow");
+			compareQueries(new Random(4), counter, model, 10, name + " after overflow");
+			if (counter instanceof RedBlackTree) {
+				checkTree((RedBlackTree) counter, model, name + " after overflow");
+			} else if (counter instanceof MappedRedBlackTree) {
+				((MappedRedBlackTree) counter).close();
+			}
+		}
+
+		RedBlackTree tree = new RedBlackTree(IDs, counts, 5);
+		try {
+			tree.applyUpdates(new int[] { 1, 2, 3, 5, 6 }, new int[] { 5, -5, 20, 5, 1 }, 5);
+			check(false, "overflowing batch didn't throw");
+		} catch (ArithmeticException e) {
+			// Expected.
+		}
+		checkTree(tree, model, "overflowing batch");
+		checkCounts(tree, model, "overflowing batch");
+
+		String output = runCommands(tree, "increase 3 7\nincrease 3 1\ncount 3\nincrease 1 2\n");
+		check(output.equals(Integer.MAX_VALUE + "\n\nCount of event 3 would overflow, left unchanged ! \n"
+				+ Integer.MAX_VALUE + "\n3\n"), "overflow command output:\n" + output);
+		passed("Overflow");
+	}
+
+	/*
+	 * Check the left-leaning red-black tree of a PersistentRedBlackTree
+	 * version, whose keys must be in (low, high), and return its black
+	 * height.
+	 */
+	private static int checkPersistentSubtree(PersistentRedBlackTree.Node node, long low, long high, String name) {
+		if (node == null) {
+			return 1;
+		}
+		check(node.key > low && node.key < high, name + ": search order at " + node.key);
+		check(node.rightChild == null || !node.rightChild.isRed, name + ": red right child of " + node.key);
+		check(!node.isRed || node.leftChild == null || !node.leftChild.isRed, name + ": red child of red " + node.key);
+		int leftHeight = checkPersistentSubtree(node.leftChild, low, node.key, name);
+		int rightHeight = checkPersistentSubtree(node.rightChild, node.key, high, name);
+		check(leftHeight == rightHeight, name + ": black height at " + node.key);
+		long subtreeCount = node.count;
+		for (PersistentRedBlackTree.Node child : new PersistentRedBlackTree.Node[] { node.leftChild,
+				node.rightChild }) {
+			if (child != null) {
+				subtreeCount += child.subtreeCount;
+			}
+		}
+		check(node.subtreeCount == subtreeCount, name + ": subtreeCount at " + node.key);
+		return leftHeight + (node.isRed ? 0 : 1);
+	}
+
+	private static void checkPersistentTree(PersistentRedBlackTree.Version version, Model model, String name) {
+		check(version.root == null || !version.root.isRed, name + ": root must be black");
+		checkPersistentSubtree(version.root, Long.MIN_VALUE, Long.MAX_VALUE, name);
+		check(version.numberOfEvents() == model.counts.size(), name + ": numberOfEvents");
+		List<Long> scanned = new ArrayList<>();
+		version.scan(Integer.MIN_VALUE, Integer.MAX_VALUE, scanned::add);
+		check(scanned.equals(model.events(Integer.MIN_VALUE, Integer.MAX_VALUE)), name + ": events");
+	}
+
+	/*
+	 * The bottom up build yields a valid left-leaning red-black tree for
+	 * every number of events up to 300 and a sample up to 3000 (every mix of
+	 * 2-nodes and 3-nodes), which the updates then keep valid; an event
+	 * increased by 0 is present, and a later increase adds to it rather than
+	 * inserting it again.
+	 */
+	private static void persistentBuild() {
+		Random random = new Random(8);
+		for (int n = 0; n < 3000; n += n < 300 ? 1 : 1 + random.nextInt(100)) {
+			Model model = new Model();
+			for (int i = 0; i < n; i++) {
+				model.counts.put(2 * i, 1 + random.nextInt(10));
+			}
+			PersistentRedBlackTree tree = new PersistentRedBlackTree(model.sortedIDs(), model.sortedCounts(), n);
+			checkPersistentTree(tree.pin(), model, "persistent build of " + n);
+			for (int operation = 0; operation < 10; operation++) {
+				randomUpdate(random, tree, model, 2 * n, "PersistentRedBlackTree");
+				checkPersistentTree(tree.pin(), model, "persistent update of " + n);
+			}
+		}
+
+		PersistentRedBlackTree tree = new PersistentRedBlackTree();
+		check(tree.increase(5, 0) == 0 && tree.pin().numberOfEvents() == 1, "increase by 0");
+		check(tree.increase(5, 3) == 3 && tree.pin().numberOfEvents() == 1, "increase of a count of 0");
+		Model model = new Model();
+		model.increase(5, 3);
+		checkPersistentTree(tree.pin(), model, "increase of a count of 0");
+		check(tree.reduce(5, 3) == 0 && tree.increase(6, 0) == 0 && tree.reduce(6, 1) == 0, "reduce to 0");
+		check(tree.pin().numberOfEvents() == 0 && tree.pin().root == null, "reduced to no events");
+		passed("PersistentRedBlackTree build");
+	}
+
+	/*
+	 * A pinned version keeps answering as of the moment it was pinned,
+	 * however the counter changes afterwards.
+	 */
+	private static void persistentVersionIsolation() {
+		Random random = new Random(7);
+		for (int round = 0; round < 100; round++) {
+			Model model = randomModel(random, 100, 300);
+			PersistentRedBlackTree tree = new PersistentRedBlackTree(model.sortedIDs(), model.sortedCounts(),
+					model.counts.size());
+			List<PersistentRedBlackTree.Version> versions = new ArrayList<>();
+			List<Model> models = new ArrayList<>();
+			for (int operation = 0; operation < 500; operation++) {
+				randomUpdate(random, tree, model, 300, "PersistentRedBlackTree");
+				if (random.nextInt(25) == 0) {
+					versions.add(tree.pin());
+					Model pinned = new Model();
+					pinned.counts.putAll(model.counts);
+					models.add(pinned);
+				}
+			}
+			for (int v = 0; v < versions.size(); v++) {
+				PersistentRedBlackTree.Version version = versions.get(v);
+				Model pinned = models.get(v);
+				checkPersistentTree(version, pinned, "pinned version");
+				for (int q = 0; q < 20; q++) {
+					int ID = random.nextInt(320) - 12, ID2 = ID + random.nextInt(300);
+					check(version.count(ID) == pinned.counts.getOrDefault(ID, 0), "pinned count " + ID);
+					check(version.next(ID) == Model.event(pinned.counts.higherEntry(ID)), "pinned next " + ID);
+					check(version.previous(ID) == Model.event(pinned.counts.lowerEntry(ID)), "pinned previous " + ID);
+					check(version.inRange(ID, ID2) == pinned.inRange(ID, ID2), "pinned inRange " + ID);
+					List<Long> scanned = new ArrayList<>();
+					version.scan(ID, ID2, scanned::add);
+					check(scanned.equals(pinned.events(ID, ID2)), "pinned scan " + ID);
+				}
+			}
+		}
+		passed("PersistentRedBlackTree version isolation");
+	}
+
+	/*
+	 * Add partitions to a PartitionedEventCounter below, between and above
+	 * the existing ones (and at the extremes of the ID space), while
+	 * updating it: each partition must end up with exactly the model's
+	 * events of its range, and the queries spanning them must agree with the
+	 * model, gathered with and without an executor.
+	 */
+	private static void partitionGrowth() throws InterruptedException {
+		Random random = new Random(9);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			for (int round = 0; round < 60; round++) {
+				int maxID = round < 20 ? 30 : 2000;
+				Model model = randomModel(random, 200, maxID);
+				int[] IDs = model.sortedIDs(), counts = model.sortedCounts(), lowestID = RangePartitioning
+						.evenBoundaries(IDs, IDs.length, 3);
+				RedBlackTree[] parts = RangePartitioning.buildParts(IDs, counts, IDs.length, lowestID);
+				TreeMap<Integer, RedBlackTree> partitions = new TreeMap<>();
+				for (int p = 0; p < parts.length; p++) {
+					partitions.put(lowestID[p], parts[p]);
+				}
+				PartitionedEventCounter counter = new PartitionedEventCounter(parts, lowestID,
+						round % 2 == 0 ? null : executor);
+				for (int step = 0; step < 12; step++) {
+					int boundary;
+					switch (step % 4) {
+					case 0:
+						// Below the existing partitions' boundaries.
+						boundary = step == 0 ? Integer.MIN_VALUE + 1 : partitions.higherKey(Integer.MIN_VALUE) - 1
+								- random.nextInt(5);
+						break;
+					case 1:
+						// Above them.
+						boundary = step == 1 ? Integer.MAX_VALUE
+								: partitions.headMap(Integer.MAX_VALUE).lastKey() + 1 + random.nextInt(maxID);
+						break;
+					default:
+						boundary = random.nextInt(maxID + 20) - 10;
+						break;
+					}
+					if (partitions.containsKey(boundary) || boundary == Integer.MIN_VALUE) {
+						try {
+							counter.addPartition(boundary, new RedBlackTree());
+							check(false, "addPartition at the existing boundary " + boundary);
+						} catch (IllegalArgumentException e) {
+							// Expected.
+						}
+					} else {
+						RedBlackTree node = new RedBlackTree();
+						counter.addPartition(boundary, node);
+						partitions.put(boundary, node);
+					}
+					check(counter.numberOfPartitions() == partitions.size(), "numberOfPartitions");
+					for (int operation = 0; operation < 50; operation++) {
+						randomUpdate(random, counter, model, maxID, "PartitionedEventCounter");
+					}
+					compareQueries(random, counter, model, maxID, "PartitionedEventCounter");
+					for (Map.Entry<Integer, RedBlackTree> partition : partitions.entrySet()) {
+						Integer next = partitions.higherKey(partition.getKey());
+						int low = partition.getKey(), high = next == null ? Integer.MAX_VALUE : next - 1;
+						Model part = new Model();
+						part.counts.putAll(model.counts.subMap(low, true, high, true));
+						checkTree(partition.getValue(), part, "partition from " + low);
+						check(partition.getValue().events(Integer.MIN_VALUE, Integer.MAX_VALUE, false).boxed().toList()
+								.equals(part.events(low, high)), "events of the partition from " + low);
+						check(counter.partitionOf(low) == partitions.headMap(low).size(), "partitionOf " + low);
+					}
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		passed("PartitionedEventCounter growth");
+	}
+
+	/*
+	 * A PartitionedEventCounter over RemoteEventCounter clients of
+	 * CounterServers on the loopback interface, one of them added with
+	 * addPartition, agrees with the model, and an overflowing increase is
+	 * rethrown by the client and changes nothing.
+	 */
+	private static void remotePartitions() throws Exception {
+		Random random = new Random(10);
+		int maxID = 2000;
+		Model model = randomModel(random, 500, maxID);
+		int[] IDs = model.sortedIDs(), lowestID = RangePartitioning.evenBoundaries(IDs, IDs.length, 3);
+		RedBlackTree[] parts = RangePartitioning.buildParts(IDs, model.sortedCounts(), IDs.length, lowestID);
+		List<CounterServer> servers = new ArrayList<>();
+		List<RemoteEventCounter> clients = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int p = 0; p <= parts.length; p++) {
+				CounterServer server = new CounterServer(p < parts.length ? parts[p] : new RedBlackTree(), 0);
+				servers.add(server);
+				new Thread(server, "counter-server").start();
+				clients.add(new RemoteEventCounter("localhost", server.port()));
+			}
+			PartitionedEventCounter counter = new PartitionedEventCounter(
+					clients.subList(0, parts.length).toArray(new EventCounter[0]), lowestID, executor);
+			for (int operation = 0; operation < 3000; operation++) {
+				randomUpdate(random, counter, model, maxID, "remote partitions");
+				if (operation == 1500) {
+					counter.addPartition(lowestID[1] + (lowestID[2] - lowestID[1]) / 2, clients.get(parts.length));
+				}
+				if (operation % 100 == 0) {
+					compareQueries(random, counter, model, maxID, "remote partitions");
+				}
+			}
+			checkCounts(counter, model, "remote partitions");
+			int ID = model.counts.lastKey();
+			try {
+				counter.increase(ID, Integer.MAX_VALUE);
+				check(false, "remote overflowing increase didn't throw");
+			} catch (ArithmeticException e) {
+				// Expected.
+			}
+			check(counter.count(ID) == model.counts.get(ID), "count after a remote overflow");
+		} finally {
+			for (RemoteEventCounter client : clients) {
+				client.close();
+			}
+			for (CounterServer server : servers) {
+				server.close();
+			}
+			executor.shutdown();
+		}
+		passed("Remote partitions");
+	}
+
+	/*
+	 * The response frame a CounterServer owes for the request, from the
+	 * reference tree.
+	 */
+	private static void expectResponse(ByteBuffer responses, RedBlackTree reference, byte opcode, int ID, int amount) {
+		byte status = CounterServer.OK;
+		long result = 0;
+		try {
+			switch (opcode) {
+			case CounterServer.INCREASE:
+				result = reference.increase(ID, amount);
+				break;
+			case CounterServer.REDUCE:
+				result = reference.reduce(ID, amount);
+				break;
+			case CounterServer.COUNT:
+				result = reference.count(ID);
+				break;
+			case CounterServer.INRANGE:
+				result = reference.inRange(ID, amount);
+				break;
+			case CounterServer.NEXT:
+				result = reference.next(ID);
+				break;
+			case CounterServer.PREVIOUS:
+				result = reference.previous(ID);
+				break;
+			default:
+				status = CounterServer.INVALID;
+				break;
+			}
+		} catch (ArithmeticException e) {
+			status = CounterServer.OVERFLOW;
+		}
+		responses.put(status).putLong(result);
+	}
+
+	/*
+	 * A pipelining client of the server on the port sends megabytes more
+	 * requests than the sockets buffer (a few unknown opcodes and
+	 * overflowing increases among them) in fragments of random size,
+	 * splitting the 9 byte frames anywhere, and doesn't read any response
+	 * for a while, so the server has to stop
+	 * reading it; another client's queries are served meanwhile. The
+	 * responses, read back in fragments of random size, must be exactly the
+	 * reference tree's, and the server closes the connection once the client
+	 * has shut its output and every response is written.
+	 */
+	private static void pipelinedClient(int port, Random random, String name) throws Exception {
+		RedBlackTree reference = new RedBlackTree();
+		int requests = 1000000;
+		ByteBuffer requestFrames = ByteBuffer.allocate(requests * CounterServer.REQUEST_BYTES);
+		ByteBuffer expected = ByteBuffer.allocate(requests * CounterServer.RESPONSE_BYTES);
+		for (int i = 0; i < requests; i++) {
+			byte opcode = (byte) (random.nextInt(100) == 0 ? 6 + random.nextInt(120) : random.nextInt(6));
+			int ID = random.nextInt(1000), amount = 1 + random.nextInt(12);
+			if (opcode == CounterServer.INRANGE) {
+				amount = ID + random.nextInt(100) - 10;
+			} else if (opcode == CounterServer.INCREASE && random.nextInt(1000) == 0) {
+				amount = Integer.MAX_VALUE;
+			}
+			requestFrames.put(opcode).putInt(ID).putInt(amount);
+			expectResponse(expected, reference, opcode, ID, amount);
+		}
+		requestFrames.flip();
+
+		SocketChannel client = SocketChannel.open();
+		client.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 14);
+		client.connect(new InetSocketAddress("localhost", port));
+		RemoteEventCounter other = new RemoteEventCounter("localhost", port);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		try {
+			Random fragments = new Random(random.nextLong());
+			Thread writer = new Thread(() -> {
+				try {
+					while (requestFrames.hasRemaining()) {
+						ByteBuffer fragment = requestFrames.slice();
+						fragment.limit(Math.min(fragment.limit(), 1 + fragments.nextInt(40)));
+						while (fragment.hasRemaining()) {
+							client.write(fragment);
+						}
+						requestFrames.position(requestFrames.position() + fragment.position());
+					}
+					client.shutdownOutput();
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+			writer.start();
+
+			// The server stops reading the stalled client, but not the other.
+			Thread.sleep(300);
+			check(requestFrames.hasRemaining(), name + ": buffered all the requests of a client not reading");
+			check(other.count(5000) == 0 && other.inRange(2000, 3000) == 0, name + ": other client while one stalls");
+
+			ByteBuffer received = ByteBuffer.allocate(expected.capacity() + 1);
+			while (received.position() < expected.capacity()) {
+				received.limit(Math.min(received.capacity(), received.position() + 1 + random.nextInt(256)));
+				check(client.read(received) >= 0, name + ": connection closed after " + received.position() + " bytes");
+			}
+			received.limit(received.capacity());
+			check(client.read(received) < 0, name + ": connection not closed after the last response");
+			writer.join();
+			check(failure.get() == null, name + ": request writer failed: " + failure.get());
+			received.flip();
+			expected.flip();
+			check(received.equals(expected), name + ": responses differ from the reference tree's");
+		} finally {
+			client.close();
+			other.close();
+		}
+	}
+
+	private static void serverFrames() throws Exception {
+		CounterServer server = new CounterServer(new RedBlackTree(), 0);
+		new Thread(server, "counter-server").start();
+		try {
+			pipelinedClient(server.port(), new Random(11), "CounterServer");
+		} finally {
+			server.close();
+		}
+		passed("CounterServer frames");
+	}
+
+	/*
+	 * Producers submit chains of commands to a SingleWriterEventCounter,
+	 * reusing them like the ThreadedCounterServer connections do, each on
+	 * IDs of its own so that every result is known from its own model,
+	 * while other threads call the EventCounter operations on shared IDs.
+	 * Every chain must run in order, no update may be lost, and after close()
+	 * the tree must hold exactly the models' events.
+	 */
+	private static void singleWriterProducers() throws Exception {
+		RedBlackTree tree = new RedBlackTree();
+		SingleWriterEventCounter counter = new SingleWriterEventCounter(tree);
+		int producers = 8, chains = 4000, sharedThreads = 4, sharedUpdates = 20000, sharedIDs = 100;
+		List<Model> models = new ArrayList<>();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < producers; t++) {
+			int producer = t;
+			Model model = new Model();
+			models.add(model);
+			threads.add(new Thread(() -> {
+				try {
+					Random random = new Random(30 + producer);
+					SingleWriterEventCounter.Command[] commands = new SingleWriterEventCounter.Command[64];
+					long[] expected = new long[commands.length];
+					for (int c = 0; c < chains; c++) {
+						int length = 1 + random.nextInt(commands.length);
+						for (int i = 0; i < length; i++) {
+							if (commands[i] == null) {
+								commands[i] = new SingleWriterEventCounter.Command();
+							}
+							int ID = 1000 + producers * random.nextInt(50) + producer, m = 1 + random.nextInt(12);
+							byte opcode = (byte) random.nextInt(3);
+							commands[i].set(opcode, ID, m);
+							commands[i].next = i == 0 ? null : commands[i - 1];
+							expected[i] = opcode == CounterServer.INCREASE ? model.increase(ID, m)
+									: opcode == CounterServer.REDUCE ? model.reduce(ID, m)
+											: model.counts.getOrDefault(ID, 0);
+						}
+						counter.submit(commands[0], commands[length - 1]);
+						commands[length - 1].await();
+						for (int i = 0; i < length; i++) {
+							check(commands[i].status == CounterServer.OK && commands[i].result == expected[i],
+									"SingleWriterEventCounter: command " + i + " of a chain of " + length);
+						}
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}));
+		}
+		for (int t = 0; t < sharedThreads; t++) {
+			Random random = new Random(40 + t);
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < sharedUpdates; i++) {
+						int ID = random.nextInt(sharedIDs);
+						check(counter.increase(ID, 2) >= 2, "SingleWriterEventCounter: increase");
+						check(counter.reduce(ID, 1) >= 1, "SingleWriterEventCounter: reduce");
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		check(failure.get() == null, "SingleWriterEventCounter: " + failure.get());
+		try {
+			counter.increase(999, Integer.MAX_VALUE);
+			counter.increase(999, Integer.MAX_VALUE);
+			check(false, "SingleWriterEventCounter: overflowing increase didn't throw");
+		} catch (ArithmeticException e) {
+			// Expected.
+		}
+		counter.reduce(999, Integer.MAX_VALUE);
+		counter.close();
+
+		Model all = new Model();
+		for (Model model : models) {
+			all.counts.putAll(model.counts);
+		}
+		long shared = tree.inRange(0, sharedIDs - 1);
+		check(shared == (long) sharedThreads * sharedUpdates, "SingleWriterEventCounter: lost shared updates");
+		for (int ID = 0; ID < sharedIDs; ID++) {
+			if (tree.count(ID) > 0) {
+				all.counts.put(ID, tree.count(ID));
+			}
+		}
+		checkTree(tree, all, "SingleWriterEventCounter");
+		checkCounts(tree, all, "SingleWriterEventCounter");
+		passed("SingleWriterEventCounter producers");
+	}
+
+	/*
+	 * A ThreadedCounterServer answers a pipelining client exactly like
+	 * CounterServer does, then serves concurrent RemoteEventCounter clients,
+	 * each on IDs of its own, against their models.
+	 */
+	private static void threadedServer() throws Exception {
+		RedBlackTree tree = new RedBlackTree();
+		SingleWriterEventCounter counter = new SingleWriterEventCounter(tree);
+		ThreadedCounterServer server = new ThreadedCounterServer(counter, 0);
+		new Thread(server, "threaded-counter-server").start();
+		try {
+			pipelinedClient(server.port(), new Random(13), "ThreadedCounterServer");
+
+			int clients = 6;
+			AtomicReference<Throwable> failure = new AtomicReference<>();
+			List<Thread> threads = new ArrayList<>();
+			for (int c = 0; c < clients; c++) {
+				int client = c;
+				threads.add(new Thread(() -> {
+					try {
+						RemoteEventCounter remote = new RemoteEventCounter("localhost", server.port());
+						try {
+							Random random = new Random(50 + client);
+							Model model = new Model();
+							for (int i = 0; i < 3000; i++) {
+								int ID = 10000 + clients * random.nextInt(100) + client, m = 1 + random.nextInt(12);
+								if (random.nextBoolean()) {
+									check(remote.increase(ID, m) == model.increase(ID, m), "remote increase");
+								} else {
+									check(remote.reduce(ID, m) == model.reduce(ID, m), "remote reduce");
+								}
+							}
+							checkCounts(remote, model, "ThreadedCounterServer client " + client);
+						} finally {
+							remote.close();
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}));
+			}
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			check(failure.get() == null, "ThreadedCounterServer: " + failure.get());
+		} finally {
+			server.close();
+			counter.close();
+		}
+		passed("ThreadedCounterServer");
+	}
+
+	/*
+	 * Deleting every event of a large tree in random order allocates nothing
+	 * (no sentinel leaf per delete), where the thread's allocations can be
+	 * measured, and leaves it empty; a smaller tree is checked after every
+	 * delete. deleteNode() rejects a node with two children.
+	 */
+	private static void sentinelFreeDeletes() {
+		Random random = new Random(16);
+		int n = 1 << 17;
+		Model model = new Model();
+		for (int i = 0; i < n; i++) {
+			model.counts.put(2 * i, 1 + random.nextInt(5));
+		}
+		RedBlackTree tree = buildTree(model);
+		int[] order = model.sortedIDs();
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1), ID = order[i];
+			order[i] = order[j];
+			order[j] = ID;
+		}
+		Model smallModel = new Model();
+		for (int i = 0; i < 2000; i++) {
+			smallModel.counts.put(i, 1);
+		}
+		RedBlackTree small = buildTree(smallModel);
+		for (int i = 0; i < 2000; i++) {
+			int ID = random.nextInt(2000);
+			check(small.reduce(ID, 1) == smallModel.reduce(ID, 1), "delete " + ID);
+			checkTree(small, smallModel, "deletes");
+		}
+
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		boolean measured = threads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+		long threadID = Thread.currentThread().getId(), before = 0;
+		if (measured) {
+			((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+			before = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadID);
+		}
+		for (int ID : order) {
+			tree.reduce(ID, Integer.MAX_VALUE);
+		}
+		if (measured) {
+			long allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadID) - before;
+			check(allocated < n, "deletes allocated " + allocated + " bytes");
+		}
+		check(tree.root == null && tree.numberOfEvents == 0, "tree not empty after deleting every event");
+
+		RedBlackTree three = new RedBlackTree(new int[] { 1, 2, 3 }, new int[] { 1, 1, 1 }, 3);
+		try {
+			three.deleteNode(three.root);
+			check(false, "deleteNode of a node with two children");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		passed("Sentinel-free deletes" + (measured ? "" : " (allocation not measured)"));
+	}
+
+	private interface CounterFactory {
+		EventCounter create(int sortedIDs[], int sortedCounts[], int totalNumberOfEvents) throws IOException;
+	}
+
+	/*
+	 * An Event Counter built from the sorted arrays against the model (the
+	 * IDs and seed are those of the RedBlackTree model check).
+	 */
+	private static void modelCheck(String name, CounterFactory factory) throws IOException {
+		Random random = new Random(2);
+		for (int round = 0; round < 100; round++) {
+			int maxID = round < 40 ? 30 : 2000;
+			Model model = randomModel(random, 200, maxID);
+			EventCounter counter = factory.create(model.sortedIDs(), model.sortedCounts(), model.counts.size());
+			for (int operation = 0; operation < 300; operation++) {
+				randomUpdate(random, counter, model, maxID, name);
+				if (operation % 25 == 0) {
+					compareQueries(random, counter, model, maxID, name);
+				}
+			}
+			checkCounts(counter, model, name);
+			compareQueries(random, counter, model, maxID, name);
+			if (counter instanceof MappedRedBlackTree) {
+				((MappedRedBlackTree) counter).close();
+			}
+		}
+		passed(name + " model check");
+	}
+
+	/*
+	 * Threads increase and reduce random IDs concurrently, while another one
+	 * reads, and no update may be lost. Each thread increases an ID by 2
+	 * before reducing it by 1, so no count drops to 0 and the final count of
+	 * each ID is the number of times it was picked.
+	 */
+	private static void concurrentUpdates(String name, EventCounter counter) throws InterruptedException {
+		int threads = 4, updates = 50000, maxID = 500;
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		AtomicBoolean done = new AtomicBoolean();
+		List<Thread> writers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Random random = new Random(20 + t);
+			writers.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < updates; i++) {
+						int ID = random.nextInt(maxID);
+						check(counter.increase(ID, 2) >= 2, name + ": increase");
+						check(counter.reduce(ID, 1) >= 1, name + ": reduce");
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}));
+		}
+		Thread reader = new Thread(() -> {
+			try {
+				Random random = new Random(30);
+				while (!done.get()) {
+					long total = counter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+					check(total >= 0 && total <= 2L * threads * updates, name + ": concurrent inRange " + total);
+					int ID = random.nextInt(maxID);
+					long next = counter.next(ID);
+					check(next == EventCounter.NO_EVENT
+							|| (EventCounter.eventID(next) > ID && EventCounter.eventCount(next) > 0),
+							name + ": concurrent next " + ID);
+				}
+			} catch (Throwable e) {
+				failure.compareAndSet(null, e);
+			}
+		});
+		reader.start();
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		done.set(true);
+		reader.join();
+		if (failure.get() != null) {
+			throw new AssertionError(name + ": concurrent updates failed", failure.get());
+		}
+		Model model = new Model();
+		for (int t = 0; t < threads; t++) {
+			Random random = new Random(20 + t);
+			for (int i = 0; i < updates; i++) {
+				model.increase(random.nextInt(maxID), 1);
+			}
+		}
+		checkCounts(counter, model, name);
+		check(counter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE) == (long) threads * updates,
+				name + ": total after concurrent updates");
+		passed(name + " concurrent updates");
+	}
+
+	/*
+	 * A counter file whose process died before close() is rebuilt by open(),
+	 * with every update, events with a count of 0 included. A recovery which
+	 * fails (here, because its temporary file can't be created) leaves the
+	 * damaged counter file as it was, to be recovered later.
+	 */
+	private static void mappedCounterRecovery() throws IOException {
+		File counterFile = new File(directory, "recovery.counter");
+		File temporaryFile = new File(directory, "recovery.counter.tmp");
+		Random random = new Random(6);
+		for (int round = 0; round < 20; round++) {
+			Model model = randomModel(random, 2000, 5000);
+			MappedRedBlackTree tree = MappedRedBlackTree.create(counterFile, model.sortedIDs(), model.sortedCounts(),
+					model.counts.size());
+			for (int i = 0; i < 5000; i++) {
+				randomUpdate(random, tree, model, 5000, "MappedRedBlackTree");
+				if (i % 500 == 0) {
+					int ID = random.nextInt(5000);
+					check(tree.increase(ID, 0) == model.increase(ID, 0), "MappedRedBlackTree: increase " + ID + " 0");
+				}
+			}
+			// No close(): the process died.
+			if (round % 4 == 0) {
+				byte[] damaged = Files.readAllBytes(counterFile.toPath());
+				File obstacle = new File(temporaryFile, "obstacle");
+				temporaryFile.mkdir();
+				obstacle.createNewFile();
+				try {
+					MappedRedBlackTree.open(counterFile);
+					check(false, "recovery without a temporary file didn't fail");
+				} catch (IOException e) {
+					// Expected.
+				}
+				obstacle.delete();
+				temporaryFile.delete();
+				check(Arrays.equals(Files.readAllBytes(counterFile.toPath()), damaged),
+						"failed recovery changed the counter file");
+			}
+			tree = MappedRedBlackTree.open(counterFile);
+			check(tree.numberOfEvents == model.counts.size(), "recovered numberOfEvents");
+			checkCounts(tree, model, "recovered MappedRedBlackTree");
+			compareQueries(random, tree, model, 5000, "recovered MappedRedBlackTree");
+			for (int i = 0; i < 1000; i++) {
+				randomUpdate(random, tree, model, 5000, "recovered MappedRedBlackTree");
+			}
+			tree.close();
+			tree = MappedRedBlackTree.open(counterFile);
+			checkCounts(tree, model, "reopened MappedRedBlackTree");
+			compareQueries(random, tree, model, 5000, "reopened MappedRedBlackTree");
+			tree.close();
+		}
+		passed("MappedRedBlackTree recovery");
+	}
+
+	/*
+	 * The events file loader accepts what Integer.parseInt() accepts, with
+	 * any whitespace in between, and rejects the rest.
+	 */
+	private static void eventsFileParsing() throws IOException {
+		EventFileLoader loaded = loadEvents("4\r\n-2147483648 2\r\n-7 2\r\n0 5\r\n2147483647\t1");
+		check(loaded.numberOfEvents == 4 && Arrays.equals(loaded.sortedIDs, new int[] { Integer.MIN_VALUE, -7, 0,
+				Integer.MAX_VALUE }) && Arrays.equals(loaded.sortedCounts, new int[] { 2, 2, 5, 1 }), "events file");
+		check(loadEvents("0\n").numberOfEvents == 0, "empty events file");
+		for (String malformed : new String[] { "2\n1 5\n2 -x\n", "2\n1 5\n3000000000 1\n", "2\n1 5\n2 3-4\n",
+				"2\n1 5\n", "-1\n", "1\n1 -\n", "1\n-2147483649 1\n", "1\n1 2147483648\n" }) {
+			try {
+				loadEvents(malformed);
+				check(false, "loaded a malformed events file: " + malformed);
+			} catch (IOException e) {
+				// Expected.
+			}
+		}
+		try {
+			loadEvents("3\n1 1\n2 1\n3 x1\n");
+			check(false, "loaded a malformed events file");
+		} catch (IOException e) {
+			check(e.getMessage().startsWith("Unexpected character 'x' on line 4 of "), e.getMessage());
+		}
+		passed("Events file parsing");
+	}
+
+	private static EventFileLoader loadEvents(String contents) throws IOException {
+		File eventsFile = new File(directory, "events.txt");
+		Files.write(eventsFile.toPath(), contents.getBytes());
+		return EventFileLoader.load(eventsFile);
+	}
+
+	/*
+	 * Command arguments are parsed like Integer.parseInt() does, and a
+	 * command whose arguments aren't valid is reported and skipped.
+	 */
+	private static void commandArgumentParsing() throws IOException {
+		RedBlackTree tree = new RedBlackTree(new int[] { -5, 1 }, new int[] { 3, 4 }, 2);
+		String output = runCommands(tree, "count -5\nincrease -2147483648 2\ncount 2147483648\ncount 3x\n"
+				+ "count -\nincrease 1\nreduce 1 -\ncount 2147483647\ninrange -2147483648 2147483647\n");
+		String invalid = "\nInvalid command: '%s' ! Enter 'quit' to exit. \n";
+		check(output.equals("3\n2\n" + String.format(invalid, "count") + String.format(invalid, "count")
+				+ String.format(invalid, "count") + String.format(invalid, "increase")
+				+ String.format(invalid, "reduce") + "0\n9\n"), "command output:\n" + output);
+		passed("Command argument parsing");
+	}
+
+	/*
+	 * The OutputBuffer prints the same text as String.valueOf(), however the
+	 * lines fall across its (here tiny) buffer.
+	 */
+	private static void outputBuffer() throws IOException {
+		Random random = new Random(11);
+		for (int size : new int[] { 24, 64, 1 << 16 }) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			OutputBuffer out = new OutputBuffer(bytes, size);
+			StringBuilder expected = new StringBuilder();
+			for (int i = 0; i < 10000; i++) {
+				long number = random.nextInt(8) == 0 ? Long.MIN_VALUE + random.nextInt(2)
+						: random.nextLong() >> random.nextInt(64);
+				int ID = random.nextInt(), count = random.nextInt();
+				switch (random.nextInt(4)) {
+				case 0:
+					out.printLine(number);
+					expected.append(number).append('\n');
+					break;
+				case 1:
+					out.printLine(number, ID);
+					expected.append(number).append(' ').append(ID).append('\n');
+					break;
+				case 2:
+					out.printEvent(EventCounter.event(ID, count));
+					expected.append(ID).append(' ').append(count).append('\n');
+					break;
+				default:
+					String text = "line " + ID + " ".repeat(random.nextInt(100));
+					out.printLine(text);
+					expected.append(text).append('\n');
+					break;
+				}
+			}
+			out.flush();
+			check(bytes.toString().equals(expected.toString()), "OutputBuffer of " + size + " bytes");
+		}
+		passed("OutputBuffer");
+	}
+
+	/*
+	 * A random command stream gives the model's results, with CRLF or LF
+	 * line ends, invalid commands mixed in, input arriving a few bytes at a
+	 * time, a line longer than the input buffer, and no EOL after "quit".
+	 */
+	private static void commandStream() throws IOException {
+		Random random = new Random(12);
+		for (int round = 0; round < 20; round++) {
+			Model model = randomModel(random, 100, 200);
+			RedBlackTree tree = buildTree(model);
+			StringBuilder commands = new StringBuilder(), expected = new StringBuilder();
+			String eol = round % 2 == 0 ? "\n" : "\r\n";
+			for (int i = 0; i < 5000; i++) {
+				int ID = random.nextInt(220) - 10, other = random.nextInt(220) - 10, m = 1 + random.nextInt(10);
+				switch (random.nextInt(7)) {
+				case 0:
+					commands.append("increase ").append(ID).append(' ').append(m);
+					expected.append(model.increase(ID, m)).append('\n');
+					break;
+				case 1:
+					commands.append("reduce ").append(ID).append(' ').append(m);
+					expected.append(model.reduce(ID, m)).append('\n');
+					break;
+				case 2:
+					commands.append("count ").append(ID);
+					expected.append(model.counts.getOrDefault(ID, 0)).append('\n');
+					break;
+				case 3:
+					commands.append("inrange ").append(ID).append(' ').append(other);
+					expected.append(model.inRange(ID, other)).append('\n');
+					break;
+				case 4:
+					commands.append("next ").append(ID);
+					appendEvent(expected, model.counts.higherEntry(ID));
+					break;
+				case 5:
+					commands.append("previous ").append(ID);
+					appendEvent(expected, model.counts.lowerEntry(ID));
+					break;
+				default:
+					String command = i % 1000 == 0 && round % 5 == 0 ? "x".repeat(100000) : "decrease";
+					commands.append(command).append(' ').append(ID);
+					expected.append("\nInvalid command: '").append(command).append("' ! Enter 'quit' to exit. \n");
+					break;
+				}
+				commands.append(eol);
+			}
+			commands.append("quit");
+			if (round % 4 == 0) {
+				commands.append(eol).append("increase 1 1").append(eol);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int chunk = round % 5 == 0 ? 1 << 12 : 1 + random.nextInt(20);
+			InputStream trickle = new ByteArrayInputStream(commands.toString().getBytes()) {
+				public synchronized int read(byte[] b, int off, int len) {
+					return super.read(b, off, Math.min(len, chunk));
+				}
+			};
+			new CommandProcessor(tree, trickle, new OutputBuffer(out)).run();
+			check(out.toString().equals(expected.toString()), "command stream output");
+			checkCounts(tree, model, "command stream");
+		}
+		passed("Command stream");
+	}
+
+	private static void appendEvent(StringBuilder expected, Map.Entry<Integer, Integer> entry) {
+		if (entry == null) {
+			expected.append("0 0\n");
+		} else {
+			expected.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+	}
+
+	/*
+	 * The sample input and commands give the expected sample output, if
+	 * they're in the working directory.
+	 */
+	private static void sampleCommands() throws IOException {
+		File events = new File("test_100.txt"), commands = new File("commands.txt"), expected = new File("out_100.txt");
+		if (!events.exists() || !commands.exists() || !expected.exists()) {
+			System.out.println("Sample commands skipped (run from the source directory)");
+			return;
+		}
+		EventFileLoader loaded = EventFileLoader.load(events);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (FileInputStream in = new FileInputStream(commands)) {
+			new CommandProcessor(new RedBlackTree(loaded.sortedIDs, loaded.sortedCounts, loaded.numberOfEvents), in,
+					new OutputBuffer(out)).run();
+		}
+		check(out.toString().equals(new String(Files.readAllBytes(expected.toPath()))), "sample output");
+		passed("Sample commands");
+	}
+
+	private static String runCommands(EventCounter counter, String commands) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new CommandProcessor(counter, new ByteArrayInputStream(commands.getBytes()), new OutputBuffer(out)).run();
+		return out.toString();
+	}
+
+	/*
+	 * A batch through applyUpdates() must leave exactly the same events as
+	 * each ID's net delta applied by increase() or reduce().
+	 */
+	private static void applyUpdatesMatchesSingleUpdates() {
+		Random random = new Random(3);
+		for (int round = 0; round < 500; round++) {
+			int maxID = round < 200 ? 30 : 2000;
+			Model model = randomModel(random, 200, maxID);
+			RedBlackTree batched = buildTree(model), single = buildTree(model);
+			int n = random.nextInt(100);
+			int[] IDs = new int[n + 1], deltas = new int[n + 1];
+			TreeMap<Integer, Integer> netDeltas = new TreeMap<>();
+			for (int i = 0; i < n; i++) {
+				IDs[i] = random.nextInt(maxID + 10) - 10;
+				deltas[i] = random.nextInt(25) - 12;
+				netDeltas.merge(IDs[i], deltas[i], Integer::sum);
+			}
+			for (Map.Entry<Integer, Integer> update : netDeltas.entrySet()) {
+				if (update.getValue() > 0) {
+					single.increase(update.getKey(), update.getValue());
+					model.increase(update.getKey(), update.getValue());
+				} else if (update.getValue() < 0) {
+					single.reduce(update.getKey(), -update.getValue());
+					model.reduce(update.getKey(), -update.getValue());
+				}
+			}
+			batched.applyUpdates(IDs, deltas, n);
+			checkTree(batched, model, "applyUpdates");
+			checkCounts(batched, model, "applyUpdates");
+			checkTree(single, model, "single updates");
+			checkCounts(single, model, "single updates");
+		}
+		// Net deltas at the extremes of the int range.
+		int[][] IDs = { { 1 }, { 1, 1 }, { 1, 2, 1 }, { 1, 1 }, { 1, 1 } };
+		int[][] deltas = { { Integer.MIN_VALUE }, { Integer.MIN_VALUE / 2, Integer.MIN_VALUE / 2 },
+				{ Integer.MIN_VALUE, 1, 4 }, { Integer.MIN_VALUE, -1 }, { Integer.MAX_VALUE, 1 } };
+		for (int i = 0; i < IDs.length; i++) {
+			Model model = new Model();
+			model.counts.put(1, 5);
+			model.counts.put(2, 7);
+			RedBlackTree tree = buildTree(model);
+			boolean fits = i < 3;
+			try {
+				tree.applyUpdates(IDs[i], deltas[i], IDs[i].length);
+				check(fits, "applyUpdates of a net delta out of the int range didn't throw");
+				if (i == 2) {
+					model.increase(2, 1);
+				}
+				model.counts.remove(1);
+			} catch (ArithmeticException e) {
+				check(!fits, "applyUpdates threw " + e);
+			}
+			checkTree(tree, model, "applyUpdates");
+			checkCounts(tree, model, "applyUpdates");
+		}
+		passed("applyUpdates");
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * The operations of the Event Counter, which the bbst driver dispatches the
+ * commands read from the standard input stream to. Each operation returns
+ * its result as a primitive, and the driver writes it to the standard output
+ * stream (through an OutputBuffer), followed by an EOL character.
+ *
+ * Implemented by RedBlackTree (TreeNode objects on the heap) and by the index
+ * based engines ArrayRedBlackTree (primitive arrays on the heap) and
+ * MappedRedBlackTree (a memory-mapped counter file).
+ */
+public interface EventCounter {
+
+	/*
+	 * What next() and previous() return if there is no such event. Its ID and
+	 * count are both 0, so it's printed as “0 0”.
+	 */
+	long NO_EVENT = 0L;
+
+	/*
+	 * Increase the count of the event theID by m. If theID is not present,
+	 * insert it. Return the count of theID after the addition. Throws
+	 * ArithmeticException if that count would overflow an int.
+	 */
+	int increase(int theIDofEvent, int countIncreaseBy);
+
+	/*
+	 * Decrease the count of theID by m. If theID’s count becomes less than or
+	 * equal to 0, remove theID from the counter. Return the count of theID
+	 * after the deletion, or 0 if theID is removed or not present.
+	 */
+	int reduce(int theIDofEvent, int decreaseCountBy);
+
+	/*
+	 * Return the count of theID. If not present, return 0.
+	 */
+	int count(int theIDofEvent);
+
+	/*
+	 * Return the total count for IDs between ID1 and ID2 inclusively. The
+	 * total (like the subtree sums it's computed from) is 64-bit, so it can't
+	 * overflow however many events there are; only each event's own count is
+	 * limited to an int.
+	 */
+	long inRange(int ID1, int ID2);
+
+	/*
+	 * Return the event with the lowest ID that is greater that theID, packed
+	 * by event(), or NO_EVENT if there is no next ID.
+	 */
+	long next(int theIDofEvent);
+
+	/*
+	 * Return the event with the greatest key that is less that theID, packed
+	 * by event(), or NO_EVENT if there is no previous ID.
+	 */
+	long previous(int theIDofEvent);
+
+	/*
+	 * Pack an event's ID and count into one long (ID in the high half), so
+	 * next() and previous() can return both without allocating.
+	 */
+	static long event(int ID, int count) {
+		return ((long) ID << 32) | (count & 0xFFFFFFFFL);
+	}
+
+	static int eventID(long event) {
+		return (int) (event >>> 32);
+	}
+
+	static int eventCount(long event) {
+		return (int) event;
+	}
+}
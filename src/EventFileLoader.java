@@ -0,0 +1,144 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Loader for the initial sorted events file (n, then one "ID count" line per
+ * event), which parses the ASCII digits straight from the memory-mapped file
+ * into the sortedIDs and sortedCounts arrays the sorted array constructors
+ * consume. Unlike BufferedReader.readLine() + String.split() +
+ * Integer.parseInt(), nothing is allocated per event.
+ *
+ * The file is mapped in windows of at most WINDOW_BYTES, and the parse state
+ * carries over from one window to the next, so files over 2 GB and numbers
+ * that straddle a window boundary are handled.
+ *
+ * As with Integer.parseInt(), a number may have a leading '-', and a number
+ * which doesn't fit in an int is an error, as is any byte other than digits
+ * and whitespace; the IOException names the line.
+ */
+public class EventFileLoader {
+
+	private static final long WINDOW_BYTES = 1L << 30;
+
+	int numberOfEvents;
+	int[] sortedIDs;
+	int[] sortedCounts;
+
+	// Parse state: the magnitude of the number being read, whether we're
+	// inside one (or just past its '-'), how many numbers (n, then ID and
+	// count of each event) have been read, and the line we're on.
+	private long currentNumber;
+	private boolean inNumber, negative;
+	private long numbersRead;
+	private long line = 1;
+	private File eventsFile;
+
+	private EventFileLoader() {
+	}
+
+	/*
+	 * Read the events file. Time complexity: O(file size), with no per-event
+	 * allocation.
+	 */
+	static EventFileLoader load(File eventsFile) throws IOException {
+		EventFileLoader loader = new EventFileLoader();
+		loader.eventsFile = eventsFile;
+		RandomAccessFile file = new RandomAccessFile(eventsFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			for (long position = 0; position < size && !loader.isComplete(); position += WINDOW_BYTES) {
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(WINDOW_BYTES, size - position));
+				loader.parse(window);
+			}
+		} finally {
+			file.close();
+		}
+		// The last number may end at the end of the file, without an EOL.
+		loader.endOfNumber();
+		if (!loader.isComplete()) {
+			throw new IOException("Expected " + loader.numberOfEvents + " events in " + eventsFile + " but found "
+					+ Math.max(0, (loader.numbersRead - 1) / 2));
+		}
+		return loader;
+	}
+
+	private boolean isComplete() {
+		return sortedIDs != null && numbersRead == 1 + 2L * numberOfEvents;
+	}
+
+	private void parse(MappedByteBuffer window) throws IOException {
+		int limit = window.limit();
+		for (int i = 0; i < limit; i++) {
+			byte character = window.get(i);
+			int digit = character - '0';
+			if (digit >= 0 && digit <= 9) {
+				currentNumber = currentNumber * 10 + digit;
+				// Integer.MIN_VALUE's magnitude is the largest that fits.
+				if (currentNumber > 1L << 31) {
+					throw invalid("Number out of range");
+				}
+				inNumber = true;
+			} else if (character == ' ' || character == '\n' || character == '\r' || character == '\t') {
+				endOfNumber();
+				if (isComplete()) {
+					return;
+				}
+				if (character == '\n') {
+					line++;
+				}
+			} else if (character == '-' && !inNumber && !negative) {
+				negative = true;
+			} else {
+				throw invalid("Unexpected character '" + (char) (character & 0xFF) + "'");
+			}
+		}
+	}
+
+	/*
+	 * Store the number just read: first the number of events, then
+	 * alternately the ID and the count of each event.
+	 */
+	private void endOfNumber() throws IOException {
+		if (!inNumber) {
+			if (negative) {
+				throw invalid("Expected a number after '-'");
+			}
+			return;
+		}
+		long value = negative ? -currentNumber : currentNumber;
+		if (value > Integer.MAX_VALUE) {
+			throw invalid("Number out of range");
+		}
+		if (isComplete()) {
+			return;
+		}
+		if (numbersRead == 0) {
+			if (value < 0) {
+				throw invalid("Negative number of events");
+			}
+			numberOfEvents = (int) value;
+			sortedIDs = new int[numberOfEvents];
+			sortedCounts = new int[numberOfEvents];
+		} else {
+			int event = (int) ((numbersRead - 1) >>> 1);
+			if ((numbersRead & 1) == 1) {
+				sortedIDs[event] = (int) value;
+			} else {
+				sortedCounts[event] = (int) value;
+			}
+		}
+		numbersRead++;
+		currentNumber = 0;
+		inNumber = false;
+		negative = false;
+	}
+
+	private IOException invalid(String problem) {
+		return new IOException(problem + " on line " + line + " of " + eventsFile);
+	}
+}
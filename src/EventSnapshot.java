@@ -0,0 +1,232 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/*
+ * Compact binary snapshot of a RedBlackTree Event Counter.
+ *
+ * The format is a 20 byte header (MAGIC, VERSION and the number of events n,
+ * big-endian ints, and the sequence number of the first WriteAheadLog
+ * operation not included in the snapshot, a long), then for each event in
+ * ascending ID order the difference from the previous ID (from 0 for the
+ * first) and the count, each as an unsigned LEB128 varint (7 bits per byte, the low bits first, the high bit
+ * set on all but the last byte), and finally the CRC32C of everything before
+ * it as an int. Dense IDs with small counts take 2 or 3 bytes per event, a fraction
+ * of the “ID count” text line.
+ *
+ * A snapshot is written sequentially from an in-order walk of the tree
+ * (a RangeCursor), to a temporary file which is forced to disk and then
+ * renamed over the old snapshot, so a crash mid-write leaves the previous
+ * snapshot intact. It's restored like EventFileLoader loads the text file:
+ * the varints are decoded straight from the memory-mapped file into the
+ * sortedIDs and sortedCounts arrays, with no per-event allocation, and the
+ * tree is bulk built from them in O(n).
+ */
+public class EventSnapshot {
+
+	private static final int MAGIC = 0x4556534E; // "EVSN"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 20;
+	private static final int CHECKSUM_BYTES = 4;
+
+	// An event takes at most two 5 byte varints.
+	private static final int MAX_EVENT_BYTES = 10;
+
+	private static final int BUFFER_BYTES = 1 << 16;
+	private static final long WINDOW_BYTES = 1L << 30;
+
+	int numberOfEvents;
+	int[] sortedIDs;
+	int[] sortedCounts;
+	long logSequenceNumber;
+
+	private EventSnapshot() {
+	}
+
+	/*
+	 * Write a snapshot of the tree, which includes the logged operations
+	 * before logSequenceNumber, to the file, replacing it atomically. Time
+	 * complexity: O(n).
+	 */
+	static void write(RedBlackTree tree, File snapshotFile, long logSequenceNumber) throws IOException {
+		File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+		FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			byte[] buffer = new byte[BUFFER_BYTES];
+			ByteBuffer.wrap(buffer).putInt(MAGIC).putInt(VERSION).putInt(tree.numberOfEvents)
+					.putLong(logSequenceNumber);
+			int position = HEADER_BYTES, checksumStart = 0, written = 0;
+			CRC32C checksum = new CRC32C();
+			RangeCursor cursor = tree.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			int previousID = 0;
+			while (cursor.advance()) {
+				if (position + MAX_EVENT_BYTES > BUFFER_BYTES) {
+					checksum.update(buffer, checksumStart, position - checksumStart);
+					writeFully(channel, buffer, position);
+					position = checksumStart = 0;
+				}
+				position = putVarint(buffer, position, cursor.ID() - previousID);
+				position = putVarint(buffer, position, cursor.count());
+				previousID = cursor.ID();
+				written++;
+			}
+			if (written != tree.numberOfEvents) {
+				throw new IOException("Expected " + tree.numberOfEvents + " events in the tree but found " + written);
+			}
+			checksum.update(buffer, checksumStart, position - checksumStart);
+			if (position + CHECKSUM_BYTES > BUFFER_BYTES) {
+				writeFully(channel, buffer, position);
+				position = 0;
+			}
+			ByteBuffer.wrap(buffer, position, CHECKSUM_BYTES).putInt((int) checksum.getValue());
+			writeFully(channel, buffer, position + CHECKSUM_BYTES);
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeFully(FileChannel channel, byte[] buffer, int length) throws IOException {
+		ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+
+	/*
+	 * Store the value as an unsigned varint at the position, and return the
+	 * position after it.
+	 */
+	private static int putVarint(byte[] buffer, int position, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer[position++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	/*
+	 * Read the snapshot file into the sorted arrays. Time complexity: O(file
+	 * size), with no per-event allocation.
+	 */
+	static EventSnapshot load(File snapshotFile) throws IOException {
+		EventSnapshot snapshot = new EventSnapshot();
+		RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if (size < HEADER_BYTES + CHECKSUM_BYTES) {
+				throw new IOException("Not a snapshot file: " + snapshotFile);
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			readFully(channel, header, 0);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("Not a snapshot file: " + snapshotFile);
+			}
+			int n = header.getInt(8);
+			snapshot.logSequenceNumber = header.getLong(12);
+			if (n < 0 || n > (size - HEADER_BYTES - CHECKSUM_BYTES) / 2) {
+				throw new IOException("Corrupt snapshot file: " + snapshotFile);
+			}
+			snapshot.numberOfEvents = n;
+			snapshot.sortedIDs = new int[n];
+			snapshot.sortedCounts = new int[n];
+
+			long eventsEnd = size - CHECKSUM_BYTES;
+			CRC32C checksum = new CRC32C();
+			checksum.update(header.array(), 0, HEADER_BYTES);
+			int event = 0, previousID = 0;
+			// Each window is decoded up to the last whole event in it, and the
+			// next one starts right after that.
+			for (long position = HEADER_BYTES; position < eventsEnd;) {
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(WINDOW_BYTES, eventsEnd - position));
+				boolean lastWindow = position + window.limit() == eventsEnd;
+				int limit = window.limit(), decodeLimit = lastWindow ? limit : limit - MAX_EVENT_BYTES;
+				int i = 0;
+				while (i < decodeLimit && event < n) {
+					int ID = previousID, count = 0;
+					for (int field = 0; field < 2; field++) {
+						int value = 0, shift = 0;
+						byte b;
+						do {
+							if (i == limit || shift > 28) {
+								throw new IOException("Corrupt snapshot file: " + snapshotFile);
+							}
+							b = window.get(i++);
+							value |= (b & 0x7F) << shift;
+							shift += 7;
+						} while (b < 0);
+						if (field == 0) {
+							ID += value;
+						} else {
+							count = value;
+						}
+					}
+					// Any count the tree holds is written, 0 or negative too (the
+					// latter as 5 byte varints of their two's complement).
+					if (event > 0 && ID <= previousID) {
+						throw new IOException("Corrupt snapshot file: " + snapshotFile);
+					}
+					snapshot.sortedIDs[event] = ID;
+					snapshot.sortedCounts[event] = count;
+					previousID = ID;
+					event++;
+				}
+				if (event == n && !(lastWindow && i == limit)) {
+					throw new IOException("Corrupt snapshot file: " + snapshotFile);
+				}
+				window.limit(i);
+				checksum.update(window);
+				position += i;
+			}
+			if (event != n) {
+				throw new IOException("Expected " + n + " events in " + snapshotFile + " but found " + event);
+			}
+			ByteBuffer trailer = ByteBuffer.allocate(CHECKSUM_BYTES);
+			readFully(channel, trailer, eventsEnd);
+			if (trailer.getInt(0) != (int) checksum.getValue()) {
+				throw new IOException("Snapshot file checksum mismatch: " + snapshotFile);
+			}
+		} finally {
+			file.close();
+		}
+		return snapshot;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of snapshot file");
+			}
+		}
+	}
+
+	/*
+	 * Restore a RedBlackTree from the snapshot file, bulk built in O(n) time
+	 * (on all available cores, if there is more than one).
+	 */
+	static RedBlackTree restore(File snapshotFile) throws IOException {
+		return load(snapshotFile).buildTree();
+	}
+
+	/*
+	 * Bulk build a RedBlackTree from the loaded events in O(n) time (on all
+	 * available cores, if there is more than one).
+	 */
+	RedBlackTree buildTree() {
+		return new RedBlackTree(sortedIDs, sortedCounts, numberOfEvents,
+				Runtime.getRuntime().availableProcessors() > 1);
+	}
+}
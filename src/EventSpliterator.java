@@ -0,0 +1,152 @@
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+
+/*
+ * Splittable traversal of the events of a RedBlackTree with IDs between
+ * lowID and highID inclusively, in ascending ID order, as packed events (see
+ * EventCounter.event()). It backs RedBlackTree.events(), so parallel streams
+ * (and the fork-join reductions under them) can spread an aggregation over
+ * the tree across cores.
+ *
+ * A spliterator covers the events of its range, all of which are in the
+ * subtree of its top node. trySplit() goes down to the highest node in the
+ * range and hands off its left subtree (the IDs below it) as the prefix,
+ * keeping the node and its right subtree. If the range starts at that node,
+ * so there is nothing left of it, the split moves one level into the right
+ * subtree instead: the prefix keeps the node and the left part of its right
+ * subtree. Either way the tree's balance makes the two sides about even, and
+ * the size estimate of the prefix is the parent's estimate scaled by the
+ * prefix's share of the range's total count, two prefix sums over
+ * subtreeCount. A split takes O(log n).
+ *
+ * The traversal itself starts with a single descent to the first event in
+ * the range and then follows the successor links, like RangeCursor,
+ * amortized O(1) per event.
+ *
+ * The tree must not be modified while a traversal is in progress.
+ */
+public class EventSpliterator implements Spliterator.OfLong {
+
+	private final RedBlackTree tree;
+	private RedBlackTree.TreeNode top;
+	private int lowID;
+	private final int highID;
+	// Estimated number of events in the range, and their total count.
+	private long estimatedSize, rangeCount;
+
+	// The next event of the traversal, once it has started.
+	private RedBlackTree.TreeNode next;
+	private boolean started;
+
+	EventSpliterator(RedBlackTree tree, RedBlackTree.TreeNode top, int lowID, int highID, long estimatedSize,
+			long rangeCount) {
+		this.tree = tree;
+		this.top = top;
+		this.lowID = lowID;
+		this.highID = highID;
+		this.estimatedSize = estimatedSize;
+		this.rangeCount = rangeCount;
+	}
+
+	public OfLong trySplit() {
+		if (started) {
+			return null;
+		}
+		RedBlackTree.TreeNode splitNode = highestInRange(top, lowID, highID);
+		if (splitNode == null) {
+			return null;
+		}
+		top = splitNode;
+		if (splitNode.leftChild == null) {
+			// There are no events in the range below splitNode.
+			lowID = splitNode.key;
+		}
+		RedBlackTree.TreeNode prefixTop = splitNode.leftChild;
+		if (splitNode.key == lowID) {
+			if (lowID == highID) {
+				return null;
+			}
+			prefixTop = splitNode;
+			splitNode = highestInRange(splitNode.rightChild, lowID + 1, highID);
+			if (splitNode == null) {
+				return null;
+			}
+		}
+		long prefixCount = tree.inRange(lowID, splitNode.key - 1);
+		long prefixSize = rangeCount <= 0 ? 0 : (long) ((double) estimatedSize * prefixCount / rangeCount);
+		EventSpliterator prefix = new EventSpliterator(tree, prefixTop, lowID, splitNode.key - 1, prefixSize,
+				prefixCount);
+		top = splitNode;
+		lowID = splitNode.key;
+		estimatedSize -= prefixSize;
+		rangeCount -= prefixCount;
+		return prefix;
+	}
+
+	/*
+	 * The highest node of the subtree with an ID between low and high, where
+	 * the paths to low and high split. Null if there is none.
+	 */
+	private static RedBlackTree.TreeNode highestInRange(RedBlackTree.TreeNode node, int low, int high) {
+		while (node != null && (node.key < low || node.key > high)) {
+			node = node.key < low ? node.rightChild : node.leftChild;
+		}
+		return node;
+	}
+
+	public boolean tryAdvance(LongConsumer action) {
+		if (!started) {
+			start();
+		}
+		if (next == null || next.key > highID) {
+			next = null;
+			return false;
+		}
+		RedBlackTree.TreeNode event = next;
+		next = RangeCursor.successor(event);
+		action.accept(EventCounter.event(event.key, event.count));
+		return true;
+	}
+
+	public void forEachRemaining(LongConsumer action) {
+		if (!started) {
+			start();
+		}
+		RedBlackTree.TreeNode event = next;
+		next = null;
+		while (event != null && event.key <= highID) {
+			action.accept(EventCounter.event(event.key, event.count));
+			event = RangeCursor.successor(event);
+		}
+	}
+
+	/*
+	 * Find the first event of the range, the lowest ID in the top node's
+	 * subtree that is not less than lowID.
+	 */
+	private void start() {
+		started = true;
+		if (lowID > highID) {
+			return;
+		}
+		for (RedBlackTree.TreeNode node = top; node != null;) {
+			if (node.key >= lowID) {
+				next = node;
+				node = node.leftChild;
+			} else {
+				node = node.rightChild;
+			}
+		}
+	}
+
+	public long estimateSize() {
+		if (started && next == null) {
+			return 0;
+		}
+		return estimatedSize;
+	}
+
+	public int characteristics() {
+		return ORDERED | DISTINCT | NONNULL;
+	}
+}
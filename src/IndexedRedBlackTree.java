@@ -0,0 +1,550 @@
+/*
+ * Red-black tree Event Counter whose nodes are int indices into a node store
+ * instead of TreeNode objects. It has the same operations as RedBlackTree
+ * (Increase, Reduce, Count, InRange, Next and Previous) and the same
+ * subtreeCount augmentation.
+ *
+ * Subclasses provide the node store through the get/set accessors below:
+ * ArrayRedBlackTree keeps it in parallel primitive arrays on the heap, and
+ * MappedRedBlackTree in a memory-mapped counter file.
+ *
+ * Index 0 is the NIL sentinel: black, with count and subtreeCount 0. Every
+ * missing child (and the root's parent) points at it, so the re-balancing
+ * code doesn't need null checks or temporary sentinel nodes. Slots freed by
+ * deletes are reused through a free list linked through leftChild.
+ */
+public abstract class IndexedRedBlackTree implements EventCounter {
+
+	static final int NIL = 0;
+
+	// Root of the Event Counter, NIL when empty.
+	int root = NIL;
+
+	// Number of events (nodes) currently in the tree.
+	int numberOfEvents;
+
+	// Slots from nextFreshSlot up to capacity() have never been used. Slots
+	// freed by deletes are chained through leftChild starting at freeListHead.
+	int nextFreshSlot = 1;
+	int freeListHead = NIL;
+
+	/*
+	 * Node store accessors. Slot NIL is never handed out, but its parent and
+	 * color are written during deletes.
+	 */
+	abstract int getKey(int node);
+
+	abstract void setKey(int node, int key);
+
+	abstract int getCount(int node);
+
+	abstract void setCount(int node, int count);
+
+	abstract long getSubtreeCount(int node);
+
+	abstract void setSubtreeCount(int node, long subtreeCount);
+
+	abstract int getLeftChild(int node);
+
+	abstract void setLeftChild(int node, int leftChild);
+
+	abstract int getRightChild(int node);
+
+	abstract void setRightChild(int node, int rightChild);
+
+	abstract int getParent(int node);
+
+	abstract void setParent(int node, int parent);
+
+	abstract boolean isRed(int node);
+
+	abstract void setRed(int node, boolean red);
+
+	/*
+	 * Number of slots (NIL included) the node store can currently hold.
+	 */
+	abstract int capacity();
+
+	/*
+	 * Grow the node store to hold at least the given number of slots.
+	 */
+	abstract void grow(int minimumCapacity);
+
+	/*
+	 * Increase the count of the event theID by m. If theID is not present,
+	 * insert it. Return the count of theID after the addition. Time
+	 * complexity: O(log n).
+	 */
+	public int increase(int theIDofEvent, int countIncreaseBy) {
+		int theEvent = findNode(theIDofEvent);
+		if (theEvent != NIL) {
+			setCount(theEvent, Math.addExact(getCount(theEvent), countIncreaseBy));
+			addToSubtreeCounts(theEvent, countIncreaseBy);
+		} else {
+			theEvent = insert(theIDofEvent, countIncreaseBy);
+		}
+		return getCount(theEvent);
+	}
+
+	/*
+	 * Decrease the count of theID by m. If theID’s count becomes less than or
+	 * equal to 0, remove theID from the counter. Return the count of theID
+	 * after the deletion, or 0 if theID is removed or not present. Time
+	 * complexity: O(log n).
+	 */
+	public int reduce(int theIDofEvent, int decreaseCountBy) {
+		int theEvent = findNode(theIDofEvent);
+		if (theEvent == NIL) {
+			return 0;
+		} else if (getCount(theEvent) <= decreaseCountBy) {
+			deleteNode(theEvent);
+			return 0;
+		} else {
+			setCount(theEvent, getCount(theEvent) - decreaseCountBy);
+			addToSubtreeCounts(theEvent, -decreaseCountBy);
+			return getCount(theEvent);
+		}
+	}
+
+	/*
+	 * Return the count of theID. If not present, return 0. Time complexity:
+	 * O(log n).
+	 */
+	public int count(int theIDofEvent) {
+		return getCount(findNode(theIDofEvent));
+	}
+
+	/*
+	 * Return the total count for IDs between ID1 and ID2 inclusively. Time
+	 * complexity: O(log n).
+	 */
+	public long inRange(int ID1, int ID2) {
+		return rangeCount(ID1, ID2);
+	}
+
+	/*
+	 * Return the ID and the count of the event with the lowest ID that is
+	 * greater that theID, packed by EventCounter.event(). Return 0 (“0 0”), if
+	 * there is no next ID. Time complexity: O(log n).
+	 */
+	public long next(int theIDofEvent) {
+		return toEvent(ceilingNode(theIDofEvent, false));
+	}
+
+	/*
+	 * Return the ID and the count of the event with the greatest key that is
+	 * less that theID, packed by EventCounter.event(). Return 0 (“0 0”), if
+	 * there is no previous ID. Time complexity: O(log n).
+	 */
+	public long previous(int theIDofEvent) {
+		return toEvent(floorNode(theIDofEvent, false));
+	}
+
+	private long toEvent(int node) {
+		if (node == NIL) {
+			return EventCounter.NO_EVENT;
+		}
+		return EventCounter.event(getKey(node), getCount(node));
+	}
+
+	/*
+	 * Find node with the given ID, if not found (or if tree is empty), return
+	 * NIL. Time complexity: O(log n)
+	 */
+	int findNode(int ID) {
+		int node = root;
+		while (node != NIL) {
+			int nodeKey = getKey(node);
+			if (ID == nodeKey) {
+				break;
+			} else if (ID < nodeKey) {
+				node = getLeftChild(node);
+			} else {
+				node = getRightChild(node);
+			}
+		}
+		return node;
+	}
+
+	/*
+	 * Return the event with the smallest ID greater than (or, if inclusive,
+	 * equal to) the given ID, or NIL if there is none. Time complexity: O(log
+	 * n).
+	 */
+	int ceilingNode(int ID, boolean inclusive) {
+		int node = root, bestFit = NIL;
+		while (node != NIL) {
+			int nodeKey = getKey(node);
+			if (ID < nodeKey || (inclusive && ID == nodeKey)) {
+				bestFit = node;
+				node = getLeftChild(node);
+			} else {
+				node = getRightChild(node);
+			}
+		}
+		return bestFit;
+	}
+
+	/*
+	 * Return the event with the greatest ID less than (or, if inclusive, equal
+	 * to) the given ID, or NIL if there is none. Time complexity: O(log n).
+	 */
+	int floorNode(int ID, boolean inclusive) {
+		int node = root, bestFit = NIL;
+		while (node != NIL) {
+			int nodeKey = getKey(node);
+			if (ID > nodeKey || (inclusive && ID == nodeKey)) {
+				bestFit = node;
+				node = getRightChild(node);
+			} else {
+				node = getLeftChild(node);
+			}
+		}
+		return bestFit;
+	}
+
+	/*
+	 * Total count for IDs between ID1 and ID2 inclusively, as the difference
+	 * of two prefix sums over the subtreeCount augmentation. Time complexity:
+	 * O(log n).
+	 */
+	long rangeCount(int ID1, int ID2) {
+		if (ID1 > ID2) {
+			return 0;
+		}
+		return prefixCount(ID2, true) - prefixCount(ID1, false);
+	}
+
+	/*
+	 * Total count of the events with ID less than (or, if inclusive, equal to)
+	 * the given ID, in one descent from the root: whenever we go right, the
+	 * node and its whole left subtree are below the ID.
+	 */
+	long prefixCount(int ID, boolean inclusive) {
+		int node = root;
+		long total = 0;
+		while (node != NIL) {
+			int nodeKey = getKey(node);
+			if (nodeKey < ID || (inclusive && nodeKey == ID)) {
+				total += getSubtreeCount(getLeftChild(node)) + getCount(node);
+				node = getRightChild(node);
+			} else {
+				node = getLeftChild(node);
+			}
+		}
+		return total;
+	}
+
+	/*
+	 * Binary search tree insert which adds the new count to the subtreeCount
+	 * of every node on the way down, followed by the red-black fix up. Returns
+	 * the new node. Time complexity: O(log n).
+	 */
+	int insert(int ID, int eventCount) {
+		int newNode = allocateNode(ID, eventCount);
+		int parentNode = NIL, temp = root;
+		while (temp != NIL) {
+			parentNode = temp;
+			setSubtreeCount(temp, getSubtreeCount(temp) + eventCount);
+			if (ID < getKey(temp)) {
+				temp = getLeftChild(temp);
+			} else {
+				temp = getRightChild(temp);
+			}
+		}
+		setParent(newNode, parentNode);
+		if (parentNode == NIL) {
+			root = newNode;
+		} else if (ID < getKey(parentNode)) {
+			setLeftChild(parentNode, newNode);
+		} else {
+			setRightChild(parentNode, newNode);
+		}
+		insertFixup(newNode);
+		numberOfEvents++;
+		return newNode;
+	}
+
+	/*
+	 * Restore the red-black properties after inserting the red node. Cases as
+	 * in RedBlackTree.insert1() to insert5(): recolor while the uncle is red,
+	 * otherwise rotate an inside child to the outside and rotate the
+	 * grandparent.
+	 */
+	private void insertFixup(int node) {
+		while (isRed(getParent(node))) {
+			int parentNode = getParent(node), grandparent = getParent(parentNode);
+			if (parentNode == getLeftChild(grandparent)) {
+				int uncle = getRightChild(grandparent);
+				if (isRed(uncle)) {
+					setRed(parentNode, false);
+					setRed(uncle, false);
+					setRed(grandparent, true);
+					node = grandparent;
+				} else {
+					if (node == getRightChild(parentNode)) {
+						node = parentNode;
+						leftRotate(node);
+						parentNode = getParent(node);
+					}
+					setRed(parentNode, false);
+					setRed(grandparent, true);
+					rightRotate(grandparent);
+				}
+			} else {
+				int uncle = getLeftChild(grandparent);
+				if (isRed(uncle)) {
+					setRed(parentNode, false);
+					setRed(uncle, false);
+					setRed(grandparent, true);
+					node = grandparent;
+				} else {
+					if (node == getLeftChild(parentNode)) {
+						node = parentNode;
+						rightRotate(node);
+						parentNode = getParent(node);
+					}
+					setRed(parentNode, false);
+					setRed(grandparent, true);
+					leftRotate(grandparent);
+				}
+			}
+		}
+		setRed(root, false);
+	}
+
+	/*
+	 * Remove the given node from the tree. Its count is first taken out of the
+	 * subtreeCount of every ancestor. A node with two children takes over its
+	 * successor's event and the successor's slot is unlinked instead, so the
+	 * unlinked node always has at most one child. Time complexity: O(log n).
+	 */
+	void deleteNode(int node) {
+		addToSubtreeCounts(node, -getCount(node));
+		int unlinked = node;
+		if (getLeftChild(node) != NIL && getRightChild(node) != NIL) {
+			unlinked = getRightChild(node);
+			while (getLeftChild(unlinked) != NIL) {
+				unlinked = getLeftChild(unlinked);
+			}
+			// The successor's event moves up into node, so it leaves every
+			// subtree strictly between the two.
+			int movedCount = getCount(unlinked);
+			for (int temp = getParent(unlinked); temp != node; temp = getParent(temp)) {
+				setSubtreeCount(temp, getSubtreeCount(temp) - movedCount);
+			}
+			setKey(node, getKey(unlinked));
+			setCount(node, movedCount);
+		}
+		int child = getLeftChild(unlinked) != NIL ? getLeftChild(unlinked) : getRightChild(unlinked);
+		// The parent of NIL may be set here, the fix up relies on it.
+		replaceChild(getParent(unlinked), unlinked, child);
+		if (!isRed(unlinked)) {
+			deleteFixup(child);
+		}
+		freeNode(unlinked);
+		numberOfEvents--;
+	}
+
+	/*
+	 * Restore the red-black properties after unlinking a black node, whose
+	 * place is now taken by the given (possibly NIL) node carrying an extra
+	 * black. Cases as in RedBlackTree.delete1() to delete6().
+	 */
+	private void deleteFixup(int node) {
+		while (node != root && !isRed(node)) {
+			int parentNode = getParent(node);
+			if (node == getLeftChild(parentNode)) {
+				int sibling = getRightChild(parentNode);
+				if (isRed(sibling)) {
+					setRed(sibling, false);
+					setRed(parentNode, true);
+					leftRotate(parentNode);
+					sibling = getRightChild(parentNode);
+				}
+				if (!isRed(getLeftChild(sibling)) && !isRed(getRightChild(sibling))) {
+					setRed(sibling, true);
+					node = parentNode;
+				} else {
+					if (!isRed(getRightChild(sibling))) {
+						setRed(getLeftChild(sibling), false);
+						setRed(sibling, true);
+						rightRotate(sibling);
+						sibling = getRightChild(parentNode);
+					}
+					setRed(sibling, isRed(parentNode));
+					setRed(parentNode, false);
+					setRed(getRightChild(sibling), false);
+					leftRotate(parentNode);
+					node = root;
+				}
+			} else {
+				int sibling = getLeftChild(parentNode);
+				if (isRed(sibling)) {
+					setRed(sibling, false);
+					setRed(parentNode, true);
+					rightRotate(parentNode);
+					sibling = getLeftChild(parentNode);
+				}
+				if (!isRed(getLeftChild(sibling)) && !isRed(getRightChild(sibling))) {
+					setRed(sibling, true);
+					node = parentNode;
+				} else {
+					if (!isRed(getLeftChild(sibling))) {
+						setRed(getRightChild(sibling), false);
+						setRed(sibling, true);
+						leftRotate(sibling);
+						sibling = getLeftChild(parentNode);
+					}
+					setRed(sibling, isRed(parentNode));
+					setRed(parentNode, false);
+					setRed(getLeftChild(sibling), false);
+					rightRotate(parentNode);
+					node = root;
+				}
+			}
+		}
+		setRed(node, false);
+	}
+
+	/*
+	 * Left rotate around the node, recomputing the subtreeCount of the two
+	 * nodes that change place. Time complexity: O(1).
+	 */
+	private void leftRotate(int node) {
+		int rightNode = getRightChild(node);
+		int middle = getLeftChild(rightNode);
+		setRightChild(node, middle);
+		if (middle != NIL) {
+			setParent(middle, node);
+		}
+		replaceChild(getParent(node), node, rightNode);
+		setLeftChild(rightNode, node);
+		setParent(node, rightNode);
+		setSubtreeCount(rightNode, getSubtreeCount(node));
+		setSubtreeCount(node, getSubtreeCount(getLeftChild(node)) + getSubtreeCount(middle) + getCount(node));
+	}
+
+	/*
+	 * Right rotate around the node, recomputing the subtreeCount of the two
+	 * nodes that change place. Time complexity: O(1).
+	 */
+	private void rightRotate(int node) {
+		int leftNode = getLeftChild(node);
+		int middle = getRightChild(leftNode);
+		setLeftChild(node, middle);
+		if (middle != NIL) {
+			setParent(middle, node);
+		}
+		replaceChild(getParent(node), node, leftNode);
+		setRightChild(leftNode, node);
+		setParent(node, leftNode);
+		setSubtreeCount(leftNode, getSubtreeCount(node));
+		setSubtreeCount(node, getSubtreeCount(middle) + getSubtreeCount(getRightChild(node)) + getCount(node));
+	}
+
+	/*
+	 * Make newChild take oldChild's place under parentNode (or as the root).
+	 */
+	private void replaceChild(int parentNode, int oldChild, int newChild) {
+		setParent(newChild, parentNode);
+		if (parentNode == NIL) {
+			root = newChild;
+		} else if (oldChild == getLeftChild(parentNode)) {
+			setLeftChild(parentNode, newChild);
+		} else {
+			setRightChild(parentNode, newChild);
+		}
+	}
+
+	/*
+	 * Add delta to the subtreeCount of the node and all its ancestors.
+	 */
+	private void addToSubtreeCounts(int node, int delta) {
+		while (node != NIL) {
+			setSubtreeCount(node, getSubtreeCount(node) + delta);
+			node = getParent(node);
+		}
+	}
+
+	/*
+	 * Initialize the (empty) Event Counter from the ascending sorted IDs and
+	 * their counts in O(n) time, the same way RedBlackTree does from a sorted
+	 * TreeNode array: recursively split at the middle and color the nodes on
+	 * the last level red.
+	 */
+	void buildFromSortedArrays(int sortedIDs[], int sortedCounts[], int totalNumberOfEvents) {
+		if (totalNumberOfEvents > 0) {
+			if (capacity() < totalNumberOfEvents + 1) {
+				grow(totalNumberOfEvents + 1);
+			}
+			root = sortedArrayToRBBST(sortedIDs, sortedCounts, 0, totalNumberOfEvents - 1, 0,
+					RedBlackTree.log2(totalNumberOfEvents));
+			setParent(root, NIL);
+			setRed(root, false);
+			numberOfEvents = totalNumberOfEvents;
+		}
+	}
+
+	/*
+	 * Build the subtree for sortedIDs[start..end], handing out slots in
+	 * pre-order so that a parent and its left child are adjacent. Returns the
+	 * root of the subtree. Time complexity: O(n).
+	 */
+	private int sortedArrayToRBBST(int sortedIDs[], int sortedCounts[], int start, int end, int currentHeight,
+			int maxHeight) {
+		if (start > end) {
+			return NIL;
+		}
+		int mid = start + (end - start) / 2;
+		int node = nextFreshSlot++;
+		setKey(node, sortedIDs[mid]);
+		setCount(node, sortedCounts[mid]);
+		int left = sortedArrayToRBBST(sortedIDs, sortedCounts, start, mid - 1, currentHeight + 1, maxHeight);
+		int right = sortedArrayToRBBST(sortedIDs, sortedCounts, mid + 1, end, currentHeight + 1, maxHeight);
+		setLeftChild(node, left);
+		setRightChild(node, right);
+		if (left != NIL) {
+			setParent(left, node);
+		}
+		if (right != NIL) {
+			setParent(right, node);
+		}
+		setSubtreeCount(node, sortedCounts[mid] + getSubtreeCount(left) + getSubtreeCount(right));
+		// Color the nodes at the last level red, as RedBlackTree does.
+		setRed(node, currentHeight == maxHeight);
+		return node;
+	}
+
+	/*
+	 * Hand out a slot for a new red leaf, reusing freed slots first and
+	 * growing the node store by half when full.
+	 */
+	private int allocateNode(int ID, int eventCount) {
+		int node;
+		if (freeListHead != NIL) {
+			node = freeListHead;
+			freeListHead = getLeftChild(node);
+		} else {
+			if (nextFreshSlot == capacity()) {
+				grow(capacity() + (capacity() >> 1) + 1);
+			}
+			node = nextFreshSlot++;
+		}
+		setKey(node, ID);
+		setCount(node, eventCount);
+		setSubtreeCount(node, eventCount);
+		setLeftChild(node, NIL);
+		setRightChild(node, NIL);
+		setParent(node, NIL);
+		setRed(node, true);
+		return node;
+	}
+
+	void freeNode(int node) {
+		setCount(node, 0);
+		setSubtreeCount(node, 0);
+		setLeftChild(node, freeListHead);
+		freeListHead = node;
+	}
+}
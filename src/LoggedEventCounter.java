@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/*
+ * Event Counter which appends every increase and reduce to a WriteAheadLog
+ * after applying it to the underlying counter. Queries go straight to the
+ * counter.
+ *
+ * An operation is only buffered by the log until its group is committed
+ * (see WriteAheadLog), so the cost per operation is a few bytes copied. An
+ * operation that fails (i.e. an increase which would overflow the count) is
+ * not logged. An IOException from the log is rethrown as an
+ * UncheckedIOException, since the EventCounter methods don't declare it.
+ */
+public class LoggedEventCounter implements EventCounter {
+
+	private final EventCounter tree;
+	private final WriteAheadLog log;
+
+	public LoggedEventCounter(EventCounter tree, WriteAheadLog log) {
+		this.tree = tree;
+		this.log = log;
+	}
+
+	public int increase(int theIDofEvent, int countIncreaseBy) {
+		int count = tree.increase(theIDofEvent, countIncreaseBy);
+		append(WriteAheadLog.INCREASE, theIDofEvent, countIncreaseBy);
+		return count;
+	}
+
+	public int reduce(int theIDofEvent, int decreaseCountBy) {
+		int count = tree.reduce(theIDofEvent, decreaseCountBy);
+		append(WriteAheadLog.REDUCE, theIDofEvent, decreaseCountBy);
+		return count;
+	}
+
+	private void append(byte opcode, int theIDofEvent, int amount) {
+		try {
+			log.append(opcode, theIDofEvent, amount);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int count(int theIDofEvent) {
+		return tree.count(theIDofEvent);
+	}
+
+	public long inRange(int ID1, int ID2) {
+		return tree.inRange(ID1, ID2);
+	}
+
+	public long next(int theIDofEvent) {
+		return tree.next(theIDofEvent);
+	}
+
+	public long previous(int theIDofEvent) {
+		return tree.previous(theIDofEvent);
+	}
+}
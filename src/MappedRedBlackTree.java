@@ -0,0 +1,326 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/*
+ * Event counter with the same operations as RedBlackTree, whose nodes live in
+ * a memory-mapped counter file instead of on the Java heap. The tree
+ * algorithms are in IndexedRedBlackTree.
+ *
+ * A restart remaps the existing counter file instead of re-parsing the
+ * initial sorted input, and since only the pages in use are resident the
+ * counter can grow beyond the maximum heap size.
+ *
+ * Counter file format (native byte order):
+ *
+ * header (HEADER_BYTES): magic, version, clean flag, root, numberOfEvents,
+ * nextFreshSlot, freeListHead
+ *
+ * nodes (NODE_BYTES each, node 0 is NIL): key, count, subtreeCount (64-bit),
+ * leftChild, rightChild, parent (whose top bit is the color, set when RED,
+ * and the next one IN_USE_BIT, set while the slot holds an event)
+ *
+ * The nodes are mapped in chunks of 2^CHUNK_SHIFT nodes, since a single
+ * MappedByteBuffer can't exceed 2 GB. The header is only brought up to date,
+ * and the clean flag set, by close(); a counter file which wasn't closed
+ * cleanly (the process died before close()) is rebuilt by recover() instead.
+ * A counter file is always built under a temporary name and renamed over
+ * the old one once it's on disk, like an EventSnapshot, so a crash while
+ * creating or recovering it leaves the old one intact.
+ */
+public class MappedRedBlackTree extends IndexedRedBlackTree {
+
+	private static final int MAGIC = 0x45564354; // "EVCT"
+	private static final int VERSION = 3;
+
+	// Header fields.
+	private static final int HEADER_BYTES = 64;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int CLEAN_OFFSET = 8;
+	private static final int ROOT_OFFSET = 12;
+	private static final int NUMBER_OF_EVENTS_OFFSET = 16;
+	private static final int NEXT_FRESH_SLOT_OFFSET = 20;
+	private static final int FREE_LIST_HEAD_OFFSET = 24;
+
+	// Node fields.
+	private static final int NODE_BYTES = 28;
+	private static final int KEY = 0;
+	private static final int COUNT = 4;
+	private static final int SUBTREE_COUNT = 8; // a long
+	private static final int LEFT_CHILD = 16;
+	private static final int RIGHT_CHILD = 20;
+	private static final int PARENT = 24;
+	private static final int RED_BIT = 0x80000000;
+	private static final int IN_USE_BIT = 0x40000000;
+
+	// The parent field has room for this many slots, NIL included.
+	private static final int MAX_SLOTS = IN_USE_BIT;
+
+	private static final int CHUNK_SHIFT = 20; // 1M nodes, 28 MB per mapping
+	private static final int CHUNK_NODES = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_NODES - 1;
+
+	private final RandomAccessFile counterFile;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+	private MappedRedBlackTree(File file) throws IOException {
+		counterFile = new RandomAccessFile(file, "rw");
+		channel = counterFile.getChannel();
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+		header.order(ByteOrder.nativeOrder());
+	}
+
+	/*
+	 * Create a new counter file holding the ascending sorted IDs and their
+	 * counts, built in O(n) time. It's built and closed under a temporary
+	 * name, then renamed over any existing one and opened.
+	 */
+	static MappedRedBlackTree create(File file, int sortedIDs[], int sortedCounts[], int totalNumberOfEvents)
+			throws IOException {
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		temporaryFile.delete();
+		MappedRedBlackTree tree = new MappedRedBlackTree(temporaryFile);
+		boolean built = false;
+		try {
+			tree.header.putInt(MAGIC_OFFSET, MAGIC);
+			tree.header.putInt(VERSION_OFFSET, VERSION);
+			tree.header.putInt(CLEAN_OFFSET, 0);
+			tree.grow(totalNumberOfEvents + 1);
+			tree.buildFromSortedArrays(sortedIDs, sortedCounts, totalNumberOfEvents);
+			tree.close();
+			built = true;
+		} finally {
+			if (!built) {
+				tree.channel.close();
+				tree.counterFile.close();
+				temporaryFile.delete();
+			}
+		}
+		Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return open(file);
+	}
+
+	/*
+	 * Remap an existing counter file which was closed cleanly. Time
+	 * complexity: O(1) in the number of events. A counter file which wasn't
+	 * is recovered instead, in O(n log n) time.
+	 */
+	static MappedRedBlackTree open(File file) throws IOException {
+		if (file.length() < HEADER_BYTES) {
+			throw new IOException("Not a counter file: " + file);
+		}
+		MappedRedBlackTree tree = new MappedRedBlackTree(file);
+		try {
+			if (tree.header.getInt(MAGIC_OFFSET) != MAGIC || tree.header.getInt(VERSION_OFFSET) != VERSION) {
+				throw new IOException("Not a counter file: " + file);
+			}
+			if (tree.header.getInt(CLEAN_OFFSET) == 0) {
+				tree.channel.close();
+				tree.counterFile.close();
+				return recover(file);
+			}
+			tree.root = tree.header.getInt(ROOT_OFFSET);
+			tree.numberOfEvents = tree.header.getInt(NUMBER_OF_EVENTS_OFFSET);
+			tree.nextFreshSlot = tree.header.getInt(NEXT_FRESH_SLOT_OFFSET);
+			tree.freeListHead = tree.header.getInt(FREE_LIST_HEAD_OFFSET);
+			tree.grow(tree.nextFreshSlot);
+			// The file is dirty until it's closed again.
+			tree.header.putInt(CLEAN_OFFSET, 0);
+			tree.header.force();
+		} catch (IOException e) {
+			tree.channel.close();
+			tree.counterFile.close();
+			throw e;
+		}
+		return tree;
+	}
+
+	/*
+	 * Rebuild a counter file which wasn't closed cleanly. Its header is stale
+	 * (root, numberOfEvents and the slot allocation are only written by
+	 * close()), but every node write went straight to the mapped pages, so
+	 * after the process dies the file still holds every event: each in use
+	 * slot (whatever its count) has IN_USE_BIT set, while never used slots
+	 * are all zero and freed ones have it cleared. The slots are scanned for
+	 * the events, which are sorted by ID and a new counter file is created
+	 * from them by create(), which only replaces the damaged one once it's
+	 * complete. An operation cut short by the process dying may or may not be in
+	 * the result (a delete caught moving an event up leaves two copies of it,
+	 * one of which is kept), and a machine crash may lose pages the operating
+	 * system hadn't written back yet. The events are collected on the heap,
+	 * 8 bytes per event.
+	 */
+	static MappedRedBlackTree recover(File file) throws IOException {
+		long[] events;
+		int numberOfEvents = 0;
+		MappedRedBlackTree damaged = new MappedRedBlackTree(file);
+		try {
+			if (damaged.header.getInt(MAGIC_OFFSET) != MAGIC || damaged.header.getInt(VERSION_OFFSET) != VERSION) {
+				throw new IOException("Not a counter file: " + file);
+			}
+			int slots = (int) Math.min((file.length() - HEADER_BYTES) / NODE_BYTES, MAX_SLOTS);
+			damaged.grow(slots);
+			events = new long[16];
+			for (int node = NIL + 1; node < slots; node++) {
+				if ((damaged.readField(node, PARENT) & IN_USE_BIT) != 0) {
+					if (numberOfEvents == events.length) {
+						events = Arrays.copyOf(events, 2 * numberOfEvents);
+					}
+					events[numberOfEvents++] = EventCounter.event(damaged.getKey(node), damaged.getCount(node));
+				}
+			}
+		} finally {
+			damaged.channel.close();
+			damaged.counterFile.close();
+		}
+		// The ID is in the high half, so this sorts by ID.
+		Arrays.sort(events, 0, numberOfEvents);
+		int[] sortedIDs = new int[numberOfEvents], sortedCounts = new int[numberOfEvents];
+		int distinct = 0;
+		for (int i = 0; i < numberOfEvents; i++) {
+			int ID = EventCounter.eventID(events[i]);
+			if (distinct == 0 || sortedIDs[distinct - 1] != ID) {
+				sortedIDs[distinct] = ID;
+				sortedCounts[distinct++] = EventCounter.eventCount(events[i]);
+			}
+		}
+		return create(file, sortedIDs, sortedCounts, distinct);
+	}
+
+	/*
+	 * Write the header, flush all mapped pages to the file and mark it clean.
+	 */
+	void close() throws IOException {
+		header.putInt(ROOT_OFFSET, root);
+		header.putInt(NUMBER_OF_EVENTS_OFFSET, numberOfEvents);
+		header.putInt(NEXT_FRESH_SLOT_OFFSET, nextFreshSlot);
+		header.putInt(FREE_LIST_HEAD_OFFSET, freeListHead);
+		for (MappedByteBuffer chunk : chunks) {
+			chunk.force();
+		}
+		header.force();
+		header.putInt(CLEAN_OFFSET, 1);
+		header.force();
+		channel.close();
+		counterFile.close();
+	}
+
+	private int readField(int node, int field) {
+		return chunks[node >>> CHUNK_SHIFT].getInt((node & CHUNK_MASK) * NODE_BYTES + field);
+	}
+
+	private void writeField(int node, int field, int value) {
+		chunks[node >>> CHUNK_SHIFT].putInt((node & CHUNK_MASK) * NODE_BYTES + field, value);
+	}
+
+	final int getKey(int node) {
+		return readField(node, KEY);
+	}
+
+	final void setKey(int node, int key) {
+		writeField(node, KEY, key);
+	}
+
+	final int getCount(int node) {
+		return readField(node, COUNT);
+	}
+
+	final void setCount(int node, int count) {
+		writeField(node, COUNT, count);
+	}
+
+	final long getSubtreeCount(int node) {
+		return chunks[node >>> CHUNK_SHIFT].getLong((node & CHUNK_MASK) * NODE_BYTES + SUBTREE_COUNT);
+	}
+
+	final void setSubtreeCount(int node, long subtreeCount) {
+		chunks[node >>> CHUNK_SHIFT].putLong((node & CHUNK_MASK) * NODE_BYTES + SUBTREE_COUNT, subtreeCount);
+	}
+
+	final int getLeftChild(int node) {
+		return readField(node, LEFT_CHILD);
+	}
+
+	final void setLeftChild(int node, int leftChild) {
+		writeField(node, LEFT_CHILD, leftChild);
+	}
+
+	final int getRightChild(int node) {
+		return readField(node, RIGHT_CHILD);
+	}
+
+	final void setRightChild(int node, int rightChild) {
+		writeField(node, RIGHT_CHILD, rightChild);
+	}
+
+	final int getParent(int node) {
+		return readField(node, PARENT) & ~(RED_BIT | IN_USE_BIT);
+	}
+
+	/*
+	 * Every node in the tree has its parent set (NIL for the root), which
+	 * marks its slot in use.
+	 */
+	final void setParent(int node, int parent) {
+		writeField(node, PARENT, (readField(node, PARENT) & RED_BIT) | IN_USE_BIT | parent);
+	}
+
+	final boolean isRed(int node) {
+		return (readField(node, PARENT) & RED_BIT) != 0;
+	}
+
+	final void setRed(int node, boolean red) {
+		int parentAndColor = readField(node, PARENT);
+		writeField(node, PARENT, red ? parentAndColor | RED_BIT : parentAndColor & ~RED_BIT);
+	}
+
+	final int capacity() {
+		return chunks.length << CHUNK_SHIFT;
+	}
+
+	/*
+	 * Clear the freed slot's parent field, and so its IN_USE_BIT.
+	 */
+	void freeNode(int node) {
+		super.freeNode(node);
+		writeField(node, PARENT, 0);
+	}
+
+	/*
+	 * Map more chunks of the counter file (which extends it as needed) until
+	 * the given number of slots fit.
+	 */
+	final void grow(int minimumCapacity) {
+		if (minimumCapacity > MAX_SLOTS) {
+			if (capacity() == MAX_SLOTS) {
+				throw new IllegalStateException("Counter file full");
+			}
+			minimumCapacity = MAX_SLOTS;
+		}
+		int chunksNeeded = (minimumCapacity + CHUNK_MASK) >>> CHUNK_SHIFT;
+		if (chunksNeeded <= chunks.length) {
+			return;
+		}
+		MappedByteBuffer[] grown = Arrays.copyOf(chunks, chunksNeeded);
+		try {
+			for (int i = chunks.length; i < chunksNeeded; i++) {
+				grown[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+						HEADER_BYTES + (long) i * CHUNK_NODES * NODE_BYTES, (long) CHUNK_NODES * NODE_BYTES);
+				grown[i].order(ByteOrder.nativeOrder());
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not map the counter file", e);
+		}
+		chunks = grown;
+	}
+}
@@ -0,0 +1,232 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Benchmark suite for every Event Counter operation, so that performance
+ * changes to the counter can be judged against numbers.
+ *
+ * For tree sizes of 10^3, 10^4, ... up to the given maximum (10^8 at most),
+ * and for each ID distribution, it reports the bulk constructor time per
+ * event and the average ns/op of:
+ *
+ * increase (of a present ID), reduce (a decrement that leaves the event in
+ * the tree), count, inRange (with present and with absent end points), next,
+ * previous, and reduce to zero + increase (deleting the event and inserting
+ * it again).
+ *
+ * The ID distributions are:
+ *
+ * uniform: the event IDs are evenly spaced and the probed IDs are drawn
+ * uniformly from them.
+ *
+ * skewed: the gaps between the event IDs follow a heavy tailed distribution
+ * (dense clusters with a few big holes) and the probed IDs are drawn with a
+ * power law bias towards the smallest IDs, so a few hot events take most of
+ * the operations.
+ *
+ * Event IDs are always even, so ID + 1 is never present. Each operation is
+ * warmed up for WARMUP_ITERATIONS and then timed for MEASURED_ITERATIONS on
+ * the same tree, with the probes precomputed so only the tree is measured.
+ * Sizes which wouldn't fit in the maximum heap are skipped.
+ *
+ * The command line is as follows:
+ *
+ * $java OperationBenchmark [heap|array|persistent] [max-number-of-events]
+ *
+ * heap benchmarks RedBlackTree (the default), array benchmarks
+ * ArrayRedBlackTree and persistent PersistentRedBlackTree. The maximum number of events defaults to 1000000; run
+ * with a large heap (i.e. java -Xmx12000m) for 10^8.
+ */
+public class OperationBenchmark {
+
+	private static final int MAX_NUMBER_OF_EVENTS = 100000000;
+
+	private static final int WARMUP_ITERATIONS = 200000;
+	private static final int MEASURED_ITERATIONS = 1000000;
+
+	// Number of precomputed probes, cycled through by the timing loops.
+	private static final int PROBES = 1 << 20;
+	private static final int PROBE_MASK = PROBES - 1;
+
+	// Initial count of every event. increase and reduce are timed with the
+	// same probes, so the counts are back to it afterwards.
+	private static final int INITIAL_COUNT = 10;
+
+	// Rough heap needed per event by each tree, and by the sorted arrays.
+	private static final int HEAP_BYTES_PER_EVENT = 80;
+	private static final int PERSISTENT_BYTES_PER_EVENT = 64;
+	private static final int ARRAY_BYTES_PER_EVENT = 40;
+
+	private static final String[] TREES = { "heap", "array", "persistent" };
+
+	private static final String[] DISTRIBUTIONS = { "uniform", "skewed" };
+
+	// delete+insert goes last, so the other operations see the tree as built.
+	private static final String[] OPERATIONS = { "build/event", "increase", "reduce", "count", "inRange",
+			"inRange absent", "next", "previous", "delete+insert" };
+
+	// Accumulates operation results so the JIT can't eliminate the measured
+	// calls.
+	private static long sink;
+
+	public static void main(String[] args) {
+		String tree = "heap";
+		int maxNumberOfEvents = 1000000;
+		if (0 < args.length) {
+			tree = args[0];
+			if (!Arrays.asList(TREES).contains(tree)) {
+				System.out.println("\nInvalid tree: '" + tree + "' ! Use heap, array or persistent. ");
+				return;
+			}
+		}
+		if (1 < args.length) {
+			maxNumberOfEvents = Math.min(Integer.parseInt(args[1]), MAX_NUMBER_OF_EVENTS);
+		}
+		System.out.println(build(new int[] { 1 }, new int[] { 1 }, 1, tree).getClass().getName() + ", ns/op");
+		System.out.printf("%12s %8s", "events", "IDs");
+		for (String operation : OPERATIONS) {
+			System.out.printf(" %14s", operation);
+		}
+		System.out.println();
+		long bytesPerEvent = "array".equals(tree) ? ARRAY_BYTES_PER_EVENT
+				: "persistent".equals(tree) ? PERSISTENT_BYTES_PER_EVENT : HEAP_BYTES_PER_EVENT;
+		for (int nodesCount = 1000; nodesCount <= maxNumberOfEvents; nodesCount *= 10) {
+			for (int distribution = 0; distribution < DISTRIBUTIONS.length; distribution++) {
+				System.out.printf("%12d %8s", nodesCount, DISTRIBUTIONS[distribution]);
+				if (nodesCount * bytesPerEvent > Runtime.getRuntime().maxMemory()) {
+					System.out.println(" skipped, needs a larger heap");
+					continue;
+				}
+				double[] times = benchmarkOperations(nodesCount, distribution == 1, tree);
+				for (double time : times) {
+					System.out.printf(" %14.1f", time);
+				}
+				System.out.println();
+			}
+		}
+		System.out.println("(sink " + sink + ")");
+	}
+
+	/*
+	 * Build a tree of the given size and distribution, and time each of the
+	 * OPERATIONS on it.
+	 */
+	static double[] benchmarkOperations(int nodesCount, boolean skewed, String tree) {
+		Random random = new Random(42);
+		int[] sortedIDs = new int[nodesCount];
+		int[] sortedCounts = new int[nodesCount];
+		int ID = 0;
+		for (int i = 0; i < nodesCount; i++) {
+			// Even IDs, with an average gap of 10 (uniform) or about 13
+			// (skewed, mostly 2 with the occasional gap of up to 100).
+			ID += skewed ? 2 * (1 + (int) (50 * Math.pow(random.nextDouble(), 8))) : 10;
+			sortedIDs[i] = ID;
+			sortedCounts[i] = INITIAL_COUNT;
+		}
+
+		// Probed IDs, and the inRange end points ID1 <= ID2.
+		int[] probes = new int[PROBES];
+		int[] rangeEnds = new int[PROBES];
+		for (int i = 0; i < PROBES; i++) {
+			int index = skewed ? (int) (nodesCount * Math.pow(random.nextDouble(), 3)) : random.nextInt(nodesCount);
+			probes[i] = sortedIDs[index];
+			rangeEnds[i] = sortedIDs[index + random.nextInt(nodesCount - index)];
+		}
+
+		double[] times = new double[OPERATIONS.length];
+		long start = System.nanoTime();
+		EventCounter counter = build(sortedIDs, sortedCounts, nodesCount, tree);
+		times[0] = (double) (System.nanoTime() - start) / nodesCount;
+		// Time the build again now that it's warmed up, and keep the best.
+		for (int round = 0; round < 2; round++) {
+			counter = null;
+			start = System.nanoTime();
+			counter = build(sortedIDs, sortedCounts, nodesCount, tree);
+			times[0] = Math.min(times[0], (double) (System.nanoTime() - start) / nodesCount);
+		}
+		sortedIDs = null;
+		sortedCounts = null;
+
+		for (int operation = 1; operation < OPERATIONS.length; operation++) {
+			times[operation] = timeOperation(operation, counter, probes, rangeEnds);
+		}
+		return times;
+	}
+
+	static EventCounter build(int sortedIDs[], int sortedCounts[], int nodesCount, String tree) {
+		if ("array".equals(tree)) {
+			return new ArrayRedBlackTree(sortedIDs, sortedCounts, nodesCount);
+		}
+		if ("persistent".equals(tree)) {
+			return new PersistentRedBlackTree(sortedIDs, sortedCounts, nodesCount);
+		}
+		return new RedBlackTree(sortedIDs, sortedCounts, nodesCount);
+	}
+
+	/*
+	 * Average ns/op of one of the OPERATIONS, over MEASURED_ITERATIONS after
+	 * WARMUP_ITERATIONS.
+	 */
+	static double timeOperation(int operation, EventCounter tree, int[] probes, int[] rangeEnds) {
+		runOperation(operation, tree, probes, rangeEnds, 0, WARMUP_ITERATIONS);
+		long start = System.nanoTime();
+		runOperation(operation, tree, probes, rangeEnds, WARMUP_ITERATIONS, MEASURED_ITERATIONS);
+		return (double) (System.nanoTime() - start) / MEASURED_ITERATIONS;
+	}
+
+	/*
+	 * Run the operation with the probes first, first + 1, ... (cycling
+	 * through them). increase and reduce are run with the same probes the
+	 * same number of times, which leaves every count back at INITIAL_COUNT.
+	 */
+	static void runOperation(int operation, EventCounter tree, int[] probes, int[] rangeEnds, int first,
+			int iterations) {
+		long sum = 0;
+		int end = first + iterations;
+		switch (OPERATIONS[operation]) {
+		case "increase":
+			for (int i = first; i < end; i++) {
+				sum += tree.increase(probes[i & PROBE_MASK], 1);
+			}
+			break;
+		case "reduce":
+			for (int i = first; i < end; i++) {
+				sum += tree.reduce(probes[i & PROBE_MASK], 1);
+			}
+			break;
+		case "delete+insert":
+			for (int i = first; i < end; i++) {
+				int ID = probes[i & PROBE_MASK];
+				sum += tree.reduce(ID, INITIAL_COUNT);
+				sum += tree.increase(ID, INITIAL_COUNT);
+			}
+			break;
+		case "count":
+			for (int i = first; i < end; i++) {
+				sum += tree.count(probes[i & PROBE_MASK]);
+			}
+			break;
+		case "inRange":
+			for (int i = first; i < end; i++) {
+				sum += tree.inRange(probes[i & PROBE_MASK], rangeEnds[i & PROBE_MASK]);
+			}
+			break;
+		case "inRange absent":
+			for (int i = first; i < end; i++) {
+				sum += tree.inRange(probes[i & PROBE_MASK] + 1, rangeEnds[i & PROBE_MASK] + 1);
+			}
+			break;
+		case "next":
+			for (int i = first; i < end; i++) {
+				sum += tree.next(probes[i & PROBE_MASK]);
+			}
+			break;
+		case "previous":
+			for (int i = first; i < end; i++) {
+				sum += tree.previous(probes[i & PROBE_MASK]);
+			}
+			break;
+		}
+		sink += sum;
+	}
+}
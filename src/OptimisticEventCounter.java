@@ -0,0 +1,233 @@
+import java.util.concurrent.locks.StampedLock;
+
+/*
+ * Thread-safe Event Counter for read-heavy workloads (mostly count, inRange,
+ * next and previous, with the odd increase or reduce).
+ *
+ * A single RedBlackTree is guarded by a StampedLock. Writers take it
+ * exclusively, so the rotations and recoloring of an update are never seen
+ * half done by a reader that trusts its result. Readers don't lock at all:
+ * they take an optimistic stamp, do their descent, and validate the stamp
+ * afterwards. Only if a writer got in the way do they retry under the read
+ * lock.
+ *
+ * A descent that races with a writer may follow links into a momentarily
+ * inconsistent tree (even a cycle), so the optimistic descents here are
+ * bounded by MAX_DESCENT_STEPS, more than the height of any red-black tree
+ * with at most 2^31 events, and any step over it, or a null where there
+ * shouldn't be one, just fails the optimistic attempt.
+ */
+public class OptimisticEventCounter implements EventCounter {
+
+	// A red-black tree of n events is at most 2 log2(n + 1) high.
+	private static final int MAX_DESCENT_STEPS = 64;
+
+	private final RedBlackTree tree;
+	private final StampedLock lock = new StampedLock();
+
+	/*
+	 * Thrown by an optimistic descent that can't have seen a consistent tree.
+	 */
+	private static final class InconsistentRead extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		InconsistentRead() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final InconsistentRead INCONSISTENT_READ = new InconsistentRead();
+
+	public OptimisticEventCounter(RedBlackTree tree) {
+		this.tree = tree;
+	}
+
+	public int increase(int theIDofEvent, int countIncreaseBy) {
+		long stamp = lock.writeLock();
+		try {
+			return tree.increase(theIDofEvent, countIncreaseBy);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public int reduce(int theIDofEvent, int decreaseCountBy) {
+		long stamp = lock.writeLock();
+		try {
+			return tree.reduce(theIDofEvent, decreaseCountBy);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public int count(int theIDofEvent) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				RedBlackTree.TreeNode node = findNode(theIDofEvent);
+				int count = node == null ? 0 : node.count;
+				if (lock.validate(stamp)) {
+					return count;
+				}
+			} catch (RuntimeException e) {
+				// Raced with a writer, retry under the read lock.
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return tree.count(theIDofEvent);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * Optimistically, the total count for IDs between ID1 and ID2 is the
+	 * difference of two prefix sums, each a single bounded descent.
+	 */
+	public long inRange(int ID1, int ID2) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				long totalCountInRange = ID1 > ID2 ? 0 : prefixCount(ID2, true) - prefixCount(ID1, false);
+				if (lock.validate(stamp)) {
+					return totalCountInRange;
+				}
+			} catch (RuntimeException e) {
+				// Raced with a writer, retry under the read lock.
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return tree.inRange(ID1, ID2);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public long next(int theIDofEvent) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				long event = toEvent(ceilingNode(theIDofEvent));
+				if (lock.validate(stamp)) {
+					return event;
+				}
+			} catch (RuntimeException e) {
+				// Raced with a writer, retry under the read lock.
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return tree.next(theIDofEvent);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public long previous(int theIDofEvent) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				long event = toEvent(floorNode(theIDofEvent));
+				if (lock.validate(stamp)) {
+					return event;
+				}
+			} catch (RuntimeException e) {
+				// Raced with a writer, retry under the read lock.
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return tree.previous(theIDofEvent);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private static long toEvent(RedBlackTree.TreeNode node) {
+		return node == null ? NO_EVENT : EventCounter.event(node.key, node.count);
+	}
+
+	/*
+	 * The bounded counterparts of the RedBlackTree descents.
+	 */
+	private RedBlackTree.TreeNode findNode(int ID) {
+		RedBlackTree.TreeNode node = tree.root;
+		for (int steps = 0; node != null; steps++) {
+			if (steps == MAX_DESCENT_STEPS) {
+				throw INCONSISTENT_READ;
+			}
+			if (ID < node.key) {
+				node = node.leftChild;
+			} else if (ID > node.key) {
+				node = node.rightChild;
+			} else {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * The event with the lowest ID greater than ID.
+	 */
+	private RedBlackTree.TreeNode ceilingNode(int ID) {
+		RedBlackTree.TreeNode node = tree.root, bestFit = null;
+		for (int steps = 0; node != null; steps++) {
+			if (steps == MAX_DESCENT_STEPS) {
+				throw INCONSISTENT_READ;
+			}
+			if (ID < node.key) {
+				bestFit = node;
+				node = node.leftChild;
+			} else {
+				node = node.rightChild;
+			}
+		}
+		return bestFit;
+	}
+
+	/*
+	 * The event with the greatest ID less than ID.
+	 */
+	private RedBlackTree.TreeNode floorNode(int ID) {
+		RedBlackTree.TreeNode node = tree.root, bestFit = null;
+		for (int steps = 0; node != null; steps++) {
+			if (steps == MAX_DESCENT_STEPS) {
+				throw INCONSISTENT_READ;
+			}
+			if (ID > node.key) {
+				bestFit = node;
+				node = node.rightChild;
+			} else {
+				node = node.leftChild;
+			}
+		}
+		return bestFit;
+	}
+
+	/*
+	 * Total count of the events with IDs less than (or, if inclusive, equal
+	 * to) ID.
+	 */
+	private long prefixCount(int ID, boolean inclusive) {
+		RedBlackTree.TreeNode node = tree.root;
+		long total = 0;
+		for (int steps = 0; node != null; steps++) {
+			if (steps == MAX_DESCENT_STEPS) {
+				throw INCONSISTENT_READ;
+			}
+			if (ID > node.key || (inclusive && ID == node.key)) {
+				if (node.leftChild != null) {
+					total += node.leftChild.subtreeCount;
+				}
+				total += node.count;
+				node = node.rightChild;
+			} else {
+				node = node.leftChild;
+			}
+		}
+		return total;
+	}
+}
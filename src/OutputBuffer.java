@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Reusable byte buffer for the results of the Event Counter commands.
+ * Numbers are formatted straight into the buffer as ASCII digits, and the
+ * buffer is handed to the underlying stream in a single write() when it
+ * fills up or flush() is called, instead of a synchronized, flushing
+ * System.out.println() per command.
+ */
+public class OutputBuffer {
+
+	private static final int DEFAULT_SIZE = 1 << 20;
+
+	// Room for the longest line we write: two longs, a space and an EOL.
+	private static final int MAX_LINE = 2 * 20 + 2;
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int position;
+
+	public OutputBuffer(OutputStream out) {
+		this(out, DEFAULT_SIZE);
+	}
+
+	public OutputBuffer(OutputStream out, int size) {
+		this.out = out;
+		this.buffer = new byte[Math.max(size, MAX_LINE)];
+	}
+
+	/*
+	 * Write the number followed by an EOL character.
+	 */
+	void printLine(long number) throws IOException {
+		ensureRoom(MAX_LINE);
+		writeNumber(number);
+		buffer[position++] = '\n';
+	}
+
+	/*
+	 * Write the two numbers separated by a space, followed by an EOL
+	 * character.
+	 */
+	void printLine(long first, long second) throws IOException {
+		ensureRoom(MAX_LINE);
+		writeNumber(first);
+		buffer[position++] = ' ';
+		writeNumber(second);
+		buffer[position++] = '\n';
+	}
+
+	/*
+	 * Write the ID and the count of an event returned by next() or
+	 * previous(), “0 0” if there is none.
+	 */
+	void printEvent(long event) throws IOException {
+		printLine(EventCounter.eventID(event), EventCounter.eventCount(event));
+	}
+
+	/*
+	 * Write the text followed by an EOL character. Only used for rare
+	 * messages, so the String conversion is fine here.
+	 */
+	void printLine(String text) throws IOException {
+		byte[] bytes = text.getBytes();
+		ensureRoom(bytes.length + 1);
+		if (bytes.length + 1 > buffer.length) {
+			out.write(bytes);
+		} else {
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+		buffer[position++] = '\n';
+	}
+
+	/*
+	 * Hand everything buffered so far to the underlying stream in one write.
+	 */
+	void flush() throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+		out.flush();
+	}
+
+	private void ensureRoom(int bytes) throws IOException {
+		if (buffer.length - position < bytes) {
+			flush();
+		}
+	}
+
+	/*
+	 * Format the number in ASCII at the current position.
+	 */
+	private void writeNumber(long number) {
+		if (number == Long.MIN_VALUE) {
+			byte[] digits = Long.toString(number).getBytes();
+			System.arraycopy(digits, 0, buffer, position, digits.length);
+			position += digits.length;
+			return;
+		}
+		if (number < 0) {
+			buffer[position++] = '-';
+			number = -number;
+		}
+		int start = position;
+		do {
+			buffer[position++] = (byte) ('0' + number % 10);
+			number /= 10;
+		} while (number != 0);
+		// The digits were written least significant first.
+		for (int i = start, j = position - 1; i < j; i++, j--) {
+			byte digit = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = digit;
+		}
+	}
+}
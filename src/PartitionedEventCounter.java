@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/*
+ * Event Counter range partitioned across several counter nodes, so the
+ * number of events isn't capped by one machine's heap.
+ *
+ * Partition p holds the IDs from partitionLowestID[p] up to (but not
+ * including) partitionLowestID[p + 1], in its own EventCounter: a
+ * RedBlackTree in this process, or a RemoteEventCounter client of a
+ * CounterServer in another process. increase, reduce and count are routed to
+ * the partition owning the ID. inRange scatters the query to every partition
+ * the range overlaps and gathers the partial totals (each a difference of
+ * two prefix sums over that node's subtreeCounts), concurrently on the
+ * executor if one is given, which pays off when the nodes are remote. next
+ * and previous spill over to the following (preceding) partitions while the
+ * owner of the ID has no further event.
+ *
+ * Capacity grows horizontally: addPartition() adds a node taking over the
+ * upper part of an existing partition, whose events are migrated to it.
+ *
+ * Like RedBlackTree, the counter itself is not thread-safe (the executor only
+ * runs the parts of a single query concurrently).
+ */
+public class PartitionedEventCounter implements EventCounter {
+
+	private EventCounter[] partitions;
+	// Smallest ID of each partition (the first one is Integer.MIN_VALUE).
+	private int[] partitionLowestID;
+	private final Executor executor;
+
+	/*
+	 * Partition the ID space between the given counters, partition p starting
+	 * at partitionLowestID[p]. The boundaries must be ascending, from
+	 * Integer.MIN_VALUE. With a null executor the parts of a query run one
+	 * after the other.
+	 */
+	public PartitionedEventCounter(EventCounter[] partitions, int[] partitionLowestID, Executor executor) {
+		if (partitions.length == 0 || partitions.length != partitionLowestID.length
+				|| partitionLowestID[0] != Integer.MIN_VALUE) {
+			throw new IllegalArgumentException("Partitions must start at Integer.MIN_VALUE");
+		}
+		for (int p = 1; p < partitionLowestID.length; p++) {
+			if (partitionLowestID[p] <= partitionLowestID[p - 1]) {
+				throw new IllegalArgumentException("Partition boundaries must be ascending");
+			}
+		}
+		this.partitions = partitions.clone();
+		this.partitionLowestID = partitionLowestID.clone();
+		this.executor = executor;
+	}
+
+	/*
+	 * Partition the ascending sorted IDs and their counts evenly between the
+	 * given number of in-process RedBlackTrees, each built in O(n /
+	 * partitions) time.
+	 */
+	static PartitionedEventCounter inProcess(int sortedIDs[], int sortedCounts[], int totalNumberOfEvents,
+			int numberOfPartitions) {
+		int[] partitionLowestID = RangePartitioning.evenBoundaries(sortedIDs, totalNumberOfEvents, numberOfPartitions);
+		return new PartitionedEventCounter(
+				RangePartitioning.buildParts(sortedIDs, sortedCounts, totalNumberOfEvents, partitionLowestID),
+				partitionLowestID, null);
+	}
+
+	int numberOfPartitions() {
+		return partitions.length;
+	}
+
+	/*
+	 * Index of the partition owning the given ID, by binary search over the
+	 * partition boundaries.
+	 */
+	int partitionOf(int ID) {
+		return RangePartitioning.partOf(partitionLowestID, ID);
+	}
+
+	public int increase(int theIDofEvent, int countIncreaseBy) {
+		return partitions[partitionOf(theIDofEvent)].increase(theIDofEvent, countIncreaseBy);
+	}
+
+	public int reduce(int theIDofEvent, int decreaseCountBy) {
+		return partitions[partitionOf(theIDofEvent)].reduce(theIDofEvent, decreaseCountBy);
+	}
+
+	public int count(int theIDofEvent) {
+		return partitions[partitionOf(theIDofEvent)].count(theIDofEvent);
+	}
+
+	/*
+	 * Sum the partial totals of the partitions the range overlaps. Time
+	 * complexity: O(log n) per partition, in parallel with an executor.
+	 */
+	public long inRange(int ID1, int ID2) {
+		if (ID1 > ID2) {
+			return 0;
+		}
+		int first = partitionOf(ID1), last = partitionOf(ID2);
+		long totalCountInRange = 0;
+		if (executor == null || first == last) {
+			for (int p = first; p <= last; p++) {
+				totalCountInRange += partitions[p].inRange(ID1, ID2);
+			}
+			return totalCountInRange;
+		}
+		List<CompletableFuture<Long>> partialTotals = new ArrayList<>(last - first + 1);
+		for (int p = first; p <= last; p++) {
+			EventCounter partition = partitions[p];
+			partialTotals.add(CompletableFuture.supplyAsync(() -> partition.inRange(ID1, ID2), executor));
+		}
+		for (CompletableFuture<Long> partialTotal : partialTotals) {
+			totalCountInRange += partialTotal.join();
+		}
+		return totalCountInRange;
+	}
+
+	/*
+	 * The event with the lowest ID greater than theID, searching the
+	 * following partitions while there is none in the current one.
+	 */
+	public long next(int theIDofEvent) {
+		for (int p = partitionOf(theIDofEvent); p < partitions.length; p++) {
+			long event = partitions[p].next(theIDofEvent);
+			if (event != NO_EVENT) {
+				return event;
+			}
+		}
+		return NO_EVENT;
+	}
+
+	/*
+	 * The event with the greatest ID less than theID, searching the
+	 * preceding partitions while there is none in the current one.
+	 */
+	public long previous(int theIDofEvent) {
+		for (int p = partitionOf(theIDofEvent); p >= 0; p--) {
+			long event = partitions[p].previous(theIDofEvent);
+			if (event != NO_EVENT) {
+				return event;
+			}
+		}
+		return NO_EVENT;
+	}
+
+	/*
+	 * Add an (empty) counter node as a new partition starting at lowestID,
+	 * taking over the IDs from lowestID up to the end of the partition which
+	 * owned them. Their events are migrated to the new node one by one. Time
+	 * complexity: O(m log n) for m migrated events.
+	 */
+	void addPartition(int lowestID, EventCounter node) {
+		int owner = partitionOf(lowestID);
+		if (partitionLowestID[owner] == lowestID) {
+			throw new IllegalArgumentException("A partition already starts at " + lowestID);
+		}
+		boolean lastPartition = owner + 1 == partitions.length;
+		int upperID = lastPartition ? 0 : partitionLowestID[owner + 1];
+		EventCounter ownerPartition = partitions[owner];
+		for (long event = ownerPartition.next(lowestID - 1); event != NO_EVENT
+				&& (lastPartition || EventCounter.eventID(event) < upperID); event = ownerPartition
+						.next(EventCounter.eventID(event))) {
+			int ID = EventCounter.eventID(event), count = EventCounter.eventCount(event);
+			node.increase(ID, count);
+			ownerPartition.reduce(ID, count);
+		}
+
+		EventCounter[] grownPartitions = new EventCounter[partitions.length + 1];
+		int[] grownLowestID = new int[partitions.length + 1];
+		System.arraycopy(partitions, 0, grownPartitions, 0, owner + 1);
+		System.arraycopy(partitionLowestID, 0, grownLowestID, 0, owner + 1);
+		grownPartitions[owner + 1] = node;
+		grownLowestID[owner + 1] = lowestID;
+		System.arraycopy(partitions, owner + 1, grownPartitions, owner + 2, partitions.length - owner - 1);
+		System.arraycopy(partitionLowestID, owner + 1, grownLowestID, owner + 2, partitions.length - owner - 1);
+		partitions = grownPartitions;
+		partitionLowestID = grownLowestID;
+	}
+}
@@ -0,0 +1,492 @@
+import java.util.function.LongConsumer;
+
+/*
+ * Persistent (path copying) Event Counter, for consistent point-in-time reads
+ * alongside concurrent updates.
+ *
+ * Every increase or reduce produces a new version of the tree: the nodes on
+ * the path to the updated ID (and those the rebalancing touches) are copied,
+ * and every other subtree is shared with the previous version. A version is
+ * never modified once it's published, so a reader which pins one with pin()
+ * can run any number of queries (or a long scan) on it without any locking,
+ * and sees exactly the counts as of that version, whatever the writers do in
+ * the meantime. The counter's own queries read the latest version.
+ *
+ * Old versions are reclaimed by the garbage collector: a version's nodes are
+ * only referenced by the versions sharing them, so once no reader holds a
+ * Version (and no later version shares them), they are collected.
+ *
+ * Parent pointers can't be shared between versions, so unlike RedBlackTree
+ * this is a left-leaning red-black tree (a red node is always a left child)
+ * whose insert and delete rebalance on the way back up the recursion. Each
+ * node carries the version which created it, and an update may modify the
+ * nodes of its own version in place, copying any older node before it
+ * changes (see own()), so a node is copied at most once per update. Updates
+ * are O(log n) time and allocate O(log n) nodes. Writers are serialized by
+ * the counter's lock; readers never take it.
+ */
+public class PersistentRedBlackTree implements EventCounter {
+
+	private static final boolean RED = true;
+	private static final boolean BLACK = false;
+
+	static final class Node {
+		int key, count;
+		long subtreeCount;
+		Node leftChild, rightChild;
+		boolean isRed;
+		// The update which created the node, the only one allowed to modify
+		// it.
+		final long version;
+
+		Node(int key, int count, long version) {
+			this.key = key;
+			this.count = count;
+			this.subtreeCount = count;
+			this.isRed = RED;
+			this.version = version;
+		}
+
+		Node(Node node, long version) {
+			this.key = node.key;
+			this.count = node.count;
+			this.subtreeCount = node.subtreeCount;
+			this.leftChild = node.leftChild;
+			this.rightChild = node.rightChild;
+			this.isRed = node.isRed;
+			this.version = version;
+		}
+	}
+
+	/*
+	 * An immutable version of the counter, safe to query from any thread
+	 * without locking.
+	 */
+	public static final class Version {
+		final Node root;
+		final long number;
+		final int numberOfEvents;
+
+		Version(Node root, long number, int numberOfEvents) {
+			this.root = root;
+			this.number = number;
+			this.numberOfEvents = numberOfEvents;
+		}
+
+		/*
+		 * The number of updates before this version.
+		 */
+		public long number() {
+			return number;
+		}
+
+		public int numberOfEvents() {
+			return numberOfEvents;
+		}
+
+		public int count(int theIDofEvent) {
+			Node node = find(root, theIDofEvent);
+			return node == null ? 0 : node.count;
+		}
+
+		/*
+		 * Total count for IDs between ID1 and ID2 inclusively, as the
+		 * difference of two prefix sums. Time complexity: O(log n).
+		 */
+		public long inRange(int ID1, int ID2) {
+			if (ID1 > ID2) {
+				return 0;
+			}
+			return prefixCount(ID2, true) - prefixCount(ID1, false);
+		}
+
+		private long prefixCount(int ID, boolean inclusive) {
+			Node node = root;
+			long total = 0;
+			while (node != null) {
+				if (ID > node.key || (inclusive && ID == node.key)) {
+					total += subtreeCount(node.leftChild) + node.count;
+					node = node.rightChild;
+				} else {
+					node = node.leftChild;
+				}
+			}
+			return total;
+		}
+
+		public long next(int theIDofEvent) {
+			Node node = root, bestFit = null;
+			while (node != null) {
+				if (theIDofEvent < node.key) {
+					bestFit = node;
+					node = node.leftChild;
+				} else {
+					node = node.rightChild;
+				}
+			}
+			return toEvent(bestFit);
+		}
+
+		public long previous(int theIDofEvent) {
+			Node node = root, bestFit = null;
+			while (node != null) {
+				if (theIDofEvent > node.key) {
+					bestFit = node;
+					node = node.rightChild;
+				} else {
+					node = node.leftChild;
+				}
+			}
+			return toEvent(bestFit);
+		}
+
+		/*
+		 * Pass the events with IDs between ID1 and ID2 inclusively, packed by
+		 * EventCounter.event(), to the action in ascending ID order. Time
+		 * complexity: O(log n + s) for s events.
+		 */
+		public void scan(int ID1, int ID2, LongConsumer action) {
+			scan(root, ID1, ID2, action);
+		}
+
+		private static void scan(Node node, int ID1, int ID2, LongConsumer action) {
+			while (node != null) {
+				if (node.key < ID1) {
+					node = node.rightChild;
+				} else if (node.key > ID2) {
+					node = node.leftChild;
+				} else {
+					scan(node.leftChild, ID1, ID2, action);
+					action.accept(EventCounter.event(node.key, node.count));
+					// Continue with the right subtree in the loop.
+					node = node.rightChild;
+				}
+			}
+		}
+	}
+
+	// The latest published version.
+	private volatile Version current = new Version(null, 0, 0);
+
+	// Root, version and number of events being updated by the writer.
+	private Node root;
+	private long writeVersion;
+	private int numberOfEvents;
+
+	public PersistentRedBlackTree() {
+	}
+
+	/*
+	 * Initialize the counter from the ascending sorted IDs and their counts,
+	 * all as the first version, bottom up in O(n) time.
+	 */
+	PersistentRedBlackTree(int sortedIDs[], int sortedCounts[], int totalNumberOfEvents) {
+		writeVersion = 1;
+		// The highest black height h with 2^h - 1 <= n events, which also
+		// holds n <= 3^h - 1.
+		int blackHeight = 31 - Integer.numberOfLeadingZeros(totalNumberOfEvents + 1);
+		long minEvents = (1L << blackHeight) - 1, maxEvents = 1;
+		for (int level = 0; level < blackHeight; level++) {
+			maxEvents *= 3;
+		}
+		root = build(sortedIDs, sortedCounts, 0, totalNumberOfEvents, minEvents, maxEvents - 1);
+		numberOfEvents = totalNumberOfEvents;
+		current = new Version(root, writeVersion, numberOfEvents);
+	}
+
+	/*
+	 * Build the 2-3 tree (as a left-leaning red-black tree with a black root)
+	 * of the events from index from up to to, whose black height holds between
+	 * minEvents = 2^h - 1 and maxEvents = 3^h - 1 events. The root is a 2-node
+	 * if the events fit in two subtrees a level down, or else a 3-node (a red
+	 * left child), and the events are spread evenly between its subtrees.
+	 */
+	private Node build(int sortedIDs[], int sortedCounts[], int from, int to, long minEvents, long maxEvents) {
+		int n = to - from;
+		if (n == 0) {
+			return null;
+		}
+		long childMinEvents = (minEvents - 1) / 2, childMaxEvents = (maxEvents - 2) / 3;
+		Node node;
+		if (n - 1 <= 2 * childMaxEvents) {
+			int middle = from + (n - 1) / 2;
+			node = new Node(sortedIDs[middle], sortedCounts[middle], writeVersion);
+			node.leftChild = build(sortedIDs, sortedCounts, from, middle, childMinEvents, childMaxEvents);
+			node.rightChild = build(sortedIDs, sortedCounts, middle + 1, to, childMinEvents, childMaxEvents);
+		} else {
+			int first = from + (n - 2) / 3, second = first + 1 + (n - 1) / 3;
+			Node red = new Node(sortedIDs[first], sortedCounts[first], writeVersion);
+			red.leftChild = build(sortedIDs, sortedCounts, from, first, childMinEvents, childMaxEvents);
+			red.rightChild = build(sortedIDs, sortedCounts, first + 1, second, childMinEvents, childMaxEvents);
+			red.subtreeCount = subtreeCount(red.leftChild) + subtreeCount(red.rightChild) + red.count;
+			node = new Node(sortedIDs[second], sortedCounts[second], writeVersion);
+			node.leftChild = red;
+			node.rightChild = build(sortedIDs, sortedCounts, second + 1, to, childMinEvents, childMaxEvents);
+		}
+		node.isRed = BLACK;
+		node.subtreeCount = subtreeCount(node.leftChild) + subtreeCount(node.rightChild) + node.count;
+		return node;
+	}
+
+	/*
+	 * The latest version, to be queried without locking. Holding on to it
+	 * keeps its nodes from being reclaimed.
+	 */
+	public Version pin() {
+		return current;
+	}
+
+	public synchronized int increase(int theIDofEvent, int countIncreaseBy) {
+		writeVersion++;
+		// An event can be present with a count of 0 (increased by 0), so
+		// it's looked up rather than told apart by its count.
+		Node theEvent = find(root, theIDofEvent);
+		int count;
+		if (theEvent != null) {
+			count = Math.addExact(theEvent.count, countIncreaseBy);
+			root = addToCount(theIDofEvent, countIncreaseBy);
+		} else {
+			count = countIncreaseBy;
+			root = insert(root, theIDofEvent, countIncreaseBy);
+			root.isRed = BLACK;
+			numberOfEvents++;
+		}
+		publish();
+		return count;
+	}
+
+	public synchronized int reduce(int theIDofEvent, int decreaseCountBy) {
+		Node theEvent = find(root, theIDofEvent);
+		if (theEvent == null) {
+			return 0;
+		}
+		writeVersion++;
+		int count = theEvent.count;
+		if (count > decreaseCountBy) {
+			count -= decreaseCountBy;
+			root = addToCount(theIDofEvent, -decreaseCountBy);
+		} else {
+			count = 0;
+			root = own(root);
+			if (!isRed(root.leftChild) && !isRed(root.rightChild)) {
+				root.isRed = RED;
+			}
+			root = delete(root, theIDofEvent);
+			if (root != null) {
+				root.isRed = BLACK;
+			}
+			numberOfEvents--;
+		}
+		publish();
+		return count;
+	}
+
+	private void publish() {
+		current = new Version(root, writeVersion, numberOfEvents);
+	}
+
+	public int count(int theIDofEvent) {
+		return current.count(theIDofEvent);
+	}
+
+	public long inRange(int ID1, int ID2) {
+		return current.inRange(ID1, ID2);
+	}
+
+	public long next(int theIDofEvent) {
+		return current.next(theIDofEvent);
+	}
+
+	public long previous(int theIDofEvent) {
+		return current.previous(theIDofEvent);
+	}
+
+	/*
+	 * The node of the ID in the subtree, or null if it's absent.
+	 */
+	private static Node find(Node node, int ID) {
+		while (node != null && node.key != ID) {
+			node = ID < node.key ? node.leftChild : node.rightChild;
+		}
+		return node;
+	}
+
+	/*
+	 * The node itself if this update created it, otherwise a copy of it which
+	 * the update can modify.
+	 */
+	private Node own(Node node) {
+		return node.version == writeVersion ? node : new Node(node, writeVersion);
+	}
+
+	/*
+	 * Add delta to the count of the (present) ID, and to the subtreeCount of
+	 * each node on the way down to it, copying the path. Returns the new
+	 * root. Time complexity: O(log n).
+	 */
+	private Node addToCount(int ID, int delta) {
+		Node newRoot = own(root), node = newRoot;
+		while (true) {
+			node.subtreeCount += delta;
+			if (ID < node.key) {
+				node = node.leftChild = own(node.leftChild);
+			} else if (ID > node.key) {
+				node = node.rightChild = own(node.rightChild);
+			} else {
+				node.count += delta;
+				return newRoot;
+			}
+		}
+	}
+
+	/*
+	 * Insert the (absent) ID into the subtree, and return the subtree's new
+	 * root.
+	 */
+	private Node insert(Node node, int ID, int count) {
+		if (node == null) {
+			return new Node(ID, count, writeVersion);
+		}
+		node = own(node);
+		if (ID < node.key) {
+			node.leftChild = insert(node.leftChild, ID, count);
+		} else {
+			node.rightChild = insert(node.rightChild, ID, count);
+		}
+		return balance(node);
+	}
+
+	/*
+	 * Delete the (present) ID from the subtree, and return the subtree's new
+	 * root. On the way down, a red link is pushed ahead of the search (so the
+	 * deleted node is never a lone black one), and balance() fixes up the
+	 * right leaning red links this leaves on the way back up.
+	 */
+	private Node delete(Node node, int ID) {
+		node = own(node);
+		if (ID < node.key) {
+			if (!isRed(node.leftChild) && !isRed(node.leftChild.leftChild)) {
+				node = moveRedLeft(node);
+			}
+			node.leftChild = delete(node.leftChild, ID);
+		} else {
+			if (isRed(node.leftChild)) {
+				node = rotateRight(node);
+			}
+			if (ID == node.key && node.rightChild == null) {
+				return null;
+			}
+			if (!isRed(node.rightChild) && !isRed(node.rightChild.leftChild)) {
+				node = moveRedRight(node);
+			}
+			if (ID == node.key) {
+				// Replace the event with its successor's, and delete that
+				// from the right subtree.
+				Node successor = node.rightChild;
+				while (successor.leftChild != null) {
+					successor = successor.leftChild;
+				}
+				node.key = successor.key;
+				node.count = successor.count;
+				node.rightChild = deleteMin(node.rightChild);
+			} else {
+				node.rightChild = delete(node.rightChild, ID);
+			}
+		}
+		return balance(node);
+	}
+
+	private Node deleteMin(Node node) {
+		if (node.leftChild == null) {
+			return null;
+		}
+		node = own(node);
+		if (!isRed(node.leftChild) && !isRed(node.leftChild.leftChild)) {
+			node = moveRedLeft(node);
+		}
+		node.leftChild = deleteMin(node.leftChild);
+		return balance(node);
+	}
+
+	/*
+	 * Restore the left-leaning invariants at an (owned) node whose children
+	 * have changed, and recompute its subtreeCount.
+	 */
+	private Node balance(Node node) {
+		if (isRed(node.rightChild) && !isRed(node.leftChild)) {
+			node = rotateLeft(node);
+		}
+		if (isRed(node.leftChild) && isRed(node.leftChild.leftChild)) {
+			node = rotateRight(node);
+		}
+		if (isRed(node.leftChild) && isRed(node.rightChild)) {
+			flipColors(node);
+		}
+		node.subtreeCount = subtreeCount(node.leftChild) + subtreeCount(node.rightChild) + node.count;
+		return node;
+	}
+
+	private Node moveRedLeft(Node node) {
+		flipColors(node);
+		if (isRed(node.rightChild.leftChild)) {
+			node.rightChild = rotateRight(node.rightChild);
+			node = rotateLeft(node);
+			flipColors(node);
+		}
+		return node;
+	}
+
+	private Node moveRedRight(Node node) {
+		flipColors(node);
+		if (isRed(node.leftChild.leftChild)) {
+			node = rotateRight(node);
+			flipColors(node);
+		}
+		return node;
+	}
+
+	/*
+	 * Rotations of an owned node, keeping the subtreeCounts.
+	 */
+	private Node rotateLeft(Node node) {
+		Node child = own(node.rightChild);
+		node.rightChild = child.leftChild;
+		child.leftChild = node;
+		child.isRed = node.isRed;
+		node.isRed = RED;
+		child.subtreeCount = node.subtreeCount;
+		node.subtreeCount = subtreeCount(node.leftChild) + subtreeCount(node.rightChild) + node.count;
+		return child;
+	}
+
+	private Node rotateRight(Node node) {
+		Node child = own(node.leftChild);
+		node.leftChild = child.rightChild;
+		child.rightChild = node;
+		child.isRed = node.isRed;
+		node.isRed = RED;
+		child.subtreeCount = node.subtreeCount;
+		node.subtreeCount = subtreeCount(node.leftChild) + subtreeCount(node.rightChild) + node.count;
+		return child;
+	}
+
+	private void flipColors(Node node) {
+		node.isRed = !node.isRed;
+		node.leftChild = own(node.leftChild);
+		node.leftChild.isRed = !node.leftChild.isRed;
+		node.rightChild = own(node.rightChild);
+		node.rightChild.isRed = !node.rightChild.isRed;
+	}
+
+	private static boolean isRed(Node node) {
+		return node != null && node.isRed;
+	}
+
+	private static long subtreeCount(Node node) {
+		return node == null ? 0 : node.subtreeCount;
+	}
+
+	private static long toEvent(Node node) {
+		return node == null ? NO_EVENT : EventCounter.event(node.key, node.count);
+	}
+}
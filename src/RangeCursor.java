@@ -0,0 +1,119 @@
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Forward cursor over the events of a RedBlackTree with IDs between ID1 and
+ * ID2 inclusively, in ascending ID order, as returned by
+ * RedBlackTree.rangeScan().
+ *
+ * The first event is found by a single O(log n) descent, and from there the
+ * cursor follows the successor links: down the right subtree's left spine,
+ * or up the parents until it comes from a left child. Each tree edge is
+ * crossed at most twice over a whole scan, so a scan of s events costs
+ * O(log n + s), amortized O(1) per event, where calling next() s times costs
+ * O(s log n). Nothing is allocated per event: the events are consumed one
+ * at a time with advance(), ID() and count(), in batches into caller owned
+ * arrays with nextBatch(), or as a LongStream of packed events (see
+ * EventCounter.event()).
+ *
+ * The tree must not be modified while a cursor over it is in use.
+ */
+public class RangeCursor {
+
+	// The event the cursor is on (null before the first advance() and at the
+	// end), and the one it moves to next.
+	private RedBlackTree.TreeNode current, following;
+	private final int lastID;
+
+	RangeCursor(RedBlackTree.TreeNode first, int ID2) {
+		this.following = first;
+		this.lastID = ID2;
+	}
+
+	/*
+	 * Move to the next event in the range. Returns false (and leaves the
+	 * cursor at the end) if there is none.
+	 */
+	public boolean advance() {
+		if (following == null || following.key > lastID) {
+			current = following = null;
+			return false;
+		}
+		current = following;
+		following = successor(current);
+		return true;
+	}
+
+	/*
+	 * The ID of the event the cursor is on.
+	 */
+	public int ID() {
+		return current.key;
+	}
+
+	/*
+	 * The count of the event the cursor is on.
+	 */
+	public int count() {
+		return current.count;
+	}
+
+	/*
+	 * Copy the following events (up to the length of the arrays) into IDs and
+	 * counts, and return how many were copied, 0 at the end of the range.
+	 */
+	public int nextBatch(int IDs[], int counts[]) {
+		int n = Math.min(IDs.length, counts.length), copied = 0;
+		while (copied < n && advance()) {
+			IDs[copied] = current.key;
+			counts[copied] = current.count;
+			copied++;
+		}
+		return copied;
+	}
+
+	/*
+	 * The remaining events as a sequential stream of packed events.
+	 */
+	public LongStream events() {
+		Spliterator.OfLong spliterator = new Spliterators.AbstractLongSpliterator(Long.MAX_VALUE,
+				Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL) {
+			public boolean tryAdvance(LongConsumer action) {
+				if (!advance()) {
+					return false;
+				}
+				action.accept(EventCounter.event(current.key, current.count));
+				return true;
+			}
+
+			public void forEachRemaining(LongConsumer action) {
+				while (advance()) {
+					action.accept(EventCounter.event(current.key, current.count));
+				}
+			}
+		};
+		return StreamSupport.longStream(spliterator, false);
+	}
+
+	/*
+	 * The in-order successor of the node: the left-most node of its right
+	 * subtree if it has one, otherwise the first ancestor it's in the left
+	 * subtree of.
+	 */
+	static RedBlackTree.TreeNode successor(RedBlackTree.TreeNode node) {
+		if (node.rightChild != null) {
+			node = node.rightChild;
+			while (node.leftChild != null) {
+				node = node.leftChild;
+			}
+			return node;
+		}
+		while (node.parent != null && node.parent.rightChild == node) {
+			node = node.parent;
+		}
+		return node.parent;
+	}
+}
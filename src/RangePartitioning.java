@@ -0,0 +1,69 @@
+import java.util.Arrays;
+
+/*
+ * Range partitioning of the ID space into parts, shared by the shards of
+ * StripedEventCounter and the partitions of PartitionedEventCounter.
+ *
+ * The parts are described by the smallest ID of each, ascending from
+ * Integer.MIN_VALUE: part p holds the IDs from lowestID[p] up to (but not
+ * including) lowestID[p + 1].
+ */
+public class RangePartitioning {
+
+	private RangePartitioning() {
+	}
+
+	/*
+	 * Boundaries which split the ascending sorted IDs evenly between the
+	 * given number of parts; if there are fewer events than parts, the
+	 * positive ID space is split evenly instead.
+	 */
+	static int[] evenBoundaries(int sortedIDs[], int totalNumberOfEvents, int numberOfParts) {
+		int[] lowestID = new int[numberOfParts];
+		lowestID[0] = Integer.MIN_VALUE;
+		for (int p = 1; p < numberOfParts; p++) {
+			if (totalNumberOfEvents < numberOfParts) {
+				lowestID[p] = (int) ((long) Integer.MAX_VALUE * p / numberOfParts);
+			} else {
+				lowestID[p] = sortedIDs[(int) ((long) totalNumberOfEvents * p / numberOfParts)];
+			}
+		}
+		return lowestID;
+	}
+
+	/*
+	 * Build a RedBlackTree for each part from its share of the ascending
+	 * sorted IDs and their counts, each in O(n / parts) time.
+	 */
+	static RedBlackTree[] buildParts(int sortedIDs[], int sortedCounts[], int totalNumberOfEvents, int lowestID[]) {
+		RedBlackTree[] parts = new RedBlackTree[lowestID.length];
+		int first = 0;
+		for (int p = 0; p < parts.length; p++) {
+			int last = first;
+			while (last < totalNumberOfEvents && (p + 1 == parts.length || sortedIDs[last] < lowestID[p + 1])) {
+				last++;
+			}
+			parts[p] = new RedBlackTree(Arrays.copyOfRange(sortedIDs, first, last),
+					Arrays.copyOfRange(sortedCounts, first, last), last - first);
+			first = last;
+		}
+		return parts;
+	}
+
+	/*
+	 * Index of the part holding the given ID, by binary search over the
+	 * boundaries. Time complexity: O(log parts).
+	 */
+	static int partOf(int lowestID[], int ID) {
+		int low = 0, high = lowestID.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (lowestID[middle] <= ID) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+}
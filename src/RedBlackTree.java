@@ -2,7 +2,12 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 /**
  * 
@@ -18,7 +23,7 @@ import java.util.Scanner;
  *         The required functions are; Increase, Reduce, Count, InRange, Next
  *         and Previous.
  */
-public class RedBlackTree {
+public class RedBlackTree implements EventCounter {
 
 	// Root of the RedBlackTree Event Counter
 	TreeNode root;
@@ -26,18 +31,19 @@ public class RedBlackTree {
 	private static final boolean RED = true;
 	private static final boolean BLACK = false;
 
-	// Variables which store the IDs of the max and min Events (to facilitate
-	// range operations) (Initialized to -1 to indicate it's not set. This is a
-	// safe assumption because IDs are assumed to be positive integers)
-	private int treeMinimum = -1;
-	private int treeMaximum = -1;
+	// Sorted ranges of up to this many events are built sequentially by the
+	// parallel bulk build.
+	private static final int PARALLEL_BUILD_THRESHOLD = 1 << 14;
+
+	// Number of events (nodes) in the tree.
+	int numberOfEvents;
 
 	// Structure of each node (which represents an "Event") in the RedBlackTree
 	// Event Counter
 	public class TreeNode {
 		int key; // the ID.
 		int count; // number of active events with the given ID.
-		int subtreeCount; // total count of all events' counts in the subtree
+		long subtreeCount; // total count of all events' counts in the subtree
 							// rooted
 							// at this node. minimum = this.count (the count of
 							// the
@@ -52,6 +58,9 @@ public class RedBlackTree {
 		 */
 		// subtreeCount = leftChild.subtreeCount + rightChild.subtreeCount +
 		// this.count
+		int subtreeMaxCount; // the largest count in the subtree rooted at this
+								// node. Augmented like subtreeCount, for the
+								// top-K queries.
 		TreeNode parent, leftChild, rightChild; // pointers to the parent and
 												// children nodes.
 		boolean isRed; // Also the color of the node. By default (by using the
@@ -63,6 +72,7 @@ public class RedBlackTree {
 			this.count = count;
 			this.subtreeCount = count; // when adding to the leaf, subtree count
 										// is count itself
+			this.subtreeMaxCount = count;
 			this.isRed = RED; // true. Since when inserting, leaf nodes are RED
 								// by default.
 		}
@@ -76,10 +86,45 @@ public class RedBlackTree {
 	 * 
 	 */
 	RedBlackTree(TreeNode arrOfTreeNodesInAscendingSortedOrder[], int totalNumberOfNodesInSortedArray) {
-		treeMinimum = arrOfTreeNodesInAscendingSortedOrder[0].key;
-		treeMaximum = arrOfTreeNodesInAscendingSortedOrder[totalNumberOfNodesInSortedArray - 1].key;
+		if (totalNumberOfNodesInSortedArray == 0) {
+			return;
+		}
 		root = sortedArrayToRBBST(arrOfTreeNodesInAscendingSortedOrder, 0, totalNumberOfNodesInSortedArray - 1, 0,
 				log2(totalNumberOfNodesInSortedArray));
+		numberOfEvents = totalNumberOfNodesInSortedArray;
+		// With a single event the root is on the last level, which is colored
+		// red, but the root must be black.
+		root.isRed = BLACK;
+	}
+
+	/*
+	 * RedBlack Tree constructor to initialize the RedBlack tree from the
+	 * ascending sorted IDs and counts of n Events (as read by EventFileLoader)
+	 * in O(n) time.
+	 */
+	RedBlackTree(int sortedIDs[], int sortedCounts[], int totalNumberOfNodesInSortedArray) {
+		this(sortedIDs, sortedCounts, totalNumberOfNodesInSortedArray, false);
+	}
+
+	/*
+	 * Same as above, but if parallelBuild is set the independent left and
+	 * right halves are built concurrently on the common ForkJoinPool, which
+	 * yields exactly the same tree as the sequential build. With no events
+	 * the tree is empty.
+	 */
+	RedBlackTree(int sortedIDs[], int sortedCounts[], int totalNumberOfNodesInSortedArray, boolean parallelBuild) {
+		if (totalNumberOfNodesInSortedArray == 0) {
+			return;
+		}
+		int maxHeight = log2(totalNumberOfNodesInSortedArray);
+		if (parallelBuild) {
+			root = ForkJoinPool.commonPool().invoke(new ParallelSortedArraysToRBBST(sortedIDs, sortedCounts, 0,
+					totalNumberOfNodesInSortedArray - 1, 0, maxHeight));
+		} else {
+			root = sortedArraysToRBBST(sortedIDs, sortedCounts, 0, totalNumberOfNodesInSortedArray - 1, 0, maxHeight);
+		}
+		root.isRed = BLACK;
+		numberOfEvents = totalNumberOfNodesInSortedArray;
 	}
 
 	public RedBlackTree() {
@@ -88,552 +133,680 @@ public class RedBlackTree {
 
 	/*
 	 * Increase the count of the event theID by m. If theID is not present,
-	 * insert it. Print the count of theID after the addition. Maintain the
+	 * insert it. Return the count of theID after the addition. Maintain the
 	 * value of the augmented variable subTreeCount as well. Time complexity:
 	 * O(log n).
+	 *
+	 * Single pass: the subtreeCounts are increased by m, and the
+	 * subtreeMaxCounts raised to at least m, on the way down to theID, which
+	 * holds whether theID is present or not, since its count afterwards is at
+	 * least m. If it's missing, the new node is linked
+	 * in where the descent ended. Otherwise only the subtreeMaxCounts smaller
+	 * than the new count are raised on the way back up, which stops at the
+	 * first ancestor that is large enough, usually right away.
 	 */
-	void increase(int theIDofEvent, int countIncreaseBy) {
-		TreeNode theEvent = findNode(theIDofEvent);
-		if (theEvent != null) {
-			theEvent.count += countIncreaseBy;
+	public int increase(int theIDofEvent, int countIncreaseBy) {
+		TreeNode parent = null, theEvent = root;
+		while (theEvent != null && theEvent.key != theIDofEvent) {
 			theEvent.subtreeCount += countIncreaseBy;
-			TreeNode temp = theEvent.parent;
-			// Increase the subtreeCounts up the tree (till root) by the
-			// increased amount. Time complexity: O(log n)
-			while (temp != null) {
-				temp.subtreeCount += countIncreaseBy;
-				temp = temp.parent;
+			theEvent.subtreeMaxCount = Math.max(theEvent.subtreeMaxCount, countIncreaseBy);
+			parent = theEvent;
+			theEvent = theIDofEvent < theEvent.key ? theEvent.leftChild : theEvent.rightChild;
+		}
+		if (theEvent == null) {
+			insertAt(parent, new TreeNode(theIDofEvent, countIncreaseBy));
+			return countIncreaseBy;
+		}
+		int count;
+		try {
+			count = Math.addExact(theEvent.count, countIncreaseBy);
+		} catch (ArithmeticException e) {
+			// Undo the descent's changes before rethrowing.
+			for (TreeNode temp = parent; temp != null; temp = temp.parent) {
+				temp.subtreeCount -= countIncreaseBy;
+				updateSubtreeMaxCount(temp);
 			}
-		} else {
-			insert(theIDofEvent, countIncreaseBy);
-			theEvent = findNode(theIDofEvent);
+			throw e;
+		}
+		theEvent.count = count;
+		theEvent.subtreeCount += countIncreaseBy;
+		theEvent.subtreeMaxCount = Math.max(theEvent.subtreeMaxCount, count);
+		for (TreeNode temp = parent; temp != null && temp.subtreeMaxCount < count; temp = temp.parent) {
+			temp.subtreeMaxCount = count;
 		}
-		System.out.println(theEvent.count);
+		return count;
 	}
 
 	/*
 	 * Decrease the count of theID by m. If theID’s count becomes less than or
-	 * equal to 0, remove theID from the counter. Print the count of theID after
-	 * the deletion, or 0 if theID is removed or not present. Maintain the value
-	 * of the augmented variable subTreeCount as well. Time complexity: O(log
-	 * n).
+	 * equal to 0, remove theID from the counter. Return the count of theID
+	 * after the deletion, or 0 if theID is removed or not present. Maintain the
+	 * value of the augmented variable subTreeCount as well. Time complexity:
+	 * O(log n).
+	 *
+	 * Single pass for the common case: the subtreeCounts are decreased by m
+	 * on the way down, assuming theID is present with a count greater than
+	 * m. Then only the subtreeMaxCounts which the old count was the maximum
+	 * of are recomputed on the way back up, which stops at the first one
+	 * that doesn't change. If theID is removed instead, one walk back up
+	 * corrects the subtreeCounts (by m less the removed count) and the
+	 * subtreeMaxCounts before the delete's rotations, and if it's missing,
+	 * the ancestors get m back.
 	 */
-	void reduce(int theIDofEvent, int decreaseCountBy) {
-		TreeNode theEvent = findNode(theIDofEvent);
-		if (theEvent != null) {
-			if (theEvent.count <= decreaseCountBy) {
-				int countOfDeletedEvent = theEvent.count;
-				delete(theIDofEvent);
-				TreeNode temp = theEvent.parent;
-				// Decrease the subtreeCounts up the tree till the root by the
-				// decreased
-				// amount (count of deleted event). Time complexity: O(log n)
-				while (temp != null) {
-					temp.subtreeCount -= countOfDeletedEvent;
-					temp = temp.parent;
-				}
-				// ID is removed because count became zero or less. Print zero.
-				System.out.println(0);
-			} else {
-				theEvent.count -= decreaseCountBy;
-				theEvent.subtreeCount -= decreaseCountBy;
-				TreeNode temp = theEvent.parent;
-				// Decrease the subtreeCounts up the tree till the root by the
-				// decreased
-				// amount. Time complexity: O(log n)
-				while (temp != null) {
-					temp.subtreeCount -= decreaseCountBy;
-					temp = temp.parent;
+	public int reduce(int theIDofEvent, int decreaseCountBy) {
+		TreeNode parent = null, theEvent = root;
+		while (theEvent != null && theEvent.key != theIDofEvent) {
+			theEvent.subtreeCount -= decreaseCountBy;
+			parent = theEvent;
+			theEvent = theIDofEvent < theEvent.key ? theEvent.leftChild : theEvent.rightChild;
+		}
+		if (theEvent == null) {
+			// theID is not present. Return zero.
+			for (TreeNode temp = parent; temp != null; temp = temp.parent) {
+				temp.subtreeCount += decreaseCountBy;
+			}
+			return 0;
+		}
+		if (theEvent.count > decreaseCountBy) {
+			theEvent.count -= decreaseCountBy;
+			theEvent.subtreeCount -= decreaseCountBy;
+			for (TreeNode temp = theEvent; temp != null; temp = temp.parent) {
+				int previousMaxCount = temp.subtreeMaxCount;
+				updateSubtreeMaxCount(temp);
+				if (temp.subtreeMaxCount == previousMaxCount) {
+					break;
 				}
-				System.out.println(theEvent.count);
 			}
-		} else {
-			// theID is not present. Print zero.
-			System.out.println(0);
+			return theEvent.count;
+		}
+
+		// The count becomes zero or less: remove theID. The subtreeCounts are
+		// made consistent before the delete, whose rotations expect them to
+		// be. Time complexity: O(log n)
+		int removedCount = theEvent.count, movedCount = 0;
+		TreeNode removedNode = theEvent;
+		if (theEvent.leftChild != null && theEvent.rightChild != null) {
+			// Move the predecessor's event into this node and remove the
+			// predecessor's node instead (deleteNode() only deletes nodes
+			// with at most one child), so its count also leaves the nodes in
+			// between.
+			TreeNode predecessor = predecessor(theEvent);
+			movedCount = predecessor.count;
+			replaceNode(theEvent, predecessor);
+			removedNode = predecessor;
+		}
+		// Likewise take the removed node's count out of the subtreeMaxCounts.
+		removedNode.count = 0;
+		TreeNode temp = removedNode;
+		for (; temp != theEvent; temp = temp.parent) {
+			temp.subtreeCount -= movedCount;
+			updateSubtreeMaxCount(temp);
+		}
+		theEvent.subtreeCount -= removedCount;
+		updateSubtreeMaxCount(theEvent);
+		for (temp = parent; temp != null; temp = temp.parent) {
+			temp.subtreeCount += (long) decreaseCountBy - removedCount;
+			updateSubtreeMaxCount(temp);
 		}
+		deleteNode(removedNode);
+		// ID is removed because count became zero or less. Return zero.
+		return 0;
 	}
 
 	/*
-	 * Print the count of theID. If not present, print 0. Time complexity: O(log
-	 * n).
+	 * Return the count of theID. If not present, return 0. Time complexity:
+	 * O(log n).
 	 */
-	void count(int theIDofEvent) {
+	public int count(int theIDofEvent) {
 		TreeNode theEvent = findNode(theIDofEvent);
 		if (theEvent != null) {
-			System.out.println(theEvent.count);
+			return theEvent.count;
 		} else {
-			System.out.println(0);
+			return 0;
 		}
 	}
 
 	/*
-	 * Print the ID and the count of the event with the lowest ID that is
-	 * greater that theID. Print “0 0”, if there is no next ID. Time complexity:
-	 * O(log n).
+	 * Return the ID and the count of the event with the lowest ID that is
+	 * greater that theID, packed by EventCounter.event(). Return 0 (“0 0”), if
+	 * there is no next ID. Time complexity: O(log n).
 	 */
-	TreeNode next(int theIDofEvent, boolean shouldPrint) {
-		TreeNode theEvent = findNode(theIDofEvent);
-		if (theEvent != null) {
-			TreeNode successorOfEvent = successor(theEvent);
-			if (successorOfEvent != null) {
-				if (shouldPrint) {
-					System.out.println(successorOfEvent.key + " " + successorOfEvent.count);
-				}
-				return successorOfEvent;
-			} else {
-				// if there is no "successor" for the node, find the next
-				// greatest number by going up the tree. Time complexity: O(log
-				// n)
-				TreeNode temp = theEvent.parent;
-				boolean found = false;
-				while (temp != null) {
-					if (temp.key > theIDofEvent) {
-						if (shouldPrint) {
-							System.out.println(temp.key + " " + temp.count);
-						}
-						found = true;
-						break;
-					}
-					temp = temp.parent;
-				}
-				if (!found) {
-					if (shouldPrint) {
-						System.out.println("0 0");
-					}
-					return null;
-				} else {
-					return temp;
-				}
-			}
-		} else {
-			// the ID is not present, so find the next fit (used in inRange
-			// queries)
-			if (theIDofEvent > treeMaximum) {
-				if (shouldPrint) {
-					System.out.println("0 0");
-				}
-				return null;
+	public long next(int theIDofEvent) {
+		// A single descent finds the next event whether or not theID is
+		// present in the tree.
+		return toEvent(ceilingNode(theIDofEvent, false));
+	}
+
+	/*
+	 * Return the ID and the count of the event with the greatest key that is
+	 * less that theID, packed by EventCounter.event(). Return 0 (“0 0”), if
+	 * there is no previous ID. Time complexity: O(log n).
+	 */
+	public long previous(int theIDofEvent) {
+		// A single descent finds the previous event whether or not theID is
+		// present in the tree.
+		return toEvent(floorNode(theIDofEvent, false));
+	}
+
+	/*
+	 * Return a cursor over the events with IDs between ID1 and ID2
+	 * inclusively, in ascending ID order. Finding the first event takes
+	 * O(log n), and each following one amortized O(1), see RangeCursor.
+	 */
+	public RangeCursor rangeScan(int ID1, int ID2) {
+		return new RangeCursor(ceilingNode(ID1, true), ID2);
+	}
+
+	/*
+	 * Return a splittable traversal of the events with IDs between ID1 and
+	 * ID2 inclusively, whose size is estimated from the range's share of the
+	 * total count. See EventSpliterator. Time complexity: O(log n).
+	 */
+	public EventSpliterator spliterator(int ID1, int ID2) {
+		long rangeCount = inRange(ID1, ID2), totalCount = getSubtreeEventCount(root);
+		long estimatedSize = totalCount <= 0 ? 0 : (long) ((double) numberOfEvents * rangeCount / totalCount);
+		return new EventSpliterator(this, root, ID1, ID2, estimatedSize, rangeCount);
+	}
+
+	/*
+	 * Return the events with IDs between ID1 and ID2 inclusively as a stream
+	 * of packed events (see EventCounter.event()), in ascending ID order. A
+	 * parallel stream hands different subtrees to different workers of the
+	 * common ForkJoinPool.
+	 */
+	public LongStream events(int ID1, int ID2, boolean parallel) {
+		return StreamSupport.longStream(spliterator(ID1, ID2), parallel);
+	}
+
+	/*
+	 * Apply a batch of updates: add deltas[i] to the count of IDs[i], for the
+	 * first n (ID, delta) pairs. A positive delta is an increase (inserting
+	 * absent IDs), a negative one a reduce (removing IDs whose count drops
+	 * to 0 or less). The updates are sorted, and the deltas of repeated IDs
+	 * summed, so the batch has the effect of each ID's net delta. They're
+	 * merged into the tree in a single traversal, which visits each
+	 * node on the paths to the updated IDs once and adjusts its subtreeCount
+	 * once, instead of a descent and a walk back up to the root per update.
+	 * Only the inserts and deletes (which rebalance the tree) are applied
+	 * individually afterwards. Time complexity: O(k log n) for k updates, with
+	 * shared path prefixes visited once.
+	 *
+	 * If a net delta doesn't fit in an int, or would overflow the count of its
+	 * event, ArithmeticException is thrown before anything is applied, so the
+	 * tree is left unchanged.
+	 */
+	public void applyUpdates(int IDs[], int deltas[], int n) {
+		if (n == 0) {
+			return;
+		}
+		// Sort the updates by ID, carrying each one's index along.
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = ((long) IDs[i] << 32) | i;
+		}
+		Arrays.sort(order);
+		int[] sortedIDs = new int[n];
+		int[] sortedDeltas = new int[n];
+		int m = 0, largestIncrease = 0;
+		for (int i = 0; i < n;) {
+			int ID = (int) (order[i] >> 32);
+			long delta = 0;
+			for (; i < n && (int) (order[i] >> 32) == ID; i++) {
+				delta += deltas[(int) order[i]];
 			}
-			int bestFitForLeftRange = treeMinimum;
-			TreeNode leftNode = null;
-			if (theIDofEvent <= treeMinimum) {
-				leftNode = findNode(treeMinimum);
-			} else {
-				while (!(theIDofEvent <= bestFitForLeftRange)) {
-					leftNode = next(bestFitForLeftRange, false);
-					bestFitForLeftRange = leftNode.key;
+			sortedIDs[m] = ID;
+			sortedDeltas[m] = Math.toIntExact(delta);
+			largestIncrease = Math.max(largestIncrease, sortedDeltas[m]);
+			m++;
+		}
+		// applyToSubtree() must not fail halfway, so check the increases up
+		// front. Unless one of them could take the largest count in the tree
+		// past Integer.MAX_VALUE there is nothing to look up.
+		if ((long) getSubtreeMaxCount(root) + largestIncrease > Integer.MAX_VALUE) {
+			for (int i = 0; i < m; i++) {
+				TreeNode theEvent = sortedDeltas[i] > 0 ? findNode(sortedIDs[i]) : null;
+				if (theEvent != null && (long) theEvent.count + sortedDeltas[i] > Integer.MAX_VALUE) {
+					throw new ArithmeticException("Count of event " + sortedIDs[i] + " would overflow");
 				}
 			}
-			if (shouldPrint) {
-				if (leftNode == null) {
-					System.out.println("0 0");
-				} else {
-					System.out.println(leftNode.key + " " + leftNode.count);
-				}
+		}
+		applyToSubtree(root, sortedIDs, sortedDeltas, 0, m);
+		// What's left are the inserts and deletes.
+		for (int i = 0; i < m; i++) {
+			if (sortedDeltas[i] > 0) {
+				increase(sortedIDs[i], sortedDeltas[i]);
+			} else if (sortedDeltas[i] < 0) {
+				// -Integer.MIN_VALUE doesn't fit in an int, but reducing by
+				// Integer.MAX_VALUE removes any event just the same.
+				reduce(sortedIDs[i], (int) Math.min(-(long) sortedDeltas[i], Integer.MAX_VALUE));
 			}
-			return leftNode;
 		}
 	}
 
 	/*
-	 * Print the ID and the count of the event with the greatest key that is
-	 * less that theID. Print “0 0”, if there is no previous ID. Time
-	 * complexity: O(log n).
+	 * Apply the sorted updates [from, to), all of which fall in the key range
+	 * of the subtree rooted at node, to the events present in it, except for
+	 * those which would be removed. The applied deltas are zeroed, and their
+	 * sum added to the subtreeCount of each node once on the way back up
+	 * (where its subtreeMaxCount is recomputed as well).
+	 * Return that sum.
 	 */
-	TreeNode previous(int theIDofEvent, boolean shouldPrint) {
-		TreeNode theEvent = findNode(theIDofEvent);
-		if (theEvent != null) {
-			TreeNode predecessorOfEvent = predecessor(theEvent);
-			if (predecessorOfEvent != null) {
-				if (shouldPrint) {
-					System.out.println(predecessorOfEvent.key + " " + predecessorOfEvent.count);
-				}
-				return predecessorOfEvent;
-			} else {
-				// if there is no "predecessor" for the node, find the next
-				// smallest number by going up the tree. Time complexity: O(log
-				// n)
-				TreeNode temp = theEvent.parent;
-				boolean found = false;
-				while (temp != null) {
-					if (temp.key < theIDofEvent) {
-						if (shouldPrint) {
-							System.out.println(temp.key + " " + temp.count);
-						}
-						found = true;
-						break;
-					}
-					temp = temp.parent;
-				}
-				if (!found) {
-					if (shouldPrint) {
-						System.out.println("0 0");
-					}
-					return null;
-				} else {
-					return temp;
-				}
-			}
-		} else {
-			// the ID is not present, so find the next fit (used in inRange
-			// queries)
-			if (theIDofEvent < treeMinimum) {
-				if (shouldPrint) {
-					System.out.println("0 0");
-				}
-				return null;
-			}
-			int bestFitForRightRange = treeMaximum;
-			TreeNode rightNode = null;
-			if (theIDofEvent >= treeMaximum) {
-				rightNode = findNode(treeMaximum);
+	private long applyToSubtree(TreeNode node, int sortedIDs[], int sortedDeltas[], int from, int to) {
+		if (node == null || from == to) {
+			return 0;
+		}
+		// The first update at or after the node's key.
+		int low = from, high = to;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (sortedIDs[middle] < node.key) {
+				low = middle + 1;
 			} else {
-				while (!(theIDofEvent >= bestFitForRightRange)) {
-					rightNode = previous(bestFitForRightRange, false);
-					bestFitForRightRange = rightNode.key;
-				}
+				high = middle;
 			}
-			if (shouldPrint) {
-				if (rightNode == null) {
-					System.out.println("0 0");
-				} else {
-					System.out.println(rightNode.key + " " + rightNode.count);
-				}
+		}
+		long applied = applyToSubtree(node.leftChild, sortedIDs, sortedDeltas, from, low);
+		if (low < to && sortedIDs[low] == node.key) {
+			int delta = sortedDeltas[low];
+			if ((long) node.count + delta > 0) {
+				// Can't overflow, see applyUpdates().
+				node.count += delta;
+				applied += delta;
+				sortedDeltas[low] = 0;
 			}
-			return rightNode;
+			low++;
+		}
+		applied += applyToSubtree(node.rightChild, sortedIDs, sortedDeltas, low, to);
+		node.subtreeCount += applied;
+		updateSubtreeMaxCount(node);
+		return applied;
+	}
+
+	private static long toEvent(TreeNode node) {
+		if (node == null) {
+			return EventCounter.NO_EVENT;
 		}
+		return EventCounter.event(node.key, node.count);
 	}
 
 	/*
 	 * Return the node in the tree which fits the leftEnd of the inRange query.
 	 * This could be the event which has ID equal to the specified leftRange or
-	 * the smallest event ID greater than it.
+	 * the smallest event ID greater than it. Time complexity: O(log n).
 	 */
 	TreeNode getRangeLeftNode(int ID1) {
-		TreeNode leftNode = findNode(ID1);
-		if (leftNode == null) {
-			// This implies the ID isn't there in tree, so find the next best
-			// fit
-			if (ID1 > treeMaximum) {
-				return null;
-			}
-			int bestFitForLeftRange = treeMinimum;
-
-			if (ID1 <= treeMinimum) {
-				leftNode = findNode(treeMinimum);
-			} else {
-				while (!(ID1 <= bestFitForLeftRange)) {
-					leftNode = next(bestFitForLeftRange, false);
-					bestFitForLeftRange = leftNode.key;
-				}
-			}
-			return leftNode;
-		} else {
-			return leftNode;
-		}
+		return ceilingNode(ID1, true);
 	}
 
 	/*
 	 * Return the node in the tree which fits the rightEnd of the inRange query.
 	 * This could be the event which has ID equal to the specified rightRange or
-	 * the greatest event ID less than it.
+	 * the greatest event ID less than it. Time complexity: O(log n).
 	 */
 	TreeNode getRangeRightNode(int ID2) {
-		TreeNode rightNode = findNode(ID2);
-		if (rightNode == null) {
-			// This implies the ID isn't there in tree, so find the next best
-			// fit
-			if (ID2 < treeMinimum) {
-				return null;
+		return floorNode(ID2, true);
+	}
+
+	/*
+	 * Return the event with the smallest ID greater than (or, if inclusive,
+	 * equal to) the given ID, or null if there is none. The tree is descended
+	 * once from the root, remembering the last node where we turned left, so
+	 * the cost doesn't depend on how far the ID is from the smallest one. Time
+	 * complexity: O(log n).
+	 */
+	TreeNode ceilingNode(int ID, boolean inclusive) {
+		TreeNode node = root, bestFit = null;
+		while (node != null) {
+			if (ID < node.key || (inclusive && ID == node.key)) {
+				bestFit = node;
+				node = node.leftChild;
+			} else {
+				node = node.rightChild;
 			}
-			int bestFitFoRightRange = treeMaximum;
+		}
+		return bestFit;
+	}
 
-			if (ID2 >= treeMaximum) {
-				rightNode = findNode(treeMaximum);
+	/*
+	 * Return the event with the greatest ID less than (or, if inclusive, equal
+	 * to) the given ID, or null if there is none. Mirror image of
+	 * ceilingNode(). Time complexity: O(log n).
+	 */
+	TreeNode floorNode(int ID, boolean inclusive) {
+		TreeNode node = root, bestFit = null;
+		while (node != null) {
+			if (ID > node.key || (inclusive && ID == node.key)) {
+				bestFit = node;
+				node = node.rightChild;
 			} else {
-				while (!(ID2 >= bestFitFoRightRange)) {
-					rightNode = previous(bestFitFoRightRange, false);
-					bestFitFoRightRange = rightNode.key;
-				}
+				node = node.leftChild;
 			}
-			return rightNode;
-		} else {
-			return rightNode;
 		}
+		return bestFit;
 	}
 
 	/*
-	 * Print the total count for IDs between ID1 and ID2 inclusively. Note, ID1
-	 * ≤ ID2. Time complexity: O(log n + s) where s is the number of IDs in the
-	 * range. NOTE: Since we're using and maintaining an order statistic
+	 * Return the total count for IDs between ID1 and ID2 inclusively. Note, ID1
+	 * ≤ ID2. NOTE: Since we're using and maintaining an order statistic
 	 * augmented variable "subTreeCount" in each Event node in this RedBlackTree
-	 * implementation, this query in fact only takes O(log n) time to complete,
-	 * regardless of the number of IDs in the specified range ('s').
+	 * implementation, the total is the difference of two prefix sums,
+	 * prefixCount(ID2) - prefixCount(ID1 - 1), each a single descent from the
+	 * root, whether or not ID1 and ID2 are present. Time complexity: O(log n)
+	 * regardless of the number of IDs in the specified range.
+	 */
+	public long inRange(int ID1, int ID2) {
+		if (ID1 > ID2) {
+			return 0;
+		}
+		return prefixCount(ID2, true) - prefixCount(ID1, false);
+	}
+
+	/*
+	 * Return the total count of the events with ID less than (or, if
+	 * inclusive, equal to) the given ID. Whenever the descent goes right, the
+	 * node and its whole left subtree are below the ID, so their counts are
+	 * added. Time complexity: O(log n).
 	 */
-	void inRange(int ID1, int ID2) {
-		if (ID1 == ID2) {
-			// if leftRange equals rightRange, there is only one event
-			// associated with that ID, so its "count" would be the active
-			// events
-			// in that range.
-			TreeNode node = findNode(ID1);
-			if (node == null) {
-				System.out.println(0);
-				return;
+	long prefixCount(int ID, boolean inclusive) {
+		long totalCount = 0;
+		TreeNode node = root;
+		while (node != null) {
+			if (ID > node.key || (inclusive && ID == node.key)) {
+				totalCount += getSubtreeEventCount(node.leftChild) + node.count;
+				node = node.rightChild;
 			} else {
-				System.out.println(node.count);
-				return;
+				node = node.leftChild;
 			}
-		} else {
-			TreeNode leftNode = getRangeLeftNode(ID1), rightNode = getRangeRightNode(ID2);
-			if ((leftNode == null || rightNode == null) || (leftNode.key > rightNode.key)) {
-				System.out.println(0);
-				return;
-			} else if (leftNode == rightNode) {
-				// if leftRange equals rightRange, there is only one event
-				// associated with that ID, so its "count" would be the active
-				// events
-				// in that range.
-				System.out.println(leftNode.count);
-				return;
+		}
+		return totalCount;
+	}
+
+	/*
+	 * Return the rank of theID weighted by count: the total count of the
+	 * events with a lower ID. So select(rank(theID)) is theID's event, if
+	 * it's present. Time complexity: O(log n).
+	 */
+	public long rank(int theIDofEvent) {
+		return prefixCount(theIDofEvent, false);
+	}
+
+	/*
+	 * Return the event holding the k-th (from 0) unit of the cumulative
+	 * count, i.e. the event whose range [rank, rank + count) contains k,
+	 * packed by EventCounter.event(). Return 0 (“0 0”) if k is negative or not
+	 * less than the total count. A single descent: whenever k is beyond the
+	 * left subtree and the node, it goes right with their counts taken off.
+	 * Time complexity: O(log n).
+	 */
+	public long select(long k) {
+		if (k < 0) {
+			return EventCounter.NO_EVENT;
+		}
+		TreeNode node = root;
+		while (node != null) {
+			long leftCount = getSubtreeEventCount(node.leftChild);
+			if (k < leftCount) {
+				node = node.leftChild;
+			} else if (k < leftCount + node.count) {
+				return toEvent(node);
+			} else {
+				k -= leftCount + node.count;
+				node = node.rightChild;
 			}
-			ID1 = leftNode.key;
-			ID2 = rightNode.key;
-			TreeNode leastCommonAncestor = leastCommonAncestor(ID1, ID2);
-			int totalCountInRange = 0;
+		}
+		return EventCounter.NO_EVENT;
+	}
 
-			/*
-			 * We use the subTreeCount in each event node, to calculate the
-			 * inRange count in O(log n) time as below.
-			 */
+	/*
+	 * Return the event at the given percentile (0 to 100) of the count
+	 * weighted ID distribution, by the nearest-rank method: the event holding
+	 * the ceil(percentile / 100 * total count)-th unit of the count. Return
+	 * 0 (“0 0”) if the counter is empty. Time complexity: O(log n).
+	 */
+	public long percentile(double percentile) {
+		if (!(percentile >= 0 && percentile <= 100)) {
+			throw new IllegalArgumentException("Percentile out of range: " + percentile);
+		}
+		long totalCount = getSubtreeEventCount(root);
+		long nearestRank = (long) Math.ceil(percentile / 100 * totalCount);
+		return select(Math.min(Math.max(nearestRank, 1), totalCount) - 1);
+	}
 
-			if (leastCommonAncestor != leftNode && leastCommonAncestor != rightNode) {
-				totalCountInRange = leastCommonAncestor.count + leftNode.count
-						+ getSubtreeEventCount(leftNode.rightChild) + rightNode.count
-						+ getSubtreeEventCount(rightNode.leftChild);
-
-				{
-					TreeNode previous = leftNode;
-					TreeNode temp = leftNode.parent;
-					while (temp != leastCommonAncestor) {
-						if (temp.key >= leftNode.key) { // Add these counts to
-														// the
-														// range
-							totalCountInRange += temp.count;
-							if (previous == temp.leftChild) {
-								totalCountInRange += getSubtreeEventCount(temp.rightChild);
-							}
-						}
-						previous = temp;
-						temp = temp.parent;
-					}
-				}
-				{
-					TreeNode previous = rightNode;
-					TreeNode temp = rightNode.parent;
-					while (temp != leastCommonAncestor) {
-						if (temp.key <= rightNode.key) { // Add these counts to
-															// the
-															// range
-							totalCountInRange += temp.count;
-							if (previous == temp.rightChild) {
-								totalCountInRange += getSubtreeEventCount(temp.leftChild);
-							}
-						}
-						previous = temp;
-						temp = temp.parent;
-					}
+	/*
+	 * Return the count weighted median event, the 50th percentile. Time
+	 * complexity: O(log n).
+	 */
+	public long median() {
+		return percentile(50);
+	}
+
+	/*
+	 * Return the K events with the highest counts (or all of them, if there
+	 * are fewer), packed by EventCounter.event(), highest count first. Events
+	 * with equal counts come in no particular order. A best-first search
+	 * over the subtreeMaxCount augmentation, see topKInSubtrees(). Time
+	 * complexity: O(K log K).
+	 */
+	public long[] topK(int K) {
+		TopKQueue queue = new TopKQueue(K);
+		queue.addSubtree(root);
+		return topKInSubtrees(queue, K);
+	}
+
+	/*
+	 * Return the K events with the highest counts among the IDs between ID1
+	 * and ID2 inclusively, as topK() does. The range is first split into the
+	 * O(log n) whole subtrees and single events along the paths to its ends,
+	 * as in inRange(), and the best-first search starts from those. Time
+	 * complexity: O(K log n).
+	 */
+	public long[] topKInRange(int ID1, int ID2, int K) {
+		TopKQueue queue = new TopKQueue(K);
+		TreeNode node = root;
+		// Go down to the highest node in the range, where the paths to ID1 and
+		// ID2 split.
+		while (node != null && (node.key < ID1 || node.key > ID2)) {
+			node = node.key < ID1 ? node.rightChild : node.leftChild;
+		}
+		if (node != null) {
+			queue.addEvent(node);
+			// Everything right of a node on the path to ID1 that's in the
+			// range is in the range, and likewise left of the path to ID2.
+			for (TreeNode left = node.leftChild; left != null;) {
+				if (left.key >= ID1) {
+					queue.addEvent(left);
+					queue.addSubtree(left.rightChild);
+					left = left.leftChild;
+				} else {
+					left = left.rightChild;
 				}
-			} else {
-				// One of the selected nodes in the range is the least common
-				// ancestor. So consider only one branch of it for the range
-				// calculation.
-				if (leftNode == leastCommonAncestor) {
-					// leftNode is the common ancestor, consider only the right
-					// tree of the leftNode.
-					totalCountInRange = leftNode.count + rightNode.count + getSubtreeEventCount(rightNode.leftChild);
-					TreeNode previous = rightNode;
-					TreeNode temp = rightNode.parent;
-					while (temp != leastCommonAncestor) {
-						if (temp.key <= rightNode.key) { // Add these counts to
-															// the
-															// range
-							totalCountInRange += temp.count;
-							if (previous == temp.rightChild) {
-								totalCountInRange += getSubtreeEventCount(temp.leftChild);
-							}
-						}
-						previous = temp;
-						temp = temp.parent;
-					}
+			}
+			for (TreeNode right = node.rightChild; right != null;) {
+				if (right.key <= ID2) {
+					queue.addEvent(right);
+					queue.addSubtree(right.leftChild);
+					right = right.rightChild;
 				} else {
-					// rightNode is the common ancestor, consider only its left
-					// tree
-					totalCountInRange = rightNode.count + leftNode.count + getSubtreeEventCount(leftNode.rightChild);
-					TreeNode previous = leftNode;
-					TreeNode temp = leftNode.parent;
-					while (temp != leastCommonAncestor) {
-						if (temp.key >= leftNode.key) { // Add these counts to
-														// the
-														// range
-							totalCountInRange += temp.count;
-							if (previous == temp.leftChild) {
-								totalCountInRange += getSubtreeEventCount(temp.rightChild);
-							}
-						}
-						previous = temp;
-						temp = temp.parent;
-					}
+					right = right.leftChild;
 				}
 			}
-			System.out.println(totalCountInRange);
 		}
+		return topKInSubtrees(queue, K);
 	}
 
 	/*
-	 * Return the Event node which is the smallest common ancestor in the tree
-	 * for the given two event IDs.
+	 * Take the K highest events out of the queued subtrees and events. A
+	 * subtree is queued by its subtreeMaxCount and an event by its count, so
+	 * whenever an event is at the head of the queue, nothing left can have a
+	 * higher count. A subtree at the head is split into its root's event and
+	 * its two child subtrees, so at most 3K entries are queued beyond the
+	 * initial ones, however large the subtrees are.
 	 */
-	TreeNode leastCommonAncestor(int leftID, int rightID) {
-		TreeNode temp = root;
-		while (temp != null) {
-			if (temp.key < leftID && temp.key < rightID) {
-				temp = temp.rightChild;
-			} else if (temp.key > leftID && temp.key > rightID) {
-				temp = temp.leftChild;
-			} else if (temp.key >= leftID && temp.key <= rightID) {
-				break;
+	private long[] topKInSubtrees(TopKQueue queue, int K) {
+		long[] events = new long[Math.min(K, 1 << 10)];
+		int found = 0;
+		while (found < K && !queue.isEmpty()) {
+			TreeNode node = queue.headNode();
+			if (queue.removeHead()) {
+				queue.addEvent(node);
+				queue.addSubtree(node.leftChild);
+				queue.addSubtree(node.rightChild);
 			} else {
-				// break because that range is not in the tree.
-				break;
+				if (found == events.length) {
+					events = Arrays.copyOf(events, (int) Math.min(2L * found, K));
+				}
+				events[found++] = toEvent(node);
 			}
 		}
-		return temp;
+		return found == K ? events : Arrays.copyOf(events, found);
 	}
 
 	/*
-	 * Create a temporary NULL sentinel node and attach it to the parent node
-	 * for re-balancing purposes while deletion. This should be deleted after
-	 * the complete re-balance process it complete. This is used because there
-	 * is no explicit NULL leaf sentinel nodes in this implementation of the Red
-	 * Black Tree. For any Event node which has child as null, it's implied to
-	 * be a null sentinel leaf of color "BLACK" (isRed= false)
+	 * Binary max-heap of whole subtrees (by subtreeMaxCount) and single events
+	 * (by count), for the top-K searches.
 	 */
-	TreeNode getNullLeaf(TreeNode parent, boolean onRight) {
-		TreeNode nullLeaf = new TreeNode(-1, -1);
+	private static final class TopKQueue {
+		private TreeNode[] nodes;
+		private int[] priorities;
+		private boolean[] subtrees;
+		private int size;
+
+		TopKQueue(int K) {
+			if (K < 0) {
+				throw new IllegalArgumentException("Negative K: " + K);
+			}
+			int capacity = (int) Math.min(3L * K + 64, 1 << 12);
+			nodes = new TreeNode[capacity];
+			priorities = new int[capacity];
+			subtrees = new boolean[capacity];
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void addSubtree(TreeNode node) {
+			if (node != null) {
+				add(node, node.subtreeMaxCount, true);
+			}
+		}
+
+		void addEvent(TreeNode node) {
+			add(node, node.count, false);
+		}
+
+		private void add(TreeNode node, int priority, boolean subtree) {
+			if (size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, 2 * size);
+				priorities = Arrays.copyOf(priorities, 2 * size);
+				subtrees = Arrays.copyOf(subtrees, 2 * size);
+			}
+			int i = size++;
+			// Sift up.
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (priorities[parent] >= priority) {
+					break;
+				}
+				move(parent, i);
+				i = parent;
+			}
+			nodes[i] = node;
+			priorities[i] = priority;
+			subtrees[i] = subtree;
+		}
+
+		TreeNode headNode() {
+			return nodes[0];
+		}
+
 		/*
-		 * Initialized to -1 to indicate it's not an event node but a null
-		 * sentinel leaf node. This is a safe assumption because IDs and counts
-		 * (and therefore subTreeCounts) are assumed to be positive integers.
+		 * Remove the head, and return whether it was a whole subtree.
 		 */
-		nullLeaf.isRed = BLACK; // since all leaf sentinel nodes are black
-		nullLeaf.parent = parent;
-		if (onRight) {
-			parent.rightChild = nullLeaf;
-		} else {
-			parent.leftChild = nullLeaf;
+		boolean removeHead() {
+			boolean subtree = subtrees[0];
+			int last = --size;
+			TreeNode node = nodes[last];
+			int priority = priorities[last];
+			boolean lastSubtree = subtrees[last];
+			nodes[last] = null;
+			if (last > 0) {
+				// Sift the last entry down from the head.
+				int i = 0;
+				while (true) {
+					int child = 2 * i + 1;
+					if (child >= last) {
+						break;
+					}
+					if (child + 1 < last && priorities[child + 1] > priorities[child]) {
+						child++;
+					}
+					if (priorities[child] <= priority) {
+						break;
+					}
+					move(child, i);
+					i = child;
+				}
+				nodes[i] = node;
+				priorities[i] = priority;
+				subtrees[i] = lastSubtree;
+			}
+			return subtree;
 		}
-		return nullLeaf;
-	}
 
-	/*
-	 * Removes the null leaf from the RBT and removes its parent's references to
-	 * it. To be called after the rebalancing has been performed and the added
-	 * helper null sentinal leaf node is no longer required.
-	 */
-	void cleanIfNullLeaf(TreeNode node) {
-		if (node.key == -1) {
-			deleteNodeReferences(node);
+		private void move(int from, int to) {
+			nodes[to] = nodes[from];
+			priorities[to] = priorities[from];
+			subtrees[to] = subtrees[from];
 		}
 	}
 
 	/*
-	 * Binary search tree insert. Time complexity: O(log n). Maintain the value
-	 * of the augmented variable "subtreeCount" in constant time as we go down
-	 * the tree and place the newly inserted node. Also, call the insert1()
-	 * function to check if the newly inserted node satisfies the RedBlack tree
-	 * properties, and fix if not.
+	 * Link the new node in as a child of parent (which the descent to its
+	 * key ended at, with the ancestors' subtreeCounts and subtreeMaxCounts
+	 * already including it), or as the root if parent is null, and call the
+	 * insert1() function to fix the RedBlack tree properties.
 	 */
-	void insert(int key, int count) {
-		TreeNode newNode = new TreeNode(key, count);
-		if (root != null) {
-			TreeNode parent = null, tempNode = root;
-			while (tempNode != null) {
-				parent = tempNode;
-				if (key < tempNode.key) {
-					tempNode.subtreeCount += newNode.count; // increase count of
-															// ancestors of the
-															// newNode with it's
-															// count when we go
-															// down the tree.
-					tempNode = tempNode.leftChild;
-				} else {
-					tempNode.subtreeCount += newNode.count; // increase count of
-															// ancestors of the
-															// newNode with it's
-															// count when we go
-															// down the tree.
-					tempNode = tempNode.rightChild;
-				}
-			}
-			if (key < parent.key) {
+	void insertAt(TreeNode parent, TreeNode newNode) {
+		if (parent != null) {
+			if (newNode.key < parent.key) {
 				parent.leftChild = newNode;
 			} else {
 				parent.rightChild = newNode;
 			}
 			newNode.parent = parent;
-			if (newNode.key > treeMaximum) {
-				treeMaximum = newNode.key;
-			}
-			if (newNode.key < treeMinimum) {
-				treeMinimum = newNode.key;
-			}
 		} else {
 			root = newNode;
-			treeMinimum = newNode.key;
-			treeMaximum = newNode.key;
 		}
+		numberOfEvents++;
 		insert1(newNode);
 	}
 
 	/*
-	 * Find and return the ID of the event with the minimum ID. Time complexity:
-	 * O(log n)
+	 * Returns the subtreeMaxCount of the node if it exists, if not, return
+	 * zero.
 	 */
-	int findMin() {
-		if (root == null) {
-			return -1;
+	int getSubtreeMaxCount(TreeNode node) {
+		if (node != null) {
+			return node.subtreeMaxCount;
 		} else {
-			TreeNode prev = root, temp = root.leftChild;
-			while (temp != null) {
-				prev = temp;
-				temp = temp.leftChild;
-			}
-			return prev.key;
+			return 0;
 		}
 	}
 
 	/*
-	 * Find and return the ID of the event with the maximum ID. Time complexity:
-	 * O(log n)
+	 * Recompute the subtreeMaxCount of the node from its count and its
+	 * children's subtreeMaxCounts. Time complexity: O(1).
 	 */
-	int findMax() {
-		if (root == null) {
-			return -1;
-		} else {
-			TreeNode prev = root, temp = root.rightChild;
-			while (temp != null) {
-				prev = temp;
-				temp = temp.rightChild;
-			}
-			return prev.key;
-		}
+	void updateSubtreeMaxCount(TreeNode node) {
+		node.subtreeMaxCount = Math.max(node.count,
+				Math.max(getSubtreeMaxCount(node.leftChild), getSubtreeMaxCount(node.rightChild)));
 	}
 
 	/*
 	 * Returns the subtreeCount of the node if it exists, if not, return zero.
 	 */
-	int getSubtreeEventCount(TreeNode node) {
+	long getSubtreeEventCount(TreeNode node) {
 		if (node != null) {
 			return node.subtreeCount;
 		} else {
@@ -665,98 +838,53 @@ public class RedBlackTree {
 	}
 
 	/*
-	 * Binary search tree delete after finding the node with the given key. Time
-	 * complexity: O(log n).
-	 */
-	void delete(int key) {
-		TreeNode node = findNode(key);
-
-		if (node != null) { // node isn't null implies we've found the node
-							// to delete.
-			deleteNode(node);
-		}
-	}
-
-	/*
-	 * deletes the given node. Also fixes RedBlackTree violations if any and
-	 * calls the delete2() method if further fixes are required. Time
-	 * complexity: O(log n)
+	 * Delete the given node, which must have at most one child (reduce()
+	 * first moves the predecessor's event into an event's node with two
+	 * children, and deletes the predecessor's node instead), and whose count
+	 * has already been taken out of its ancestors' subtreeCounts and
+	 * subtreeMaxCounts. Also fixes RedBlackTree violations if any and calls
+	 * the delete2() method if further fixes are required. Time complexity:
+	 * O(log n)
 	 */
 	void deleteNode(TreeNode node) {
-		if (node != null) {
-			int deletedKey = node.key;
-			if (node.leftChild != null && node.rightChild != null) {
-				// CASE 2: 2 children: If the node has two children replace
-				// node with its predecessor, and delete the predecessor
-				// recursively.
-				TreeNode predecessor = predecessor(node);
-				replaceNode(node, predecessor);
-				deleteNode(predecessor);
-			} else {
-				// CASE 3: Deletion of node with "utmost" one child. call
-				// delete of red black tree IF the node being deleted is a black
-				// node.
-				// (if it's red, then no RBT properties are violated)
-				boolean moreFixesRequired = false;
-				TreeNode child = null;
-				if (node.isRed == BLACK) {
-					moreFixesRequired = !deleteFix1(node);
-				}
-				if (node.rightChild != null) {
-					child = node.rightChild;
-					// CASE 3.1: 1 child: if the node only has rightChild,
-					// replace
-					// node's parent
-					// link to its child.
-					if (node.parent == null) {
-						root = child;
-						moreFixesRequired = false;
-					} else if (node.parent.rightChild == node) {
-						node.parent.rightChild = child;
-					} else {
-						node.parent.leftChild = child;
-					}
-				} else {
-					child = node.leftChild;
-					// CASE 3.2: 2 child: if the node only has leftChild,
-					// replace
-					// node's parent
-					// link to its child and vice-versa.
-					if (node.parent == null) {
-						root = child;
-						moreFixesRequired = false;
-					} else if (node.parent.rightChild == node) {
-						if (child == null) {
-							// If there are no children, add a null dummy leaf
-							// so that re-balancing can take place if required,
-							// then delete it.
-							child = getNullLeaf(node.parent, true);
-						}
-						node.parent.rightChild = child;
-					} else {
-						if (child == null) {
-							// If there are no children, add a null dummy leaf
-							// so that re-balancing can take place if required,
-							// then delete it.
-							child = getNullLeaf(node.parent, false);
-						}
-						node.parent.leftChild = child;
-					}
-				}
-				child.parent = node.parent;
-				if (moreFixesRequired) {
-					// If child replacing deleted node was previously black, and
-					// not the current root
-					delete2(child);
-					cleanIfNullLeaf(child);
-				}
-				cleanIfNullLeaf(child);
+		if (node.leftChild != null && node.rightChild != null) {
+			throw new IllegalArgumentException("Node " + node.key + " to delete has two children");
+		}
+		// Deletion of a node with at most one child. call delete of red
+		// black tree IF the node being deleted is a black node.
+		// (if it's red, then no RBT properties are violated)
+		numberOfEvents--;
+		TreeNode child = node.rightChild != null ? node.rightChild : node.leftChild;
+		if (child == null) {
+			// No children: removing a black leaf leaves the paths through it
+			// one black node short. Re-balance first, with the node itself
+			// standing in for the (black) null leaf which takes its place, as
+			// it's still a leaf after the rotations, then unlink it. No
+			// sentinel node is allocated. Its count and subtreeCount have
+			// already been taken out of the tree (see reduce()), so the
+			// rotations treat it like an empty subtree.
+			if (node.isRed == BLACK && node.parent != null) {
+				delete2(node);
 			}
-			if (deletedKey == treeMinimum) {
-				treeMinimum = findMin();
+			deleteNodeReferences(node);
+		} else {
+			// 1 child: replace node's parent link to its child and
+			// vice-versa. (The child of a black node with only one child is
+			// red, so repainting it black restores the black heights.)
+			boolean moreFixesRequired = node.isRed == BLACK && !deleteFix1(node);
+			if (node.parent == null) {
+				root = child;
+				moreFixesRequired = false;
+			} else if (node.parent.rightChild == node) {
+				node.parent.rightChild = child;
+			} else {
+				node.parent.leftChild = child;
 			}
-			if (deletedKey == treeMaximum) {
-				treeMaximum = findMax();
+			child.parent = node.parent;
+			if (moreFixesRequired) {
+				// If child replacing deleted node was previously black, and
+				// not the current root
+				delete2(child);
 			}
 		}
 	}
@@ -1123,7 +1251,7 @@ public class RedBlackTree {
 			node.parent = grandparent;
 			grandparent.leftChild = node;
 			node = node.leftChild;
-			int previousParentSubtreeCount = node.subtreeCount;
+			long previousParentSubtreeCount = node.subtreeCount;
 			/*
 			 * since this "node" was the parent before rotation, and its right
 			 * node moved above it to become its parent, we need to subtract
@@ -1133,6 +1261,8 @@ public class RedBlackTree {
 			 */
 			node.subtreeCount -= node.parent.subtreeCount - getSubtreeEventCount(node.rightChild);
 			node.parent.subtreeCount = previousParentSubtreeCount;
+			updateSubtreeMaxCount(node);
+			updateSubtreeMaxCount(node.parent);
 		} else if (grandparent.rightChild == parent && parent.leftChild == node) {
 			// right-rotate
 			parent.leftChild = node.rightChild;
@@ -1144,7 +1274,7 @@ public class RedBlackTree {
 			node.parent = grandparent;
 			grandparent.rightChild = node;
 			node = node.rightChild;
-			int previousParentSubtreeCount = node.subtreeCount;
+			long previousParentSubtreeCount = node.subtreeCount;
 			/*
 			 * since this "node" was the parent before rotation, and its left
 			 * node moved above it to become its parent, we need to subtract
@@ -1154,6 +1284,8 @@ public class RedBlackTree {
 			 */
 			node.subtreeCount -= node.parent.subtreeCount - getSubtreeEventCount(node.leftChild);
 			node.parent.subtreeCount = previousParentSubtreeCount;
+			updateSubtreeMaxCount(node);
+			updateSubtreeMaxCount(node.parent);
 		}
 		insert5(node);
 	}
@@ -1200,9 +1332,11 @@ public class RedBlackTree {
 			} else {
 				root = rightChild;
 			}
-			int previousParentSubtreeCount = node.subtreeCount;
+			long previousParentSubtreeCount = node.subtreeCount;
 			node.subtreeCount -= node.parent.subtreeCount - getSubtreeEventCount(node.rightChild);
 			node.parent.subtreeCount = previousParentSubtreeCount;
+			updateSubtreeMaxCount(node);
+			updateSubtreeMaxCount(node.parent);
 		}
 	}
 
@@ -1230,9 +1364,11 @@ public class RedBlackTree {
 			} else {
 				root = leftChild;
 			}
-			int previousParentSubtreeCount = node.subtreeCount;
+			long previousParentSubtreeCount = node.subtreeCount;
 			node.subtreeCount -= node.parent.subtreeCount - getSubtreeEventCount(node.leftChild);
 			node.parent.subtreeCount = previousParentSubtreeCount;
+			updateSubtreeMaxCount(node);
+			updateSubtreeMaxCount(node.parent);
 		}
 	}
 
@@ -1263,8 +1399,35 @@ public class RedBlackTree {
 		// same as (start+end)/2, avoids overflow.
 		int mid = start + (end - start) / 2;
 		TreeNode node = arr[mid];
-		node.leftChild = sortedArrayToRBBST(arr, start, mid - 1, currentHeight + 1, maxHeight);
-		node.rightChild = sortedArrayToRBBST(arr, mid + 1, end, currentHeight + 1, maxHeight);
+		TreeNode leftChild = sortedArrayToRBBST(arr, start, mid - 1, currentHeight + 1, maxHeight);
+		TreeNode rightChild = sortedArrayToRBBST(arr, mid + 1, end, currentHeight + 1, maxHeight);
+		return linkSubtrees(node, leftChild, rightChild, currentHeight, maxHeight);
+	}
+
+	/*
+	 * Same as sortedArrayToRBBST(), but creating the TreeNodes from the sorted
+	 * IDs and counts as it goes. Time complexity: O(n).
+	 */
+	TreeNode sortedArraysToRBBST(int sortedIDs[], int sortedCounts[], int start, int end, int currentHeight,
+			int maxHeight) {
+		if (start > end) {
+			return null;
+		}
+		int mid = start + (end - start) / 2;
+		TreeNode node = new TreeNode(sortedIDs[mid], sortedCounts[mid]);
+		TreeNode leftChild = sortedArraysToRBBST(sortedIDs, sortedCounts, start, mid - 1, currentHeight + 1, maxHeight);
+		TreeNode rightChild = sortedArraysToRBBST(sortedIDs, sortedCounts, mid + 1, end, currentHeight + 1, maxHeight);
+		return linkSubtrees(node, leftChild, rightChild, currentHeight, maxHeight);
+	}
+
+	/*
+	 * Attach the two subtrees built for the halves of the sorted range to
+	 * their middle node, add their subtreeCounts to it, and color it.
+	 */
+	private TreeNode linkSubtrees(TreeNode node, TreeNode leftChild, TreeNode rightChild, int currentHeight,
+			int maxHeight) {
+		node.leftChild = leftChild;
+		node.rightChild = rightChild;
 		if (node.leftChild != null) {
 			node.subtreeCount += node.leftChild.subtreeCount;
 			node.leftChild.parent = node;
@@ -1273,18 +1436,56 @@ public class RedBlackTree {
 			node.subtreeCount += node.rightChild.subtreeCount;
 			node.rightChild.parent = node;
 		}
-		if (currentHeight == maxHeight) {
-			/*
-			 * The RedBlack tree property is maintained by coloring all the
-			 * internal nodes at the last level red. This is done by checking if
-			 * the current level is at the max level for that tree (comparing
-			 * against log of the total number of nodes)
-			 */
-			node.isRed = RED;
-		}
+		/*
+		 * The RedBlack tree property is maintained by coloring all the internal
+		 * nodes at the last level red. This is done by checking if the current
+		 * level is at the max level for that tree (comparing against log of the
+		 * total number of nodes)
+		 */
+		node.isRed = currentHeight == maxHeight;
+		updateSubtreeMaxCount(node);
 		return node;
 	}
 
+	/*
+	 * Fork-join version of sortedArraysToRBBST(). Ranges of more than
+	 * PARALLEL_BUILD_THRESHOLD events are split at the middle, with the left
+	 * half forked and the right half built by the current worker; smaller
+	 * ranges are built sequentially.
+	 */
+	private class ParallelSortedArraysToRBBST extends RecursiveTask<TreeNode> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int sortedIDs[], sortedCounts[];
+		private final int start, end, currentHeight, maxHeight;
+
+		ParallelSortedArraysToRBBST(int sortedIDs[], int sortedCounts[], int start, int end, int currentHeight,
+				int maxHeight) {
+			this.sortedIDs = sortedIDs;
+			this.sortedCounts = sortedCounts;
+			this.start = start;
+			this.end = end;
+			this.currentHeight = currentHeight;
+			this.maxHeight = maxHeight;
+		}
+
+		@Override
+		protected TreeNode compute() {
+			if (end - start < PARALLEL_BUILD_THRESHOLD) {
+				return sortedArraysToRBBST(sortedIDs, sortedCounts, start, end, currentHeight, maxHeight);
+			}
+			int mid = start + (end - start) / 2;
+			ParallelSortedArraysToRBBST leftTask = new ParallelSortedArraysToRBBST(sortedIDs, sortedCounts, start,
+					mid - 1, currentHeight + 1, maxHeight);
+			leftTask.fork();
+			TreeNode rightChild = new ParallelSortedArraysToRBBST(sortedIDs, sortedCounts, mid + 1, end,
+					currentHeight + 1, maxHeight).compute();
+			TreeNode node = new TreeNode(sortedIDs[mid], sortedCounts[mid]);
+			return linkSubtrees(node, leftTask.join(), rightChild, currentHeight, maxHeight);
+		}
+	}
+
 	/*
 	 * Find the log base 2 of a number using integer arithmetic.
 	 */
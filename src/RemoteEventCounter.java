@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Event Counter in another process, reached through a CounterServer.
+ *
+ * Each operation sends one request frame and waits for its response, one
+ * round trip per call, so it can stand in for a local counter anywhere,
+ * e.g. as a node of a PartitionedEventCounter. (Pipelined clients like
+ * CounterLoadGenerator write many requests before reading the responses.)
+ * An IOException talking to the server is rethrown as an
+ * UncheckedIOException, as the EventCounter operations don't declare it.
+ *
+ * Like RedBlackTree, the client is not thread-safe.
+ */
+public class RemoteEventCounter implements EventCounter {
+
+	private final SocketChannel channel;
+	private final ByteBuffer request = ByteBuffer.allocateDirect(CounterServer.REQUEST_BYTES);
+	private final ByteBuffer response = ByteBuffer.allocateDirect(CounterServer.RESPONSE_BYTES);
+
+	public RemoteEventCounter(String host, int port) throws IOException {
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	public int increase(int theIDofEvent, int countIncreaseBy) {
+		return (int) call(CounterServer.INCREASE, theIDofEvent, countIncreaseBy);
+	}
+
+	public int reduce(int theIDofEvent, int decreaseCountBy) {
+		return (int) call(CounterServer.REDUCE, theIDofEvent, decreaseCountBy);
+	}
+
+	public int count(int theIDofEvent) {
+		return (int) call(CounterServer.COUNT, theIDofEvent, 0);
+	}
+
+	public long inRange(int ID1, int ID2) {
+		return call(CounterServer.INRANGE, ID1, ID2);
+	}
+
+	public long next(int theIDofEvent) {
+		return call(CounterServer.NEXT, theIDofEvent, 0);
+	}
+
+	public long previous(int theIDofEvent) {
+		return call(CounterServer.PREVIOUS, theIDofEvent, 0);
+	}
+
+	/*
+	 * Send the request and return the result of its response.
+	 */
+	private long call(byte opcode, int ID, int amount) {
+		try {
+			request.clear();
+			request.put(opcode).putInt(ID).putInt(amount).flip();
+			while (request.hasRemaining()) {
+				channel.write(request);
+			}
+			response.clear();
+			while (response.hasRemaining()) {
+				if (channel.read(response) < 0) {
+					throw new IOException("Counter server closed the connection");
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		byte status = response.get(0);
+		if (status == CounterServer.OVERFLOW) {
+			throw new ArithmeticException("Count of event " + ID + " would overflow");
+		} else if (status != CounterServer.OK) {
+			throw new IllegalStateException("Counter server rejected opcode " + opcode);
+		}
+		return response.getLong(1);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
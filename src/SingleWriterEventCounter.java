@@ -0,0 +1,214 @@
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Thread-safe Event Counter where a single owner thread applies every
+ * operation to the tree, so the tree itself is never locked and never seen
+ * mid-rotation by another thread.
+ *
+ * Any number of threads submit Commands, each a completion handle carrying
+ * the opcode and the arguments (as in the CounterServer protocol) and, once
+ * done, the status and the result. The queue is lock-free and multi
+ * producer, single consumer: submitting pushes a whole chain of commands
+ * onto a Treiber stack with one compareAndSet, and the owner takes
+ * everything submitted so far with one getAndSet, reverses it into
+ * submission order and executes the batch back to back. Commands of one
+ * chain run in their order, consecutively. The cost of the queue is paid
+ * per batch, not per command, and under load the batches grow by
+ * themselves: the longer the owner is busy, the more it drains at once.
+ *
+ * Waiting is spin then park on both sides: the submitter of a chain awaits
+ * its last command (all of the chain are done once that is), and the owner,
+ * when there is nothing to drain, spins briefly for new commands before it
+ * parks until the next submit wakes it.
+ *
+ * The EventCounter operations submit one command each and wait for it. The
+ * ThreadedCounterServer connections submit all the requests they've read as
+ * one chain.
+ */
+public class SingleWriterEventCounter implements EventCounter {
+
+	// Spins before a waiting thread parks.
+	private static final int SPINS = 100;
+
+	/*
+	 * A command, and its completion handle. next links a submitted chain
+	 * from its last command back to its first, and then on to the commands
+	 * submitted before it.
+	 */
+	static final class Command {
+		byte opcode;
+		int ID, amount;
+		byte status;
+		long result;
+
+		Command next;
+		private volatile boolean done;
+		private volatile Thread waiter;
+
+		void set(byte opcode, int ID, int amount) {
+			this.opcode = opcode;
+			this.ID = ID;
+			this.amount = amount;
+			done = false;
+		}
+
+		/*
+		 * Wait until the owner has executed the command.
+		 */
+		void await() {
+			for (int spin = 0; spin < SPINS; spin++) {
+				if (done) {
+					return;
+				}
+				Thread.onSpinWait();
+			}
+			waiter = Thread.currentThread();
+			while (!done) {
+				LockSupport.park(this);
+			}
+			waiter = null;
+		}
+
+		private void complete() {
+			done = true;
+			Thread thread = waiter;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	private final EventCounter tree;
+	// Top of the stack of submitted commands, the last submitted first.
+	private final AtomicReference<Command> submitted = new AtomicReference<>();
+	private final Thread owner;
+	private volatile boolean ownerParked;
+	private volatile boolean closed;
+
+	public SingleWriterEventCounter(EventCounter tree) {
+		this.tree = tree;
+		owner = new Thread(this::drain, "event-counter-owner");
+		owner.setDaemon(true);
+		owner.start();
+	}
+
+	/*
+	 * Submit the chain of commands linked by next from last back to first,
+	 * to be executed from first to last.
+	 */
+	void submit(Command first, Command last) {
+		Command top;
+		do {
+			top = submitted.get();
+			first.next = top;
+		} while (!submitted.compareAndSet(top, last));
+		if (ownerParked) {
+			LockSupport.unpark(owner);
+		}
+	}
+
+	/*
+	 * The owner thread: execute the submitted commands batch by batch, until
+	 * close().
+	 */
+	private void drain() {
+		int idleSpins = 0;
+		while (true) {
+			Command batch = submitted.getAndSet(null);
+			if (batch == null) {
+				if (closed) {
+					return;
+				} else if (idleSpins++ < SPINS) {
+					Thread.onSpinWait();
+				} else {
+					ownerParked = true;
+					if (submitted.get() == null && !closed) {
+						LockSupport.park(this);
+					}
+					ownerParked = false;
+					idleSpins = 0;
+				}
+				continue;
+			}
+			idleSpins = 0;
+			// Reverse the batch into submission order.
+			Command first = null;
+			while (batch != null) {
+				Command next = batch.next;
+				batch.next = first;
+				first = batch;
+				batch = next;
+			}
+			while (first != null) {
+				Command command = first;
+				first = command.next;
+				execute(command);
+				command.complete();
+			}
+		}
+	}
+
+	private void execute(Command command) {
+		command.status = CounterServer.OK;
+		// A failed command's result is 0, as in a CounterServer response,
+		// not whatever a reused command held before.
+		command.result = 0;
+		try {
+			command.result = CounterServer.apply(tree, command.opcode, command.ID, command.amount);
+		} catch (ArithmeticException e) {
+			command.status = CounterServer.OVERFLOW;
+		} catch (RuntimeException e) {
+			command.status = CounterServer.INVALID;
+		}
+	}
+
+	/*
+	 * Submit a single command, wait for it, and return its result.
+	 */
+	private long call(byte opcode, int ID, int amount) {
+		Command command = new Command();
+		command.set(opcode, ID, amount);
+		submit(command, command);
+		command.await();
+		if (command.status == CounterServer.OVERFLOW) {
+			throw new ArithmeticException("Count of event " + ID + " would overflow");
+		} else if (command.status != CounterServer.OK) {
+			throw new IllegalStateException("Opcode " + opcode + " failed");
+		}
+		return command.result;
+	}
+
+	public int increase(int theIDofEvent, int countIncreaseBy) {
+		return (int) call(CounterServer.INCREASE, theIDofEvent, countIncreaseBy);
+	}
+
+	public int reduce(int theIDofEvent, int decreaseCountBy) {
+		return (int) call(CounterServer.REDUCE, theIDofEvent, decreaseCountBy);
+	}
+
+	public int count(int theIDofEvent) {
+		return (int) call(CounterServer.COUNT, theIDofEvent, 0);
+	}
+
+	public long inRange(int ID1, int ID2) {
+		return call(CounterServer.INRANGE, ID1, ID2);
+	}
+
+	public long next(int theIDofEvent) {
+		return call(CounterServer.NEXT, theIDofEvent, 0);
+	}
+
+	public long previous(int theIDofEvent) {
+		return call(CounterServer.PREVIOUS, theIDofEvent, 0);
+	}
+
+	/*
+	 * Stop the owner thread once the commands submitted so far are executed.
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		LockSupport.unpark(owner);
+		owner.join();
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Thread-safe Event Counter for many concurrent producers.
+ *
+ * Instead of one RedBlackTree behind a single global lock, the ID space is
+ * range partitioned into shards, each an independent RedBlackTree guarded by
+ * its own lock (the shard itself). Shard s holds the IDs from
+ * shardLowestID[s] up to (but not including) shardLowestID[s + 1], so
+ * writers to different shards never contend, and with enough shards the
+ * write throughput scales with the number of cores.
+ *
+ * increase, reduce and count lock just the shard of the ID. inRange sums the
+ * counts of each shard the range overlaps, and next and previous continue in
+ * the following (preceding) shards while the shard of the ID has no further
+ * event. These lock one shard at a time, so each shard's part of the result
+ * is consistent, but concurrent updates to other shards may or may not be
+ * included.
+ */
+public class StripedEventCounter implements EventCounter {
+
+	// Shards per available core by default, so that uneven load still spreads.
+	private static final int SHARDS_PER_CORE = 4;
+
+	private final RedBlackTree[] shards;
+	// Smallest ID of each shard (the first one is Integer.MIN_VALUE).
+	private final int[] shardLowestID;
+
+	public StripedEventCounter() {
+		this(new int[0], new int[0], 0);
+	}
+
+	/*
+	 * Initialize the counter from the ascending sorted IDs and their counts,
+	 * with SHARDS_PER_CORE shards per available core.
+	 */
+	StripedEventCounter(int sortedIDs[], int sortedCounts[], int totalNumberOfEvents) {
+		this(sortedIDs, sortedCounts, totalNumberOfEvents,
+				SHARDS_PER_CORE * Runtime.getRuntime().availableProcessors());
+	}
+
+	/*
+	 * Initialize the counter from the ascending sorted IDs and their counts
+	 * with the given number of shards. The shard boundaries split the initial
+	 * events evenly; if there are fewer events than shards, the positive ID
+	 * space is split evenly instead. Each shard is built in O(n / shards)
+	 * time.
+	 */
+	StripedEventCounter(int sortedIDs[], int sortedCounts[], int totalNumberOfEvents, int numberOfShards) {
+		shardLowestID = RangePartitioning.evenBoundaries(sortedIDs, totalNumberOfEvents, numberOfShards);
+		shards = RangePartitioning.buildParts(sortedIDs, sortedCounts, totalNumberOfEvents, shardLowestID);
+	}
+
+	/*
+	 * Index of the shard holding the given ID, by binary search over the
+	 * shard boundaries.
+	 */
+	int shardOf(int ID) {
+		return RangePartitioning.partOf(shardLowestID, ID);
+	}
+
+	public int increase(int theIDofEvent, int countIncreaseBy) {
+		RedBlackTree shard = shards[shardOf(theIDofEvent)];
+		synchronized (shard) {
+			return shard.increase(theIDofEvent, countIncreaseBy);
+		}
+	}
+
+	public int reduce(int theIDofEvent, int decreaseCountBy) {
+		RedBlackTree shard = shards[shardOf(theIDofEvent)];
+		synchronized (shard) {
+			return shard.reduce(theIDofEvent, decreaseCountBy);
+		}
+	}
+
+	public int count(int theIDofEvent) {
+		RedBlackTree shard = shards[shardOf(theIDofEvent)];
+		synchronized (shard) {
+			return shard.count(theIDofEvent);
+		}
+	}
+
+	/*
+	 * Sum the counts for IDs between ID1 and ID2 inclusively over the shards
+	 * the range overlaps. Time complexity: O(s log n) for s shards.
+	 */
+	public long inRange(int ID1, int ID2) {
+		if (ID1 > ID2) {
+			return 0;
+		}
+		long totalCountInRange = 0;
+		for (int s = shardOf(ID1), last = shardOf(ID2); s <= last; s++) {
+			RedBlackTree shard = shards[s];
+			synchronized (shard) {
+				totalCountInRange += shard.inRange(ID1, ID2);
+			}
+		}
+		return totalCountInRange;
+	}
+
+	/*
+	 * The event with the lowest ID greater than theID, searching the
+	 * following shards while there is none in the current one.
+	 */
+	public long next(int theIDofEvent) {
+		for (int s = shardOf(theIDofEvent); s < shards.length; s++) {
+			RedBlackTree shard = shards[s];
+			long event;
+			synchronized (shard) {
+				event = shard.next(theIDofEvent);
+			}
+			if (event != NO_EVENT) {
+				return event;
+			}
+		}
+		return NO_EVENT;
+	}
+
+	/*
+	 * The event with the greatest ID less than theID, searching the
+	 * preceding shards while there is none in the current one.
+	 */
+	public long previous(int theIDofEvent) {
+		for (int s = shardOf(theIDofEvent); s >= 0; s--) {
+			RedBlackTree shard = shards[s];
+			long event;
+			synchronized (shard) {
+				event = shard.previous(theIDofEvent);
+			}
+			if (event != NO_EVENT) {
+				return event;
+			}
+		}
+		return NO_EVENT;
+	}
+}
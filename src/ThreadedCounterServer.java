@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/*
+ * TCP server for the CounterServer protocol with a thread per connection,
+ * in front of a SingleWriterEventCounter owning the tree.
+ *
+ * Each connection thread blocks reading its socket, turns every whole
+ * request it has received into a command (reusing the connection's commands,
+ * so nothing is allocated per request), submits them as one chain, and
+ * awaits the last one before writing all of their responses back in one
+ * write. While the owner executes a chain the client's next requests pile up
+ * in the socket, so a pipelining client is served in batches as large as it
+ * keeps in flight, and a connection costs the owner's queue one push per
+ * batch. The connections never touch the tree, so any number of them can
+ * block on slow clients without holding up the others.
+ */
+public class ThreadedCounterServer implements Runnable {
+
+	private static final int BUFFER_BYTES = 1 << 16;
+	private static final int MAX_BATCH = BUFFER_BYTES / CounterServer.REQUEST_BYTES;
+
+	private final SingleWriterEventCounter counter;
+	private final ServerSocketChannel serverChannel;
+
+	/*
+	 * Listen on the port (0 for any free one) for clients of the counter.
+	 */
+	public ThreadedCounterServer(SingleWriterEventCounter counter, int port) throws IOException {
+		this.counter = counter;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+	}
+
+	int port() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/*
+	 * Accept connections, each served by its own thread, until close() is
+	 * called.
+	 */
+	public void run() {
+		try {
+			while (true) {
+				SocketChannel channel = serverChannel.accept();
+				channel.socket().setTcpNoDelay(true);
+				Thread connection = new Thread(() -> serve(channel), "counter-connection");
+				connection.setDaemon(true);
+				connection.start();
+			}
+		} catch (IOException e) {
+			// Closed.
+		}
+	}
+
+	/*
+	 * Serve one connection until the client closes it.
+	 */
+	private void serve(SocketChannel channel) {
+		ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_BYTES);
+		ByteBuffer out = ByteBuffer.allocateDirect(MAX_BATCH * CounterServer.RESPONSE_BYTES);
+		SingleWriterEventCounter.Command[] commands = new SingleWriterEventCounter.Command[MAX_BATCH];
+		try {
+			while (channel.read(in) >= 0) {
+				in.flip();
+				int batch = in.remaining() / CounterServer.REQUEST_BYTES;
+				for (int i = 0; i < batch; i++) {
+					if (commands[i] == null) {
+						commands[i] = new SingleWriterEventCounter.Command();
+					}
+					commands[i].set(in.get(), in.getInt(), in.getInt());
+					commands[i].next = i == 0 ? null : commands[i - 1];
+				}
+				in.compact();
+				if (batch == 0) {
+					continue;
+				}
+				counter.submit(commands[0], commands[batch - 1]);
+				commands[batch - 1].await();
+
+				out.clear();
+				for (int i = 0; i < batch; i++) {
+					out.put(commands[i].status).putLong(commands[i].result);
+				}
+				out.flip();
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+			}
+		} catch (IOException e) {
+			// The client went away.
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Stop accepting connections.
+	 */
+	public void close() throws IOException {
+		serverChannel.close();
+	}
+}
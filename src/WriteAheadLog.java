@@ -0,0 +1,338 @@
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/*
+ * Append-only write-ahead log of the increase and reduce operations on an
+ * Event Counter, so the updates since the last EventSnapshot survive the JVM
+ * dying.
+ *
+ * Operations are appended to an in-memory buffer, and commit() writes all of
+ * the buffered ones as one group: a single FileChannel.write, followed by a
+ * force() if fsyncIntervalMillis has passed since the last one (so with an
+ * interval of 0 every group is forced). Otherwise a force is scheduled for
+ * when the interval is up, so a committed group is on disk at most
+ * fsyncIntervalMillis after it was written even if nothing is committed
+ * after it (e.g. the commands stop coming). The log only costs a write and
+ * an fsync per group, not per operation. A group is committed whenever the
+ * buffer fills up, and by acknowledgeAfterCommit() streams before any
+ * result is written out, so a result is never seen before its update is in
+ * the log. Updates of a committed but not yet forced group survive the JVM
+ * dying (they're in the OS page cache), but may be lost if the machine
+ * crashes within the fsync interval.
+ *
+ * The file is a 16 byte header (MAGIC, VERSION, and the sequence number of
+ * the first operation in the log, as big-endian int, int, long), then the
+ * groups, each the number of operations and their CRC32C (ints), then the
+ * operations, OPERATION_BYTES each: the opcode byte, and the ID and the
+ * amount as ints. Operations are numbered consecutively, and a snapshot
+ * records the sequence number up to which it includes them, so replay()
+ * skips those already in the snapshot even if the log wasn't reset after it
+ * (i.e. the JVM died in between). A group torn by a crash mid-write fails
+ * its checksum, and the log is truncated before it. sync() must be called
+ * before a snapshot is written, so the log never ends short of the
+ * snapshot's sequence number; should it anyway (its tail lost in a machine
+ * crash), replay() starts it over at that number, so the operations
+ * appended from then on aren't skipped by the next replay.
+ *
+ * Like RedBlackTree, the log is not thread-safe: the scheduled forces run on
+ * a shared daemon thread, but only take the log's lock to force and update
+ * the force state, which everything else touching it also holds.
+ */
+public class WriteAheadLog {
+
+	private static final int MAGIC = 0x4556574C; // "EVWL"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int GROUP_HEADER_BYTES = 8;
+	private static final int OPERATION_BYTES = 9;
+
+	static final byte INCREASE = 0;
+	static final byte REDUCE = 1;
+
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	private static final ScheduledExecutorService forceTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "WriteAheadLog force");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final File logFile;
+	private final FileChannel channel;
+	private final long fsyncIntervalMillis;
+
+	// Group being buffered: its header, then bufferedOperations operations.
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+	private int bufferedOperations;
+	private final CRC32C checksum = new CRC32C();
+
+	// Sequence number of the first operation in the file, and of the next
+	// one to be appended.
+	private long firstSequenceNumber, nextSequenceNumber;
+	// Whether everything written has been forced, and when it last was.
+	private boolean forced = true;
+	private long lastForceNanos = System.nanoTime();
+	// The force scheduled for when the interval is up, if any, and what the
+	// last one failed with, to be thrown by the next commit.
+	private ScheduledFuture<?> scheduledForce;
+	private IOException scheduledForceFailure;
+
+	private WriteAheadLog(File logFile, long fsyncIntervalMillis) throws IOException {
+		this.logFile = logFile;
+		this.fsyncIntervalMillis = fsyncIntervalMillis;
+		channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		buffer.position(GROUP_HEADER_BYTES);
+	}
+
+	/*
+	 * Open the log file, or create it with the given first sequence number.
+	 * An existing log is scanned to its end, where the operations will be
+	 * appended.
+	 */
+	static WriteAheadLog open(File logFile, long fsyncIntervalMillis, long firstSequenceNumberIfNew)
+			throws IOException {
+		WriteAheadLog log = new WriteAheadLog(logFile, fsyncIntervalMillis);
+		try {
+			if (log.channel.size() < HEADER_BYTES) {
+				log.reset(firstSequenceNumberIfNew);
+			} else {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+				readFully(log.channel, header, 0);
+				if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+					throw new IOException("Not a write-ahead log file: " + logFile);
+				}
+				log.firstSequenceNumber = header.getLong(8);
+				log.replay(null, Long.MAX_VALUE);
+			}
+		} catch (IOException e) {
+			log.channel.close();
+			throw e;
+		}
+		return log;
+	}
+
+	/*
+	 * Apply the logged operations numbered fromSequenceNumber on (none if
+	 * that's Long.MAX_VALUE) to the counter, truncate any torn group at the
+	 * end of the log, and return the number of operations applied. If the log
+	 * ends before fromSequenceNumber it's reset to start there. Time
+	 * complexity: O(m log n) for m logged operations.
+	 */
+	long replay(EventCounter tree, long fromSequenceNumber) throws IOException {
+		if (fromSequenceNumber < firstSequenceNumber) {
+			throw new IOException("Write-ahead log " + logFile + " starts at operation " + firstSequenceNumber
+					+ ", after " + fromSequenceNumber);
+		}
+		long size = channel.size(), position = HEADER_BYTES, applied = 0;
+		ByteBuffer groupHeader = ByteBuffer.allocate(GROUP_HEADER_BYTES);
+		ByteBuffer operations = ByteBuffer.allocate(BUFFER_BYTES);
+		nextSequenceNumber = firstSequenceNumber;
+		while (position + GROUP_HEADER_BYTES <= size) {
+			groupHeader.clear();
+			readFully(channel, groupHeader, position);
+			int count = groupHeader.getInt(0);
+			long groupBytes = (long) count * OPERATION_BYTES;
+			if (count <= 0 || groupBytes > BUFFER_BYTES || position + GROUP_HEADER_BYTES + groupBytes > size) {
+				break;
+			}
+			operations.clear().limit((int) groupBytes);
+			readFully(channel, operations, position + GROUP_HEADER_BYTES);
+			checksum.reset();
+			checksum.update(operations.array(), 0, (int) groupBytes);
+			if (groupHeader.getInt(4) != (int) checksum.getValue()) {
+				break;
+			}
+			for (int i = 0; i < count; i++, nextSequenceNumber++) {
+				if (nextSequenceNumber < fromSequenceNumber) {
+					continue;
+				}
+				int offset = i * OPERATION_BYTES;
+				byte opcode = operations.get(offset);
+				int theID = operations.getInt(offset + 1), amount = operations.getInt(offset + 5);
+				if (opcode == INCREASE) {
+					tree.increase(theID, amount);
+				} else {
+					tree.reduce(theID, amount);
+				}
+				applied++;
+			}
+			position += GROUP_HEADER_BYTES + groupBytes;
+		}
+		if (position < size) {
+			// A torn (or otherwise unreadable) group, appended to from here on.
+			channel.truncate(position);
+			channel.force(false);
+		}
+		channel.position(position);
+		if (fromSequenceNumber != Long.MAX_VALUE && nextSequenceNumber < fromSequenceNumber) {
+			// The snapshot is ahead of the log, whose next operations would
+			// otherwise be numbered as if already in the snapshot.
+			reset(fromSequenceNumber);
+		}
+		return applied;
+	}
+
+	/*
+	 * Buffer an operation, committing the buffered group first if it's full.
+	 */
+	void append(byte opcode, int theID, int amount) throws IOException {
+		if (buffer.remaining() < OPERATION_BYTES) {
+			commit();
+		}
+		buffer.put(opcode).putInt(theID).putInt(amount);
+		bufferedOperations++;
+		nextSequenceNumber++;
+	}
+
+	/*
+	 * Write the buffered operations as one group, and force them (and any
+	 * earlier unforced groups) to disk if the fsync interval has passed, or
+	 * else schedule a force for when it has.
+	 */
+	synchronized void commit() throws IOException {
+		if (scheduledForceFailure != null) {
+			IOException failure = scheduledForceFailure;
+			scheduledForceFailure = null;
+			throw failure;
+		}
+		if (bufferedOperations > 0) {
+			checksum.reset();
+			checksum.update(buffer.array(), GROUP_HEADER_BYTES, buffer.position() - GROUP_HEADER_BYTES);
+			buffer.putInt(0, bufferedOperations).putInt(4, (int) checksum.getValue());
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear().position(GROUP_HEADER_BYTES);
+			bufferedOperations = 0;
+			forced = false;
+		}
+		if (!forced) {
+			long dueInNanos = lastForceNanos + fsyncIntervalMillis * 1000000 - System.nanoTime();
+			if (dueInNanos <= 0) {
+				force();
+			} else if (scheduledForce == null) {
+				scheduledForce = forceTimer.schedule(this::forceOnTimer, dueInNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	private void force() throws IOException {
+		channel.force(false);
+		forced = true;
+		lastForceNanos = System.nanoTime();
+	}
+
+	/*
+	 * Force whatever was written since the last force, on the timer thread.
+	 */
+	private synchronized void forceOnTimer() {
+		scheduledForce = null;
+		if (!forced && channel.isOpen()) {
+			try {
+				force();
+			} catch (IOException e) {
+				scheduledForceFailure = e;
+			}
+		}
+	}
+
+	/*
+	 * Whether everything committed so far has been forced to disk.
+	 */
+	synchronized boolean isForced() {
+		return forced;
+	}
+
+	/*
+	 * Commit the buffered operations and force everything written to disk,
+	 * whatever the fsync interval. To be called before writing a snapshot.
+	 */
+	synchronized void sync() throws IOException {
+		commit();
+		if (!forced) {
+			force();
+		}
+	}
+
+	/*
+	 * Sequence number the next appended operation gets, i.e. the number of
+	 * operations logged so far (snapshots included).
+	 */
+	long nextSequenceNumber() {
+		return nextSequenceNumber;
+	}
+
+	/*
+	 * Empty the log, which then starts at the given sequence number. To be
+	 * called once a snapshot including every logged operation is written.
+	 */
+	synchronized void reset(long firstSequenceNumber) throws IOException {
+		buffer.clear().position(GROUP_HEADER_BYTES);
+		bufferedOperations = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC).putInt(VERSION).putLong(firstSequenceNumber).flip();
+		channel.truncate(0);
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+		channel.position(HEADER_BYTES);
+		force();
+		this.firstSequenceNumber = nextSequenceNumber = firstSequenceNumber;
+	}
+
+	/*
+	 * Commit and force the buffered operations, and close the log file.
+	 */
+	synchronized void close() throws IOException {
+		sync();
+		if (scheduledForce != null) {
+			scheduledForce.cancel(false);
+			scheduledForce = null;
+		}
+		channel.close();
+	}
+
+	/*
+	 * Wrap the stream the results are written to so that the buffered
+	 * operations are committed before anything is written (or flushed) to
+	 * it.
+	 */
+	OutputStream acknowledgeAfterCommit(OutputStream out) {
+		return new FilterOutputStream(out) {
+			public void write(int b) throws IOException {
+				commit();
+				out.write(b);
+			}
+
+			public void write(byte b[], int off, int len) throws IOException {
+				commit();
+				out.write(b, off, len);
+			}
+
+			public void flush() throws IOException {
+				commit();
+				out.flush();
+			}
+		};
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of write-ahead log file");
+			}
+		}
+	}
+}
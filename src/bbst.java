@@ -1,8 +1,8 @@
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Scanner;
 
 /*
  * Test Program for the project.
@@ -23,7 +23,7 @@ ID2 count2
 .
 IDn countn
 
-Here the assumption is that IDi < IDi+1 where IDi and counti are positive integers and the total count fits in 4-byte integer limits.
+Here the assumption is that IDi < IDi+1 where IDi and counti are positive integers and each event's count fits in 4-byte integer limits. Totals (the inRange results) are 8-byte, so they don't overflow however many events are counted.
 
 After the input is read from the source file, we get into the interactive part of the program.
 
@@ -37,6 +37,28 @@ To exit from the program, use “quit” command.
 
 To run the program, simply issue the ‘make’ command, and then use the generated ‘bbst’ executable.
 
+Alternatively the counter can be kept in a memory-mapped counter file instead of on the Java heap:
+$java bbst -mapped counter-file [file-name]
+
+If the counter file exists it's remapped as is and no input file is needed, which makes restarts near-instant. Otherwise the counter file is created from the input file. The counter file is closed (and marked clean) on “quit”, or when the commands end in an error. If the program was killed instead, the counter file is rebuilt from the events in it at the next start, which takes about as long as creating it.
+
+Or the counter can be restored from (and saved to) a binary snapshot file, a fraction of the size of the input file and much faster to load:
+$java bbst -snapshot snapshot-file [file-name]
+
+If the snapshot file exists the counter is restored from it and no input file is needed. Otherwise the counter is loaded from the input file. A new snapshot is written on “quit”, or when the commands end in an error.
+
+In this mode every increase and reduce is also logged to the write-ahead log snapshot-file.wal, which is replayed on top of the snapshot at startup, so no update is lost if the program dies before “quit”. The log is written out before each batch of results, and forced to disk right away, or at most once per fsync interval (and no later than the interval after it was written), which can be set in milliseconds (it defaults to 0):
+$java -DfsyncInterval=100 bbst -snapshot snapshot-file [file-name]
+
+Or the counter can be served to any number of clients over TCP, in the binary protocol of CounterServer, until the program is killed:
+$java bbst -server port file-name
+
+Or with a thread per connection, all of them submitting the commands to a single thread owning the counter (see ThreadedCounterServer and SingleWriterEventCounter):
+$java bbst -server port file-name threaded
+
+Its throughput and latency can be measured with the load generator (see CounterLoadGenerator):
+$java CounterLoadGenerator localhost port [connections] [pipeline-depth] [seconds] [max-ID]
+
 NOTE: Since this project was written using the Java language and runs with the heavy JVM, while running huge test files of the order of ~ 1GB, the program should be run with the max increase heap option set to an appropriate heap size (8GB heap for 1GB testfiles).
 
 i.e. java -Xmx8000m bbst test_file
@@ -47,76 +69,42 @@ i.e. java -Xmx8000m bbst test_file
 public class bbst {
 
 	public static void main(String[] args) {
-		if (0 < args.length) {
+		if (0 < args.length && "-mapped".equals(args[0])) {
+			if (args.length < 2) {
+				System.out.println("\n Enter a counter file name (and an input file name to create it from). \n");
+			} else {
+				runMapped(args[1], 2 < args.length ? args[2] : null);
+			}
+		} else if (0 < args.length && "-snapshot".equals(args[0])) {
+			if (args.length < 2) {
+				System.out.println("\n Enter a snapshot file name (and an input file name to start from). \n");
+			} else {
+				runSnapshot(args[1], 2 < args.length ? args[2] : null);
+			}
+		} else if (0 < args.length && "-server".equals(args[0])) {
+			if (args.length < 3) {
+				System.out.println("\n Enter a port and an input file name with the nodes in sorted order. \n");
+			} else {
+				runServer(Integer.parseInt(args[1]), args[2], 3 < args.length && "threaded".equals(args[3]));
+			}
+		} else if (0 < args.length) {
 			/*
 			 * The program expects an input file with format as; n ID1 count1
 			 * ID2 count2 ... IDn countn Assume that IDi < IDi+1 where IDi and
-			 * counti are positive integers and the total count fits in 4-byte
-			 * integer limits.
+			 * counti are positive integers and each count fits in 4-byte
+			 * integer limits (totals are 8-byte).
 			 */
-			String inputFileName = args[0];
-			File nodesInputFile = new File(inputFileName);
 			try {
-				FileReader inputFil = new FileReader(nodesInputFile);
-				BufferedReader in = new BufferedReader(inputFil);
-
-				String s = in.readLine();
-
-				// Count of number of events.
-				int nodesCount = Integer.parseInt(s);
-				RedBlackTree.TreeNode[] sortedNodesArray = new RedBlackTree.TreeNode[nodesCount];
-
-				RedBlackTree treeObjectForTreeNode = new RedBlackTree();
-				// Read each Event ID and its count from each line from the
-				// input file
-				s = in.readLine();
-				for (int i = 0; i < nodesCount; i++) {
-					String nums[] = s.split(" ");
-					int nodeID = Integer.parseInt(nums[0]);
-					int nodeCount = Integer.parseInt(nums[1]);
-					RedBlackTree.TreeNode node = treeObjectForTreeNode.new TreeNode(nodeID, nodeCount);
-					node.isRed = false;
-					sortedNodesArray[i] = node;
-					s = in.readLine();
-				}
-				// Initialize the RedBlackTree Event Counter with the events.
-				RedBlackTree tree = new RedBlackTree(sortedNodesArray, nodesCount);
-
-				// create a scanner so we can read the command-line input for
-				// the counter operations, and call the corresponding
-				// RedBlackTree implemented function.
-				Scanner scanner = new Scanner(System.in);
-				s = scanner.nextLine();
-				while (!"quit".equals(s)) {
-					String commands[] = s.split(" ");
-					String command = commands[0];
-
-					switch (command) {
-					case "increase":
-						tree.increase(Integer.parseInt(commands[1]), Integer.parseInt(commands[2]));
-						break;
-					case "reduce":
-						tree.reduce(Integer.parseInt(commands[1]), Integer.parseInt(commands[2]));
-						break;
-					case "count":
-						tree.count(Integer.parseInt(commands[1]));
-						break;
-					case "inrange":
-						tree.inRange(Integer.parseInt(commands[1]), Integer.parseInt(commands[2]));
-						break;
-					case "next":
-						tree.next(Integer.parseInt(commands[1]), true);
-						break;
-					case "previous":
-						tree.previous(Integer.parseInt(commands[1]), true);
-						break;
-					default:
-						System.out.println("\nInvalid command: '" + command + "' ! Enter 'quit' to exit. ");
-						break;
-					}
-					s = scanner.nextLine();
-				}
-				scanner.close();
+				// Read each Event ID and its count from the input file, and
+				// initialize the RedBlackTree Event Counter with the events,
+				// building independent subtrees on all available cores (if
+				// there is more than one).
+				EventFileLoader events = EventFileLoader.load(new File(args[0]));
+				boolean parallelBuild = Runtime.getRuntime().availableProcessors() > 1;
+				RedBlackTree tree = new RedBlackTree(events.sortedIDs, events.sortedCounts, events.numberOfEvents,
+						parallelBuild);
+
+				processCommands(tree);
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -126,4 +114,108 @@ public class bbst {
 		}
 	}
 
+	/*
+	 * Run the counter from a memory-mapped counter file. An existing counter
+	 * file is remapped as is, otherwise it's created from the input file.
+	 */
+	static void runMapped(String counterFileName, String inputFileName) {
+		File counterFile = new File(counterFileName);
+		try {
+			MappedRedBlackTree tree;
+			if (counterFile.exists()) {
+				tree = MappedRedBlackTree.open(counterFile);
+			} else if (inputFileName != null) {
+				EventFileLoader events = EventFileLoader.load(new File(inputFileName));
+				tree = MappedRedBlackTree.create(counterFile, events.sortedIDs, events.sortedCounts,
+						events.numberOfEvents);
+			} else {
+				System.out.println("\n Counter file " + counterFileName
+						+ " doesn't exist, enter an input file name to create it from. \n");
+				return;
+			}
+			try {
+				processCommands(tree);
+			} finally {
+				tree.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Run the counter restored from a snapshot file, or loaded from the input
+	 * file if there is no snapshot yet, with the operations logged since
+	 * replayed on top, and write a new snapshot (and empty the log) at the
+	 * end.
+	 */
+	static void runSnapshot(String snapshotFileName, String inputFileName) {
+		File snapshotFile = new File(snapshotFileName);
+		try {
+			RedBlackTree tree;
+			long logSequenceNumber = 0;
+			if (snapshotFile.exists()) {
+				EventSnapshot snapshot = EventSnapshot.load(snapshotFile);
+				tree = snapshot.buildTree();
+				logSequenceNumber = snapshot.logSequenceNumber;
+			} else if (inputFileName != null) {
+				EventFileLoader events = EventFileLoader.load(new File(inputFileName));
+				tree = new RedBlackTree(events.sortedIDs, events.sortedCounts, events.numberOfEvents,
+						Runtime.getRuntime().availableProcessors() > 1);
+			} else {
+				System.out.println("\n Snapshot file " + snapshotFileName
+						+ " doesn't exist, enter an input file name to start from. \n");
+				return;
+			}
+			WriteAheadLog log = WriteAheadLog.open(new File(snapshotFileName + ".wal"),
+					Long.getLong("fsyncInterval", 0), logSequenceNumber);
+			log.replay(tree, logSequenceNumber);
+
+			OutputBuffer out = new OutputBuffer(log.acknowledgeAfterCommit(new FileOutputStream(FileDescriptor.out)));
+			try {
+				new CommandProcessor(new LoggedEventCounter(tree, log), new FileInputStream(FileDescriptor.in), out)
+						.run();
+			} finally {
+				log.sync();
+				EventSnapshot.write(tree, snapshotFile, log.nextSequenceNumber());
+				log.reset(log.nextSequenceNumber());
+				log.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Serve the counter loaded from the input file over TCP on the port,
+	 * from one selector thread or with a thread per connection.
+	 */
+	static void runServer(int port, String inputFileName, boolean threaded) {
+		try {
+			EventFileLoader events = EventFileLoader.load(new File(inputFileName));
+			RedBlackTree tree = new RedBlackTree(events.sortedIDs, events.sortedCounts, events.numberOfEvents,
+					Runtime.getRuntime().availableProcessors() > 1);
+			if (threaded) {
+				new ThreadedCounterServer(new SingleWriterEventCounter(tree), port).run();
+			} else {
+				new CounterServer(tree, port).run();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Read the commands from the standard input stream until “quit”, and call
+	 * the corresponding Event Counter function. The commands are tokenized in
+	 * place by a CommandProcessor, and the results are collected in an
+	 * OutputBuffer, which is written out whenever it fills up, whenever reading
+	 * the next commands would block (so interactive use still sees each result
+	 * right away), and at “quit”.
+	 */
+	static void processCommands(EventCounter tree) throws IOException {
+		OutputBuffer out = new OutputBuffer(new FileOutputStream(FileDescriptor.out));
+		new CommandProcessor(tree, new FileInputStream(FileDescriptor.in), out).run();
+	}
+
 }